@@ -0,0 +1,76 @@
+#!/usr/bin/env bash
+#
+# Measures how long the service takes to start and to answer its first requests, for the packaged uber-jar
+# (mvn package). Each run starts the service with an empty mapped log datastore and prints:
+#
+#   startup   time from launching the process until /_ah/warmup answers
+#   post      latency of the first POST /houses
+#   energy    latency of the first GET /houses/{id}/energy
+#   rss       resident memory after those requests
+#
+# followed by the median of every column.
+#
+# Usage: scripts/startup-benchmark.sh [runs]
+
+set -euo pipefail
+
+runs=${1:-10}
+port=${PORT:-8089}
+target=$(dirname "$0")/../target
+
+house='{"area":120.0,"floors":2,"constructionYear":1975,"isApartment":false,"municipalityNumber":"0301"}'
+
+millis() {
+  echo $(( $(date +%s%N) / 1000000 ))
+}
+
+median() {
+  sort -n | awk '{ values[NR] = $1 } END { print (NR % 2) ? values[(NR + 1) / 2] : (values[NR / 2] + values[NR / 2 + 1]) / 2 }'
+}
+
+results=$(mktemp)
+trap 'rm -f "$results"' EXIT
+
+printf '%-8s %10s %10s %10s %10s\n' run startup_ms post_ms energy_ms rss_mb
+for run in $(seq "$runs"); do
+  directory=$(mktemp -d)
+  properties=(-Dquarkus.http.port="$port" -Dstore.impl=MappedLog -Dstore.log.directory="$directory"
+      -Dquarkus.log.level=WARN)
+  command=(java "${properties[@]}" -jar "$target/quarkus-helloworld-1.0-SNAPSHOT-runner.jar")
+
+  start=$(millis)
+  "${command[@]}" > /dev/null 2>&1 &
+  pid=$!
+
+  until curl -sf -o /dev/null "http://localhost:$port/_ah/warmup"; do
+    if ! kill -0 "$pid" 2> /dev/null; then
+      echo "The service exited during startup" >&2
+      exit 1
+    fi
+    sleep 0.005
+  done
+  startup=$(( $(millis) - start ))
+
+  id=$(curl -sf -H 'Content-Type: application/json' -d "$house" "http://localhost:$port/houses/" \
+      -w '\n%{time_total}')
+  post=$(awk -v seconds="$(tail -n 1 <<< "$id")" 'BEGIN { printf "%.1f", seconds * 1000 }')
+  id=$(head -n 1 <<< "$id")
+
+  energy=$(curl -sf -o /dev/null -w '%{time_total}' "http://localhost:$port/houses/$id/energy")
+  energy=$(awk -v seconds="$energy" 'BEGIN { printf "%.1f", seconds * 1000 }')
+
+  rss=$(awk '/VmRSS/ { printf "%.1f", $2 / 1024 }' "/proc/$pid/status")
+
+  kill "$pid"
+  wait "$pid" 2> /dev/null || true
+  rm -rf "$directory"
+
+  printf '%-8s %10s %10s %10s %10s\n' "$run" "$startup" "$post" "$energy" "$rss"
+  echo "$startup $post $energy $rss" >> "$results"
+done
+
+printf '%-8s %10s %10s %10s %10s\n' median \
+  "$(cut -d' ' -f1 "$results" | median)" \
+  "$(cut -d' ' -f2 "$results" | median)" \
+  "$(cut -d' ' -f3 "$results" | median)" \
+  "$(cut -d' ' -f4 "$results" | median)"
@@ -0,0 +1,101 @@
+package com.example.appengine.quarkus.benchmark;
+
+import com.example.appengine.quarkus.datastore.Datastore;
+import com.example.appengine.quarkus.datastore.HashMapDatastoreImpl;
+import com.example.appengine.quarkus.datastore.JsonValueCodec;
+import com.example.appengine.quarkus.datastore.MappedLogDatastoreImpl;
+import com.example.appengine.quarkus.model.House;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatastoreBenchmark {
+
+    private static final int HOUSES = 10_000;
+
+    @Param({"HashMap", "HashMapJson", "MappedLog"})
+    String implementation;
+
+    Datastore datastore;
+
+    Path directory;
+
+    String[] ids;
+
+    House house;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        if (implementation.equals("MappedLog")) {
+            directory = Files.createTempDirectory("datastore-benchmark");
+            datastore = new MappedLogDatastoreImpl(directory, 64 << 20, Duration.ofSeconds(1), 0.5);
+        } else if (implementation.equals("HashMapJson")) {
+            datastore = new HashMapDatastoreImpl(HOUSES, new JsonValueCodec(new ObjectMapper()));
+        } else {
+            datastore = new HashMapDatastoreImpl(HOUSES);
+        }
+        house = Houses.house(false, "ENVELOPE");
+        ids = new String[HOUSES];
+        for (int i = 0; i < HOUSES; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            datastore.put(ids[i], house);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        datastore.close();
+        if (directory != null) {
+            try (var files = Files.walk(directory)) {
+                for (var file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public House get(Cursor cursor) {
+        return datastore.get(ids[cursor.next++ % HOUSES], House.class);
+    }
+
+    @Benchmark
+    public House putThenGet(Cursor cursor) {
+        var id = ids[cursor.next++ % HOUSES];
+        datastore.put(id, house);
+        return datastore.get(id, House.class);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public House getContended(Cursor cursor) {
+        return datastore.get(ids[cursor.next++ % HOUSES], House.class);
+    }
+
+    /**
+     * Concurrent writers, where the log store can share one sync between several puts.
+     */
+    @Benchmark
+    @Threads(8)
+    public void putContended(Cursor cursor) {
+        datastore.put(ids[cursor.next++ % HOUSES], house);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.appengine.quarkus.benchmark;
+
+import com.example.appengine.quarkus.EnergyCalculator;
+import com.example.appengine.quarkus.ScenarioOptimizer;
+import com.example.appengine.quarkus.model.EnergyAnalysis;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.ImprovementScenario;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnergyCalculatorBenchmark {
+
+    @Param({"false", "true"})
+    boolean isApartment;
+
+    @Param({"NONE", "ENVELOPE", "ALL"})
+    String improvements;
+
+    House house;
+
+    @Setup
+    public void setUp() {
+        house = Houses.house(isApartment, improvements);
+    }
+
+    @Benchmark
+    public EnergyAnalysis analyze() {
+        return EnergyCalculator.analyze(house, 1.2014, 0.300);
+    }
+
+    @Benchmark
+    public List<ImprovementScenario> scenarios() {
+        return ScenarioOptimizer.paretoFront(house, 1.2014, 0.300);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.appengine.quarkus.benchmark;
+
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Sample houses shared by the benchmarks.
+ */
+final class Houses {
+    private Houses() {}
+
+    static House house(boolean isApartment, String improvements) {
+        var house = new House();
+        house.area = isApartment ? 70.0 : 160.0;
+        house.floors = isApartment ? 1 : 2;
+        house.constructionYear = 1987;
+        house.energyGrade = "D";
+        house.municipalityNumber = "0301";
+        house.isApartment = isApartment;
+        house.improvements = improvements(improvements);
+        return house;
+    }
+
+    static List<Improvement> improvements(String name) {
+        switch (name) {
+            case "NONE":
+                return new ArrayList<>();
+            case "ENVELOPE":
+                return new ArrayList<>(EnumSet.of(Improvement.WINDOWS, Improvement.WALL_ISOLATION, Improvement.TARGETED_ISOLATION));
+            case "ALL":
+                return new ArrayList<>(EnumSet.allOf(Improvement.class));
+            default:
+                throw new IllegalArgumentException("Unknown improvement set " + name);
+        }
+    }
+}
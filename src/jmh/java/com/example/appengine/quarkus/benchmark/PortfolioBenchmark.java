@@ -0,0 +1,48 @@
+package com.example.appengine.quarkus.benchmark;
+
+import com.example.appengine.quarkus.PortfolioAnalyzer;
+import com.example.appengine.quarkus.Tariff;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortfolioBenchmark {
+
+    @Param({"1000000"})
+    int houses;
+
+    ForkJoinPool pool;
+
+    PortfolioAnalyzer analyzer;
+
+    PortfolioAnalyzer.Columns columns;
+
+    @Setup
+    public void setUp() {
+        pool = new ForkJoinPool();
+        analyzer = new PortfolioAnalyzer(pool);
+        columns = new PortfolioAnalyzer.Columns(houses);
+        var tariff = Tariff.flat(1.2014, 0.300);
+        String[] improvements = {"NONE", "ENVELOPE", "ALL"};
+        for (int i = 0; i < houses; i++) {
+            columns.add(Houses.house(i % 4 == 0, improvements[i % improvements.length]), tariff);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public PortfolioAnalyzer.Result analyze() {
+        return analyzer.analyze(columns);
+    }
+}
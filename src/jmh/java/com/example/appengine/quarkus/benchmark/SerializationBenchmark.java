@@ -0,0 +1,50 @@
+package com.example.appengine.quarkus.benchmark;
+
+import com.example.appengine.quarkus.EnergyCalculator;
+import com.example.appengine.quarkus.model.EnergyAnalysis;
+import com.example.appengine.quarkus.model.House;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    ObjectMapper mapper;
+
+    House house;
+
+    byte[] houseJson;
+
+    EnergyAnalysis analysis;
+
+    @Setup
+    public void setUp() throws IOException {
+        mapper = new ObjectMapper();
+        house = Houses.house(false, "ALL");
+        houseJson = mapper.writeValueAsBytes(house);
+        analysis = EnergyCalculator.analyze(Houses.house(false, "ALL"), 1.2014, 0.300);
+    }
+
+    @Benchmark
+    public byte[] writeHouse() throws IOException {
+        return mapper.writeValueAsBytes(house);
+    }
+
+    @Benchmark
+    public House readHouse() throws IOException {
+        return mapper.readValue(houseJson, House.class);
+    }
+
+    @Benchmark
+    public byte[] writeEnergyAnalysis() throws IOException {
+        return mapper.writeValueAsBytes(analysis);
+    }
+}
@@ -26,4 +26,14 @@ public class BaseResource {
         return text;
     }
 
+    /**
+     * App Engine calls this before routing traffic to a new instance. The datastores are opened at startup,
+     * so once this answers the instance is ready.
+     */
+    @GET
+    @Path("_ah/warmup")
+    @Operation(hidden = true)
+    public void warmup() {
+    }
+
 }
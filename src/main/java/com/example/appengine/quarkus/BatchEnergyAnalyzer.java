@@ -0,0 +1,77 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyAnalysis;
+import com.example.appengine.quarkus.model.House;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs {@link EnergyCalculator#analyze} for many houses on a fork-join pool.
+ * Results are handed out in input order as soon as they are ready, with at most
+ * {@code maxInFlight} analyses queued ahead of the consumer.
+ */
+public class BatchEnergyAnalyzer {
+
+    private final ForkJoinPool pool;
+
+    private final int maxInFlight;
+
+    public BatchEnergyAnalyzer(ForkJoinPool pool, int maxInFlight) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool is missing");
+        }
+
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in flight must be positive, was " + maxInFlight);
+        }
+
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Lazily analyzes the given houses, each with the tariff given for it. A supplier returning null yields a
+     * null analysis.
+     */
+    public Iterator<EnergyAnalysis> analyze(List<Supplier<House>> houses, Function<House, Tariff> tariffs) {
+        return new Iterator<>() {
+
+            private final Deque<ForkJoinTask<EnergyAnalysis>> inFlight = new ArrayDeque<>();
+
+            private int next = 0;
+
+            private void fill() {
+                while (next < houses.size() && inFlight.size() < maxInFlight) {
+                    var house = houses.get(next++);
+                    inFlight.addLast(pool.submit(() -> {
+                        var value = house.get();
+                        return value == null ? null : EnergyCalculator.analyze(value, tariffs.apply(value));
+                    }));
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                fill();
+                return !inFlight.isEmpty();
+            }
+
+            @Override
+            public EnergyAnalysis next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return inFlight.removeFirst().join();
+            }
+        };
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.DatastoreOverloadedException;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * A request shed because the datastore is overloaded is answered right away, telling the client when to
+ * try again instead of keeping it waiting.
+ */
+@Provider
+public class DatastoreOverloadedExceptionMapper implements ExceptionMapper<DatastoreOverloadedException> {
+
+    @Override
+    public Response toResponse(DatastoreOverloadedException exception) {
+        // Retry-After is given in whole seconds
+        var seconds = Math.max(1, (exception.getRetryAfter().toMillis() + 999) / 1000);
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, seconds)
+                .build();
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.AdaptiveLimiter;
+import com.example.appengine.quarkus.datastore.AdmissionControlledDatastore;
+import com.example.appengine.quarkus.datastore.CachingDatastore;
+import com.example.appengine.quarkus.datastore.Datastore;
+import com.example.appengine.quarkus.datastore.FirestoreDatastoreImpl;
+import com.example.appengine.quarkus.datastore.HashMapDatastoreImpl;
+import com.example.appengine.quarkus.datastore.HouseValueCodec;
+import com.example.appengine.quarkus.datastore.JsonValueCodec;
+import com.example.appengine.quarkus.datastore.MappedLogDatastoreImpl;
+import com.example.appengine.quarkus.datastore.MeteredDatastore;
+import com.example.appengine.quarkus.datastore.ValueCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.Startup;
+import io.quarkus.runtime.configuration.MemorySize;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Creates the configured datastores once, when the application starts. Opening a datastore can take a
+ * while, Firestore sets up its channel and the mapped log replays its segments, so it is done before
+ * the first request instead of during it.
+ */
+@Singleton
+public class DatastoreProducer {
+
+    private static final Logger LOG = Logger.getLogger(DatastoreProducer.class);
+
+    static final String COLLECTION = "houses";
+
+    private static final String HISTORY_COLLECTION = "houseHistory";
+
+    private static final String ROLLUP_COLLECTION = "municipalityRollups";
+
+    @ConfigProperty(name = "store.impl")
+    String storeImplementation;
+
+    @ConfigProperty(name = "store.hashmap.capacity")
+    Integer hashMapCapacity;
+
+    @ConfigProperty(name = "store.hashmap.codec")
+    String hashMapCodec;
+
+    @ConfigProperty(name = "store.log.directory")
+    String logDirectory;
+
+    @ConfigProperty(name = "store.log.segment-size")
+    MemorySize logSegmentSize;
+
+    @ConfigProperty(name = "store.log.compaction-interval")
+    Duration logCompactionInterval;
+
+    @ConfigProperty(name = "store.log.compaction-threshold")
+    Double logCompactionThreshold;
+
+    @ConfigProperty(name = "store.cache.enabled")
+    Boolean cacheEnabled;
+
+    @ConfigProperty(name = "store.cache.size")
+    Integer cacheSize;
+
+    @ConfigProperty(name = "store.cache.ttl")
+    Duration cacheTtl;
+
+    @ConfigProperty(name = "store.cache.write-behind")
+    Boolean cacheWriteBehind;
+
+    @ConfigProperty(name = "store.cache.max-pending-writes")
+    Integer cacheMaxPendingWrites;
+
+    @ConfigProperty(name = "store.cache.flush-interval")
+    Duration cacheFlushInterval;
+
+    @ConfigProperty(name = "store.admission.enabled")
+    Boolean admissionEnabled;
+
+    @ConfigProperty(name = "store.admission.min-limit")
+    Integer admissionMinLimit;
+
+    @ConfigProperty(name = "store.admission.read.max-limit")
+    Integer admissionReadMaxLimit;
+
+    @ConfigProperty(name = "store.admission.read.queue-size")
+    Integer admissionReadQueueSize;
+
+    @ConfigProperty(name = "store.admission.write.max-limit")
+    Integer admissionWriteMaxLimit;
+
+    @ConfigProperty(name = "store.admission.write.queue-size")
+    Integer admissionWriteQueueSize;
+
+    @ConfigProperty(name = "store.admission.bulk.max-limit")
+    Integer admissionBulkMaxLimit;
+
+    @ConfigProperty(name = "store.admission.bulk.queue-size")
+    Integer admissionBulkQueueSize;
+
+    @ConfigProperty(name = "store.admission.max-wait")
+    Duration admissionMaxWait;
+
+    @ConfigProperty(name = "store.admission.retry-after")
+    Duration admissionRetryAfter;
+
+    @ConfigProperty(name = "GOOGLE_CLOUD_PROJECT")
+    Optional<String> projectId;
+
+    @ConfigProperty(name = "store.metrics.log-sample-rate")
+    Double logSampleRate;
+
+    @Inject
+    ObjectMapper mapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Produces
+    @Singleton
+    @Startup
+    Datastore houses() {
+        LOG.infof("datastore implementation=%s projectId=%s", storeImplementation, projectId.orElse(null));
+        return createDatastore(COLLECTION, HouseResource.MUNICIPALITY_NUMBER);
+    }
+
+    @Produces
+    @Singleton
+    @Startup
+    HouseHistory history(Datastore houses) {
+        return new HouseHistory(createDatastore(HISTORY_COLLECTION, HouseHistory.HOUSE_ID), houses, mapper);
+    }
+
+    @Produces
+    @Singleton
+    @Startup
+    MunicipalityRollups rollups() {
+        return new MunicipalityRollups(createDatastore(ROLLUP_COLLECTION, MunicipalityRollups.LEVEL));
+    }
+
+    void close(@Disposes Datastore datastore) {
+        datastore.close();
+    }
+
+    void close(@Disposes HouseHistory history) {
+        history.close();
+    }
+
+    void close(@Disposes MunicipalityRollups rollups) {
+        rollups.close();
+    }
+
+    /**
+     * Creates the configured datastore for a collection.
+     */
+    private Datastore createDatastore(String collection, String... indexedFields) {
+        switch (storeImplementation) {
+            case "Firestore":
+                try {
+                    return remote(new FirestoreDatastoreImpl(
+                            projectId.orElseThrow(() -> new IllegalStateException("GOOGLE_CLOUD_PROJECT")),
+                            collection
+                    ), collection);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            case "HashMap":
+                return metered(new HashMapDatastoreImpl(hashMapCapacity, createCodec(), indexedFields), collection);
+            case "MappedLog":
+                if (logSegmentSize.asLongValue() < 1 || logSegmentSize.asLongValue() > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Property store.log.segment-size must be between 1 byte and 2G, was " + logSegmentSize.asLongValue());
+                }
+
+                try {
+                    return metered(new MappedLogDatastoreImpl(Paths.get(logDirectory, collection),
+                            (int) logSegmentSize.asLongValue(), logCompactionInterval, logCompactionThreshold,
+                            indexedFields), collection);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            default:
+                throw new IllegalStateException("Property store.impl not valid, was " + storeImplementation);
+        }
+    }
+
+    /**
+     * Decorates a datastore backed by a remote service. With the cache enabled both the cache and the
+     * datastore behind it are metered, so time spent in Firestore can be told apart from cache hits.
+     * Admission control sits between the cache and Firestore, so cache hits are never shed, and the
+     * limits adapt to the latency of Firestore alone.
+     */
+    Datastore remote(Datastore datastore, String collection) {
+        var remote = metered(datastore, collection);
+        if (admissionEnabled) {
+            remote = admissionControlled(remote, collection);
+        }
+        if (cacheEnabled) {
+            var cache = new CachingDatastore(remote, cacheSize, cacheTtl,
+                    cacheWriteBehind, cacheMaxPendingWrites, cacheFlushInterval);
+            MetricsConfiguration.monitorCache(registry, "datastore." + collection, cache,
+                    CachingDatastore::hits, CachingDatastore::misses, CachingDatastore::size);
+            remote = metered(cache, collection);
+        }
+        return remote;
+    }
+
+    private ValueCodec createCodec() {
+        switch (hashMapCodec) {
+            case "Binary":
+                return new HouseValueCodec(mapper);
+            case "Json":
+                return new JsonValueCodec(mapper);
+            default:
+                throw new IllegalStateException("Property store.hashmap.codec not valid, was " + hashMapCodec);
+        }
+    }
+
+    private Datastore admissionControlled(Datastore datastore, String collection) {
+        var reads = new AdaptiveLimiter("read", admissionMinLimit, admissionReadMaxLimit, admissionReadQueueSize,
+                admissionMaxWait, admissionRetryAfter);
+        var writes = new AdaptiveLimiter("write", admissionMinLimit, admissionWriteMaxLimit, admissionWriteQueueSize,
+                admissionMaxWait, admissionRetryAfter);
+        var bulk = new AdaptiveLimiter("bulk", admissionMinLimit, admissionBulkMaxLimit, admissionBulkQueueSize,
+                admissionMaxWait, admissionRetryAfter);
+        MetricsConfiguration.monitorLimiter(registry, collection, "read", reads);
+        MetricsConfiguration.monitorLimiter(registry, collection, "write", writes);
+        MetricsConfiguration.monitorLimiter(registry, collection, "bulk", bulk);
+        return new AdmissionControlledDatastore(datastore, reads, writes, bulk);
+    }
+
+    private Datastore metered(Datastore datastore, String collection) {
+        return new MeteredDatastore(datastore, registry, collection, logSampleRate);
+    }
+}
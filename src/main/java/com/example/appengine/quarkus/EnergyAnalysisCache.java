@@ -0,0 +1,147 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyAnalysis;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Least recently used cache of energy analyses per house id. An entry is only used if the
+ * house content and tariff it was computed from are equal to the ones asked for, so a house
+ * changed behind our back is never served a stale analysis.
+ */
+public class EnergyAnalysisCache {
+
+    /** Evicts the least recently used entries beyond the max size, reads do not lock the whole cache */
+    private final ConcurrentMap<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public EnergyAnalysisCache(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Max size can not be negative, was " + maxSize);
+        }
+
+        this.entries = CacheBuilder.newBuilder().maximumSize(maxSize).<String, Entry>build().asMap();
+    }
+
+    public EnergyAnalysis analyze(String id, House house, Tariff tariff) {
+        var key = new Key(house, tariff);
+
+        var entry = entries.get(id);
+        if (entry != null && entry.key.equals(key)) {
+            hits.increment();
+            return entry.analysis;
+        }
+
+        misses.increment();
+        var analysis = EnergyCalculator.analyze(house, tariff);
+        entries.put(id, new Entry(key, analysis));
+        return analysis;
+    }
+
+    /**
+     * Analyzes a house that has been changed from {@code previous}. If the two only differ in their
+     * improvements and the analysis of {@code previous} is cached, the features the changed improvements
+     * do not affect are reused from it.
+     */
+    public EnergyAnalysis reanalyze(String id, House previous, House house, Tariff tariff) {
+        var key = new Key(house, tariff);
+
+        var entry = entries.get(id);
+        if (entry == null || !entry.key.equals(new Key(previous, tariff)) || !entry.key.equalsExceptImprovements(key)) {
+            return analyze(id, house, tariff);
+        }
+
+        misses.increment();
+        // The improvements in one of the houses but not in both
+        var changed = EnumSet.copyOf(entry.key.improvements);
+        changed.addAll(key.improvements);
+        var kept = EnumSet.copyOf(entry.key.improvements);
+        kept.retainAll(key.improvements);
+        changed.removeAll(kept);
+
+        var analysis = EnergyCalculator.reanalyze(entry.analysis, house, tariff, changed);
+        entries.put(id, new Entry(key, analysis));
+        return analysis;
+    }
+
+    public void invalidate(String id) {
+        entries.remove(id);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final Key key;
+        final EnergyAnalysis analysis;
+
+        Entry(Key key, EnergyAnalysis analysis) {
+            this.key = key;
+            this.analysis = analysis;
+        }
+    }
+
+    /**
+     * The inputs the analysis depends on, normalized the same way {@link EnergyCalculator} does.
+     */
+    private static class Key {
+        final Double area;
+        final Integer floors;
+        final Integer constructionYear;
+        final boolean isApartment;
+        final EnumSet<Improvement> improvements;
+        /** Tariffs are replaced rather than changed, so they are compared by identity */
+        final Tariff tariff;
+
+        Key(House house, Tariff tariff) {
+            this.area = house.area;
+            this.floors = house.floors == null ? 1 : house.floors;
+            this.constructionYear = house.constructionYear;
+            this.isApartment = house.isApartment != null && house.isApartment;
+            this.improvements = EnumSet.noneOf(Improvement.class);
+            if (house.improvements != null) {
+                house.improvements.stream().filter(Objects::nonNull).forEach(improvements::add);
+            }
+            this.tariff = tariff;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return equalsExceptImprovements(key) && improvements.equals(key.improvements);
+        }
+
+        boolean equalsExceptImprovements(Key key) {
+            return isApartment == key.isApartment
+                    && Objects.equals(area, key.area)
+                    && Objects.equals(floors, key.floors)
+                    && Objects.equals(constructionYear, key.constructionYear)
+                    && tariff == key.tariff;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(area, floors, constructionYear, isApartment, improvements, System.identityHashCode(tariff));
+        }
+    }
+}
@@ -1,61 +1,251 @@
 package com.example.appengine.quarkus;
 
 import com.example.appengine.quarkus.model.EnergyAnalysis;
-import com.example.appengine.quarkus.model.EnergyFeature;
+import com.example.appengine.quarkus.model.EnergyFeatureType;
 import com.example.appengine.quarkus.model.House;
 import com.example.appengine.quarkus.model.Improvement;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.example.appengine.quarkus.model.EnergyFeatureType.*;
 import static com.example.appengine.quarkus.util.Math.lerp;
 import static java.lang.Math.*;
 
+/**
+ * Estimates the yearly energy use of a house per {@link EnergyFeatureType}.
+ * <p>
+ * The effect of the improvements is fixed per combination of improvements, so a {@link Plan} is
+ * compiled once for every combination and house type. Evaluating a plan writes the kWh per feature
+ * into a primitive array indexed by {@link EnergyFeatureType#ordinal()}, without allocating.
+ */
 public class EnergyCalculator {
 
-    private final Double pricePerKwH;
-    private final Double CO2KiloPerKwH;
+    /** Length of the array written by {@link #evaluate} */
+    public static final int FEATURE_COUNT = EnergyFeatureType.values().length;
 
-    public EnergyCalculator(Double pricePerKwH, Double CO2KiloPerKwH) {
-        this.pricePerKwH = pricePerKwH;
-        this.CO2KiloPerKwH = CO2KiloPerKwH;
+    /** Number of distinct improvement masks, see {@link #improvementMask} */
+    public static final int IMPROVEMENT_MASKS = 1 << Improvement.values().length;
+
+    /** Value to pass to {@link #evaluate} for a house with no known construction year */
+    public static final int UNKNOWN_YEAR = Integer.MIN_VALUE;
+
+    private static final EnergyFeatureType[] STANDALONE_ENVELOPE = {CEILINGS, WALLS, FLOORS, WINDOWS, HEATING_UNIT};
+
+    private static final EnergyFeatureType[] APARTMENT_ENVELOPE = {WALLS, WINDOWS, HEATING_UNIT};
+
+    private static final EnergyFeatureType[] APPLIANCES = {FRIDGE, WASHING_MACHINE, CLOTHES_DRYER, SHOWER};
+
+    /**
+     * The features whose energy each improvement changes, as applied by {@link Plan}. Heating depends on every
+     * weight an improvement changes. Apartments leave out the envelope improvements, so this is a superset for them.
+     */
+    private static final Map<Improvement, Set<EnergyFeatureType>> DEPENDENTS = new EnumMap<>(Map.of(
+            Improvement.HEAT_EXCHANGE_UNIT, EnumSet.of(HEATING_UNIT),
+            Improvement.WALL_ISOLATION, EnumSet.of(WALLS, HEATING_UNIT),
+            Improvement.TARGETED_ISOLATION, EnumSet.of(WALLS, HEATING_UNIT),
+            Improvement.WINDOWS, EnumSet.of(WINDOWS, HEATING_UNIT),
+            Improvement.SOLAR_CELLS, EnumSet.of(HEATING_UNIT),
+            Improvement.GEOTHERMAL, EnumSet.of(HEATING_UNIT),
+            Improvement.DISTRICT_HEATING, EnumSet.of(HEATING_UNIT),
+            Improvement.SHOWER, EnumSet.of(SHOWER)
+    ));
+
+    private static final Plan[] STANDALONE_PLANS = new Plan[IMPROVEMENT_MASKS];
+
+    private static final Plan[] APARTMENT_PLANS = new Plan[IMPROVEMENT_MASKS];
+
+    static {
+        for (int mask = 0; mask < IMPROVEMENT_MASKS; mask++) {
+            STANDALONE_PLANS[mask] = new Plan(false, mask);
+            APARTMENT_PLANS[mask] = new Plan(true, mask);
+        }
     }
 
+    /** Registered globally since the calculator is static, only {@link #analyze} is timed */
+    private static final Timer ANALYZE_TIMER = Metrics.timer("energy.analyze");
+
+    private EnergyCalculator() {}
+
     public static EnergyAnalysis analyze(House house, Double pricePerKwH, Double CO2KiloPerKwH) {
+        return analyze(house, Tariff.flat(pricePerKwH, CO2KiloPerKwH));
+    }
+
+    /**
+     * Leaves the house as it is, missing floors and apartment flags are only defaulted for the analysis, so a
+     * house can be analyzed while it is being stored or read by other tasks.
+     */
+    public static EnergyAnalysis analyze(House house, Tariff tariff) {
+        var start = System.nanoTime();
+        try {
+            return analyzeUntimed(house, tariff);
+        } finally {
+            ANALYZE_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The features whose energy may change when the improvement is added or removed.
+     */
+    public static Set<EnergyFeatureType> affectedBy(Improvement improvement) {
+        return DEPENDENTS.get(improvement);
+    }
+
+    /**
+     * Analyzes a house that only differs in the given improvements from the house {@code previous} was
+     * analyzed for, with the same tariff. Features that do not depend on the changed improvements are
+     * taken from {@code previous}, only the others are created again.
+     */
+    public static EnergyAnalysis reanalyze(EnergyAnalysis previous, House house, Tariff tariff, Collection<Improvement> changed) {
+        var start = System.nanoTime();
+        try {
+            var affected = EnumSet.noneOf(EnergyFeatureType.class);
+            changed.forEach(improvement -> affected.addAll(affectedBy(improvement)));
+
+            var energy = new double[FEATURE_COUNT];
+            if (!affected.isEmpty()) {
+                evaluate(
+                        house.isApartment != null && house.isApartment,
+                        improvementMask(house.improvements),
+                        house.area == null ? Double.NaN : house.area,
+                        house.floors == null ? 1 : house.floors,
+                        house.constructionYear == null ? UNKNOWN_YEAR : house.constructionYear,
+                        energy,
+                        0
+                );
+            }
+
+            var analysis = new EnergyAnalysis();
+            analysis.features = new ArrayList<>(previous.features.size());
+            for (var feature : previous.features) {
+                var type = feature.type;
+                analysis.features.add(affected.contains(type)
+                        ? type.createFeature(energy[type.ordinal()], tariff.price(type), tariff.pollution(type))
+                        : feature);
+            }
+            return analysis;
+        } finally {
+            ANALYZE_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
 
-        var calculator = new EnergyCalculator(pricePerKwH, CO2KiloPerKwH);
+    private static EnergyAnalysis analyzeUntimed(House house, Tariff tariff) {
+        var isApartment = house.isApartment != null && house.isApartment;
+        var energy = new double[FEATURE_COUNT];
+        var mask = improvementMask(house.improvements);
+        var plan = plan(isApartment, mask);
+        evaluate(
+                isApartment,
+                mask,
+                house.area == null ? Double.NaN : house.area,
+                house.floors == null ? 1 : house.floors,
+                house.constructionYear == null ? UNKNOWN_YEAR : house.constructionYear,
+                energy,
+                0
+        );
 
         var analysis = new EnergyAnalysis();
-        analysis.features = new ArrayList<>();
+        analysis.features = new ArrayList<>(plan.envelope.length + APPLIANCES.length);
 
-        if (house.floors == null) {
-            house.floors = 1;
+        if (house.area != null) {
+            for (var type : plan.envelope) {
+                analysis.features.add(type.createFeature(energy[type.ordinal()], tariff.price(type), tariff.pollution(type)));
+            }
         }
 
-        if (house.isApartment == null) {
-            house.isApartment = false;
+        for (var type : APPLIANCES) {
+            analysis.features.add(type.createFeature(energy[type.ordinal()], tariff.price(type), tariff.pollution(type)));
         }
 
-        if (!house.isApartment) {
-            calculator.analyzeStandaloneHouse(house, analysis);
-        } else {
-            calculator.analyseApartment(house, analysis);
+        return analysis;
+    }
+
+    /**
+     * Writes the yearly kWh per feature of a house into {@code energy}, at {@code offset} plus
+     * {@link EnergyFeatureType#ordinal()}. Features the house does not have are set to NaN.
+     *
+     * @param area             the area in square meters, NaN if unknown
+     * @param floors           the number of floors
+     * @param constructionYear the construction year, {@link #UNKNOWN_YEAR} if unknown
+     */
+    public static void evaluate(boolean isApartment, int improvementMask, double area, int floors, int constructionYear, double[] energy, int offset) {
+        evaluate(isApartment, null, improvementMask, area, floors, constructionYear, energy, offset);
+    }
+
+    /**
+     * Evaluates one house with each of the given combinations of improvements, writing {@link #FEATURE_COUNT}
+     * values per combination into {@code energy}, in the order of {@code improvementMasks}. The parts of the
+     * calculation that do not depend on the improvements are only done once.
+     *
+     * @see #evaluate(boolean, int, double, int, int, double[], int)
+     */
+    public static void evaluate(boolean isApartment, int[] improvementMasks, double area, int floors, int constructionYear, double[] energy) {
+        evaluate(isApartment, improvementMasks, 0, area, floors, constructionYear, energy, 0);
+    }
+
+    /**
+     * Evaluates the given masks, or the single mask if masks is null.
+     */
+    private static void evaluate(boolean isApartment, int[] masks, int mask, double area, int floors, int constructionYear, double[] energy, int offset) {
+        var base = Double.NaN;
+        var roof = Double.NaN;
+        var floor = Double.NaN;
+        var window = Double.NaN;
+        var wall = Double.NaN;
+
+        if (!Double.isNaN(area)) {
+            var footprint = area / floors;
+            var wallLength = sqrt(footprint);
+            var wallHeight = floors * 2.6;
+            var weightedFloorSize = 2 * footprint;
+            var weightedRoofSize = 2 * footprint;
+            var weightedWallSize = 0.3 * 4 * wallHeight * wallLength;
+            var weightedWindowSize = 0.7 * 4 * wallHeight * wallLength;
+            var surface = weightedFloorSize + weightedRoofSize + weightedWallSize + weightedWindowSize;
+
+            roof = weightedRoofSize / surface;
+            floor = weightedFloorSize / surface;
+            window = weightedWindowSize / surface;
+            wall = weightedWallSize / surface;
+
+            if (abs(roof + floor + window + wall - 1) > 0.0001) {
+                throw new IllegalStateException("Invalid weights");
+            }
+
+            base = energyByAreaAndYearHeuristic(area, constructionYear);
         }
 
-        calculator.analyseHouse(house, analysis);
+        var count = masks == null ? 1 : masks.length;
+        for (int i = 0; i < count; i++) {
+            plan(isApartment, masks == null ? mask : masks[i])
+                    .apply(area, base, roof, floor, window, wall, energy, offset + i * FEATURE_COUNT);
+        }
+    }
 
-        return analysis;
+    public static int improvementMask(Collection<Improvement> improvements) {
+        var mask = 0;
+        if (improvements != null) {
+            for (var improvement : improvements) {
+                if (improvement != null) {
+                    mask |= 1 << improvement.ordinal();
+                }
+            }
+        }
+        return mask;
     }
 
-    private List<EnergyFeature> listOf(EnergyFeature... items) {
-        return Stream.of(items).filter(Objects::nonNull).collect(Collectors.toList());
+    private static Plan plan(boolean isApartment, int improvementMask) {
+        return isApartment ? APARTMENT_PLANS[improvementMask] : STANDALONE_PLANS[improvementMask];
     }
 
-    private double energyByConstructionYearHeuristic(int year) {
+    private static double energyByConstructionYearHeuristic(int year) {
         var startYear = 1993.0;
         var startKwh = 18000.0;
         var endYear = 2015.0;
@@ -64,7 +254,7 @@ public class EnergyCalculator {
         return lerp(startKwh / (endKwh), 1.0, (year - startYear) / (endYear - startYear));
     }
 
-    private double energyByAreaHeuristic(double area, boolean isApartment) {
+    private static double energyByAreaHeuristic(double area, boolean isApartment) {
         var typeFactor = isApartment ? 0.5 : 1.0;
 
         var bigUse = 40000.0;
@@ -77,158 +267,142 @@ public class EnergyCalculator {
         return typeFactor * lerp(smallUse, bigUse, interpolation);
     }
 
-    private static class Weights {
-        Double roof;
-        Double floor;
-        Double window;
-        Double wall;
-
-        double sum() {
-            return roof + floor + window + wall;
-        }
-    }
-
-    private Weights weights(double area, int floors) {
-        var footprint = area / floors;
-        var wallLength = sqrt(footprint);
-        var wallHeight = floors * 2.6;
-        var weightedFloorSize = 2 * footprint;
-        var weightedRoofSize = 2 * footprint;
-        var weightedWallSize = 0.3 * 4 * wallHeight * wallLength;
-        var weightedWindowSize = 0.7 * 4 * wallHeight * wallLength;
-        var surface = weightedFloorSize + weightedRoofSize + weightedWallSize + weightedWindowSize;
-
-        var weights = new Weights();
-        weights.roof = weightedRoofSize / surface;
-        weights.floor = weightedFloorSize / surface;
-        weights.window = weightedWindowSize / surface;
-        weights.wall = weightedWallSize / surface;
-
-
-        if (abs(weights.sum() - 1) > 0.0001) {
-            throw new IllegalStateException("Invalid weights");
-        }
-
-        return weights;
-    }
-
-    private Double energyByAreaAndYearHeuristic(Double area, Integer constructionYear) {
-        if (area != null && constructionYear != null) {
+    private static double energyByAreaAndYearHeuristic(double area, int constructionYear) {
+        if (constructionYear != UNKNOWN_YEAR) {
             return energyByAreaHeuristic(area, false) * energyByConstructionYearHeuristic(constructionYear);
-        } else if (area != null) {
-            return energyByAreaHeuristic(area, false);
         } else {
-            return null;
+            return energyByAreaHeuristic(area, false);
         }
     }
 
-    private double solarCellBenefit(double houseArea) {
+    private static double solarCellBenefit(double houseArea) {
         var daysInYear = 365.24;
         var inverseSizeScale = 1 / 60.0;
         var wattsPerPanel = 100.0;
         return houseArea * daysInYear * inverseSizeScale * wattsPerPanel;
     }
 
-    private double geoBenefit() {
+    private static double geoBenefit() {
         var daysInYear = 365.24;
         var wattBenefit = 1000;
 
         return wattBenefit * daysInYear;
     }
 
-    private double heatExchangeFactor() {
+    private static double heatExchangeFactor() {
         return 0.5;
     }
 
-    private double districtHeatingFactor() {
+    private static double districtHeatingFactor() {
         return 0.5;
     }
 
-    private double windowImprovementFactor() {
+    private static double windowImprovementFactor() {
         return 0.35;
     }
 
-    private double wallIsolationImprovementFactor() {
+    private static double wallIsolationImprovementFactor() {
         return 0.25;
     }
 
-    private double targetedIsolationImprovementFactor() {
+    private static double targetedIsolationImprovementFactor() {
         return 0.80;
     }
 
-    void analyzeStandaloneHouse(House house, EnergyAnalysis analysis) {
-
-        var weights = house.area != null && house.floors != null ? weights(house.area, house.floors) : null;
-        Double energy = energyByAreaAndYearHeuristic(house.area, house.constructionYear);
-
-        var energyUsage = energy;
-
-        if (energyUsage != null && house.improvements != null && house.improvements.contains(Improvement.SOLAR_CELLS)) {
-            var solarCellBenefit = solarCellBenefit(house.area);
-            energyUsage = max(0.0, energyUsage - solarCellBenefit);
-        }
+    private static double showerEnergy(boolean hasShowerImprovement) {
+        return hasShowerImprovement ? 1100.0 : 2370.0;
+    }
 
-        if (energyUsage != null && house.improvements != null && house.improvements.contains(Improvement.GEOTHERMAL)) {
-            var geoBenefit = geoBenefit();
-            energyUsage = max(0.0, energyUsage - geoBenefit);
-        }
+    private static boolean has(int mask, Improvement improvement) {
+        return (mask & (1 << improvement.ordinal())) != 0;
+    }
 
-        if (energyUsage != null && house.improvements != null && house.improvements.contains(Improvement.HEAT_EXCHANGE_UNIT)) {
-            energyUsage *= heatExchangeFactor();
+    /**
+     * The evaluation for one house type and combination of improvements. Factors for improvements
+     * the house does not have are 1.0, which leaves the result bit for bit unchanged.
+     */
+    private static final class Plan {
+        final boolean isApartment;
+        final EnergyFeatureType[] envelope;
+        final boolean solarCells;
+        final boolean geothermal;
+        final double heatExchangeFactor;
+        final double districtHeatingFactor;
+        final double windowFactor;
+        final double targetedIsolationFactor;
+        final double wallIsolationFactor;
+        final double showerEnergy;
+
+        Plan(boolean isApartment, int mask) {
+            this.isApartment = isApartment;
+            this.envelope = isApartment ? APARTMENT_ENVELOPE : STANDALONE_ENVELOPE;
+            this.solarCells = has(mask, Improvement.SOLAR_CELLS);
+            this.geothermal = has(mask, Improvement.GEOTHERMAL);
+            this.heatExchangeFactor = has(mask, Improvement.HEAT_EXCHANGE_UNIT) ? EnergyCalculator.heatExchangeFactor() : 1.0;
+            this.districtHeatingFactor = has(mask, Improvement.DISTRICT_HEATING) ? EnergyCalculator.districtHeatingFactor() : 1.0;
+            this.windowFactor = has(mask, Improvement.WINDOWS) ? windowImprovementFactor() : 1.0;
+            this.targetedIsolationFactor = has(mask, Improvement.TARGETED_ISOLATION) ? targetedIsolationImprovementFactor() : 1.0;
+            this.wallIsolationFactor = has(mask, Improvement.WALL_ISOLATION) ? wallIsolationImprovementFactor() : 1.0;
+            this.showerEnergy = EnergyCalculator.showerEnergy(has(mask, Improvement.SHOWER));
         }
 
-        if (energyUsage != null && house.improvements != null && house.improvements.contains(Improvement.DISTRICT_HEATING)) {
-            energyUsage *= districtHeatingFactor();
+        /**
+         * Writes the energy per feature given the parts of the calculation that do not depend on improvements.
+         * The area and weights are NaN if the area of the house is unknown.
+         */
+        void apply(double area, double base, double roof, double floor, double window, double wall, double[] energy, int offset) {
+            energy[offset + CEILINGS.ordinal()] = Double.NaN;
+            energy[offset + FLOORS.ordinal()] = Double.NaN;
+
+            if (Double.isNaN(area)) {
+                energy[offset + WALLS.ordinal()] = Double.NaN;
+                energy[offset + WINDOWS.ordinal()] = Double.NaN;
+                energy[offset + HEATING_UNIT.ordinal()] = Double.NaN;
+            } else if (isApartment) {
+                evaluateApartment(base, roof, floor, window, wall, energy, offset);
+            } else {
+                evaluateStandaloneHouse(area, base, roof, floor, window, wall, energy, offset);
+            }
+
+            energy[offset + FRIDGE.ordinal()] = 470.0;
+            energy[offset + WASHING_MACHINE.ordinal()] = 520.0;
+            energy[offset + CLOTHES_DRYER.ordinal()] = 470.0;
+            energy[offset + SHOWER.ordinal()] = showerEnergy;
         }
 
-        if (weights != null && house.improvements != null && house.improvements.contains(Improvement.WINDOWS)) {
-            weights.window *= windowImprovementFactor();
-        }
+        private void evaluateStandaloneHouse(double area, double base, double roof, double floor, double window, double wall, double[] energy, int offset) {
+            var usage = base;
 
-        if (weights != null && house.improvements != null && house.improvements.contains(Improvement.TARGETED_ISOLATION)) {
-            weights.wall *= targetedIsolationImprovementFactor();
-            weights.roof *= targetedIsolationImprovementFactor();
-        }
+            if (solarCells) {
+                usage = max(0.0, usage - solarCellBenefit(area));
+            }
 
-        if (weights != null && house.improvements != null && house.improvements.contains(Improvement.WALL_ISOLATION)) {
-            weights.wall *= wallIsolationImprovementFactor();
-        }
+            if (geothermal) {
+                usage = max(0.0, usage - geoBenefit());
+            }
 
-        analysis.features.addAll(listOf(
-                weights != null && energy != null ? CEILINGS.createFeature(energy * weights.floor, pricePerKwH, CO2KiloPerKwH) : null,
-                weights != null && energy != null ? WALLS.createFeature(energy * weights.wall, pricePerKwH, CO2KiloPerKwH) : null,
-                weights != null && energy != null ? FLOORS.createFeature(energy * weights.floor, pricePerKwH, CO2KiloPerKwH) : null,
-                weights != null && energy != null ? WINDOWS.createFeature(energy * weights.window, pricePerKwH, CO2KiloPerKwH) : null,
-                energyUsage != null ? HEATING_UNIT.createFeature(energyUsage * weights.sum(), pricePerKwH, CO2KiloPerKwH) : null
-        ));
-    }
+            usage *= heatExchangeFactor;
+            usage *= districtHeatingFactor;
 
-    void analyseApartment(House house, EnergyAnalysis analysis) {
+            window *= windowFactor;
+            wall *= targetedIsolationFactor;
+            roof *= targetedIsolationFactor;
+            wall *= wallIsolationFactor;
 
-        var weights = house.area != null && house.floors != null ? weights(house.area, house.floors) : null;
-        Double energy = energyByAreaAndYearHeuristic(house.area, house.constructionYear);
-
-        if (weights != null && energy != null) {
-            // Fudge energy for apartments so they don't leak to above and below
-            energy *= (weights.wall + weights.window) / (weights.sum());
+            energy[offset + CEILINGS.ordinal()] = base * floor;
+            energy[offset + WALLS.ordinal()] = base * wall;
+            energy[offset + FLOORS.ordinal()] = base * floor;
+            energy[offset + WINDOWS.ordinal()] = base * window;
+            energy[offset + HEATING_UNIT.ordinal()] = usage * (roof + floor + window + wall);
         }
 
-        analysis.features.addAll(listOf(
-                weights != null && energy != null ? WALLS.createFeature(energy * weights.wall, pricePerKwH, CO2KiloPerKwH) : null,
-                weights != null && energy != null ? WINDOWS.createFeature(energy * weights.window, pricePerKwH, CO2KiloPerKwH) : null,
-                energy != null ? HEATING_UNIT.createFeature(energy, pricePerKwH, CO2KiloPerKwH) : null
-        ));
-    }
-
-    void analyseHouse(House house, EnergyAnalysis analysis) {
-
-        var showerEnergy = house.improvements != null && house.improvements.contains(Improvement.SHOWER) ? 1100.0 : 2370.0;
+        private void evaluateApartment(double base, double roof, double floor, double window, double wall, double[] energy, int offset) {
+            // Fudge energy for apartments so they don't leak to above and below
+            base *= (wall + window) / (roof + floor + window + wall);
 
-        analysis.features.addAll(listOf(
-                FRIDGE.createFeature(470.0, pricePerKwH, CO2KiloPerKwH),
-                WASHING_MACHINE.createFeature(520.0, pricePerKwH, CO2KiloPerKwH),
-                CLOTHES_DRYER.createFeature(470.0, pricePerKwH, CO2KiloPerKwH),
-                SHOWER.createFeature(showerEnergy, pricePerKwH, CO2KiloPerKwH)
-        ));
+            energy[offset + WALLS.ordinal()] = base * wall;
+            energy[offset + WINDOWS.ordinal()] = base * window;
+            energy[offset + HEATING_UNIT.ordinal()] = base;
+        }
     }
 }
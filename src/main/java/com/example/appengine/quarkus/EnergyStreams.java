@@ -0,0 +1,151 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.Subscription;
+import com.example.appengine.quarkus.model.EnergyAnalysis;
+import org.jboss.logging.Logger;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open server-sent event streams of energy analyses. A stream sends an {@code energy} event with every
+ * analysis it is given, and a {@code deleted} event before it closes once its house is deleted.
+ * <p>
+ * A client that goes away is only noticed when sending to it fails, so every stream is sent a comment
+ * each heartbeat interval, and closed along with the datastore subscription behind it if that fails.
+ */
+public class EnergyStreams implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(EnergyStreams.class);
+
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService heartbeat;
+
+    public EnergyStreams(Duration heartbeatInterval) {
+        if (heartbeatInterval == null || heartbeatInterval.isNegative() || heartbeatInterval.isZero()) {
+            throw new IllegalArgumentException("Heartbeat interval must be a positive duration, was " + heartbeatInterval);
+        }
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "energy-stream-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeat.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval.toMillis(), heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public Stream open(SseEventSink sink, Sse sse) {
+        var stream = new Stream(sink, sse);
+        streams.add(stream);
+        return stream;
+    }
+
+    public int size() {
+        return streams.size();
+    }
+
+    private void heartbeat() {
+        for (var stream : streams) {
+            stream.heartbeat();
+        }
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdown();
+        streams.forEach(Stream::close);
+    }
+
+    public class Stream {
+
+        private final SseEventSink sink;
+
+        private final Sse sse;
+
+        private Subscription subscription;
+
+        private boolean closed;
+
+        private Stream(SseEventSink sink, Sse sse) {
+            this.sink = sink;
+            this.sse = sse;
+        }
+
+        /**
+         * The subscription the analyses come from, closed with the stream.
+         */
+        public void watching(Subscription subscription) {
+            synchronized (this) {
+                if (!closed) {
+                    this.subscription = subscription;
+                    return;
+                }
+            }
+            subscription.close();
+        }
+
+        public void analysis(EnergyAnalysis analysis) {
+            send(sse.newEventBuilder()
+                    .name("energy")
+                    .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                    .data(EnergyAnalysis.class, analysis)
+                    .build());
+        }
+
+        public void deleted(String id) {
+            send(sse.newEventBuilder().name("deleted").data(id).build());
+            close();
+        }
+
+        public void failed(Throwable error) {
+            LOG.warnf("energy stream failed exception=%s message=\"%s\"", error.getClass().getName(), error.getMessage());
+            close();
+        }
+
+        private void heartbeat() {
+            if (sink.isClosed()) {
+                close();
+            } else {
+                send(sse.newEventBuilder().comment("heartbeat").build());
+            }
+        }
+
+        private synchronized void send(OutboundSseEvent event) {
+            if (closed) {
+                return;
+            }
+
+            sink.send(event).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    close();
+                }
+            });
+        }
+
+        public void close() {
+            Subscription watched;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                watched = subscription;
+            }
+
+            streams.remove(this);
+            if (watched != null) {
+                watched.close();
+            }
+            sink.close();
+        }
+    }
+}
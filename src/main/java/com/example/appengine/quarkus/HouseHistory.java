@@ -0,0 +1,314 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.Datastore;
+import com.example.appengine.quarkus.datastore.Query;
+import com.example.appengine.quarkus.datastore.VersionConflictException;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.HouseVersion;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * The versions of each house, kept in a datastore of their own with one document per version. The first
+ * version holds every field that is set, later versions only the fields that changed, so storing a
+ * version does not copy the whole house.
+ * <p>
+ * Next to its versions each house has a head document with the number and fields of its latest version,
+ * so a new version is found from that one document. A version is created only if its number is not taken,
+ * and the head is moved to it afterwards. A write that finds its number taken moves the head on itself,
+ * in case the write that took it stopped in between, and tries again with the next number.
+ * <p>
+ * Versions are recorded from the house as it is stored, not as it was sent, since houses written one after
+ * the other may be recorded in the opposite order. A version is only created if the house has not been
+ * written since it was read, and a house written while it was being recorded is recorded again, so the
+ * latest version ends up the same as the stored house.
+ */
+public class HouseHistory implements AutoCloseable {
+
+    /** The field linking a version to its house, indexed so that the versions of a house can be listed */
+    static final String HOUSE_ID = "houseId";
+
+    /** How many times a house that keeps changing is recorded before giving up */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private static final int PAGE_SIZE = 500;
+
+    private static final TypeReference<Map<String, Object>> FIELDS = new TypeReference<>() {};
+
+    private final Datastore datastore;
+
+    private final Datastore houses;
+
+    private final ObjectMapper mapper;
+
+    /**
+     * @param datastore where the versions are kept
+     * @param houses    where the houses are stored
+     */
+    public HouseHistory(Datastore datastore, Datastore houses, ObjectMapper mapper) {
+        if (datastore == null || houses == null) {
+            throw new IllegalArgumentException("Datastore is missing");
+        }
+
+        this.datastore = datastore;
+        this.houses = houses;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Adds a version for each stored house that differs from its latest version, once the houses have been
+     * written. Houses that are no longer stored are skipped. The houses are recorded concurrently, returning
+     * once all of them are.
+     *
+     * @throws CompletionException with the first error, if a house could not be recorded
+     */
+    public void record(Collection<String> ids) {
+        var recordedAt = System.currentTimeMillis();
+        var recorded = ids.stream()
+                .map(id -> recordStored(id, recordedAt, 1).toCompletableFuture())
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(recorded).join();
+    }
+
+    public void record(String id) {
+        record(List.of(id));
+    }
+
+    /**
+     * The versions of a house, oldest first. Empty if the house has never been stored.
+     */
+    public List<HouseVersion> versions(String id) {
+        var deltas = new ArrayList<Delta>();
+        String cursor = null;
+        do {
+            var page = datastore.query(new Query(HOUSE_ID, id).startAfter(cursor).limit(PAGE_SIZE), Delta.class);
+            deltas.addAll(page.getObjects().values());
+            cursor = page.getCursor();
+        } while (cursor != null);
+
+        var houses = replay(deltas);
+        var versions = new ArrayList<HouseVersion>(houses.size());
+        for (int i = 0; i < houses.size(); i++) {
+            var version = new HouseVersion();
+            version.version = deltas.get(i).version;
+            version.recordedAt = Instant.ofEpochMilli(deltas.get(i).recordedAt).toString();
+            version.house = houses.get(i);
+            versions.add(version);
+        }
+        return versions;
+    }
+
+    /**
+     * Deletes the versions and head of each house.
+     */
+    public void delete(Collection<String> ids) {
+        for (var id : ids) {
+            var documents = new ArrayList<String>();
+            String cursor = null;
+            do {
+                var page = datastore.query(new Query(HOUSE_ID, id).startAfter(cursor).limit(PAGE_SIZE), Delta.class);
+                documents.addAll(page.getObjects().keySet());
+                cursor = page.getCursor();
+            } while (cursor != null);
+
+            documents.add(id);
+            datastore.deleteAll(documents);
+        }
+    }
+
+    @Override
+    public void close() {
+        datastore.close();
+    }
+
+    /**
+     * Records the stored house, and again if it was written in the meantime, as the version recorded may then
+     * be older than the version recorded for that write.
+     */
+    private CompletionStage<Void> recordStored(String id, long recordedAt, int attempt) {
+        return houses.getVersionedAsync(id, House.class).thenCompose(stored -> {
+            if (stored == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            return record(id, fields(stored.getObject()), stored.getVersion(), recordedAt, 1)
+                    .thenCompose(ignored -> houses.versionAsync(id))
+                    .thenCompose(version -> {
+                        if (Objects.equals(version, stored.getVersion())) {
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        if (attempt == MAX_ATTEMPTS) {
+                            return CompletableFuture.<Void>failedFuture(
+                                    new IllegalStateException("House '" + id + "' kept changing while its history was recorded"));
+                        }
+                        return recordStored(id, recordedAt, attempt + 1);
+                    });
+        });
+    }
+
+    /**
+     * Adds a version with the fields of the house stored at {@code storedVersion}, unless the house has been
+     * written since.
+     */
+    private CompletionStage<Void> record(String id, Map<String, Object> current, String storedVersion, long recordedAt, int attempt) {
+        return datastore.getVersionedAsync(id, Head.class).thenCompose(versioned -> {
+            var head = versioned == null ? new Head() : versioned.getObject();
+            var headVersion = versioned == null ? null : versioned.getVersion();
+            var latest = head.version == null ? 0 : head.version;
+            var delta = delta(latest == 0 ? Map.of() : fields(mapper.convertValue(fields(head), House.class)), current);
+            if (latest > 0 && delta.changed.isEmpty() && delta.removed.isEmpty()) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            delta.houseId = id;
+            delta.version = latest + 1;
+            delta.recordedAt = recordedAt;
+            return houses.versionAsync(id)
+                    .thenCompose(version -> {
+                        if (!Objects.equals(version, storedVersion)) {
+                            // Written again since it was read, the newer house is recorded instead
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        return datastore.putAsync(versionId(id, delta.version), delta, null)
+                                .thenCompose(ignored -> advance(id, head, delta, headVersion));
+                    })
+                    .handle((ignored, error) -> {
+                        var cause = error instanceof CompletionException ? error.getCause() : error;
+                        if (cause instanceof VersionConflictException && attempt < MAX_ATTEMPTS) {
+                            // The number is taken, the head may not have been moved to it yet
+                            return datastore.getAsync(versionId(id, delta.version), Delta.class)
+                                    .thenCompose(taken -> taken == null
+                                            ? CompletableFuture.<Void>completedFuture(null)
+                                            : advance(id, head, taken, headVersion))
+                                    .thenCompose(moved -> record(id, current, storedVersion, recordedAt, attempt + 1));
+                        }
+                        return cause == null
+                                ? CompletableFuture.<Void>completedFuture(null)
+                                : CompletableFuture.<Void>failedFuture(cause);
+                    })
+                    .thenCompose(Function.identity());
+        });
+    }
+
+    /**
+     * Moves the head from the version it was read at on to the given version. If the head has changed
+     * since, another write has already moved it on.
+     */
+    private CompletionStage<Void> advance(String id, Head head, Delta delta, String expectedVersion) {
+        var next = new Head();
+        next.version = delta.version;
+        next.fields = new HashMap<>(fields(head));
+        apply(delta, next.fields);
+        return datastore.putAsync(id, next, expectedVersion).exceptionally(error -> {
+            var cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof VersionConflictException) {
+                return null;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * The fields that changed from {@code previous} to {@code current}.
+     */
+    private static Delta delta(Map<String, Object> previous, Map<String, Object> current) {
+        var delta = new Delta();
+        delta.changed = new HashMap<>();
+        delta.removed = new ArrayList<>();
+        current.forEach((field, value) -> {
+            if (!Objects.equals(value, previous.get(field))) {
+                delta.changed.put(field, value);
+            }
+        });
+        previous.keySet().forEach(field -> {
+            if (!current.containsKey(field)) {
+                delta.removed.add(field);
+            }
+        });
+        return delta;
+    }
+
+    /**
+     * Applies the deltas in order, returning the house after each of them.
+     */
+    private List<House> replay(List<Delta> deltas) {
+        var fields = new HashMap<String, Object>();
+        var houses = new ArrayList<House>(deltas.size());
+        for (var delta : deltas) {
+            apply(delta, fields);
+            houses.add(mapper.convertValue(fields, House.class));
+        }
+        return houses;
+    }
+
+    private static void apply(Delta delta, Map<String, Object> fields) {
+        if (delta.changed != null) {
+            fields.putAll(delta.changed);
+        }
+        if (delta.removed != null) {
+            delta.removed.forEach(fields::remove);
+        }
+    }
+
+    private static Map<String, Object> fields(Head head) {
+        return head.fields == null ? Map.of() : head.fields;
+    }
+
+    /**
+     * The fields that are set on the house, in the form they are stored in.
+     */
+    private Map<String, Object> fields(House house) {
+        var fields = mapper.convertValue(house, FIELDS);
+        fields.values().removeIf(Objects::isNull);
+        return fields;
+    }
+
+    /**
+     * Versions are numbered with leading zeros so that listing them by id lists them in order.
+     */
+    private static String versionId(String id, int version) {
+        return String.format("%s:%010d", id, version);
+    }
+
+    /**
+     * The latest version of one house. Public with public fields so that every datastore can map it.
+     */
+    public static class Head {
+        public Integer version;
+
+        /** Every field that is set in the latest version */
+        public Map<String, Object> fields;
+    }
+
+    /**
+     * One version of a house, stored under its own id.
+     */
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static class Delta {
+        public String houseId;
+
+        public Integer version;
+
+        /** Epoch milliseconds */
+        public Long recordedAt;
+
+        /** Fields that were added or changed, with their new value */
+        public Map<String, Object> changed;
+
+        /** Fields that were unset */
+        public List<String> removed;
+    }
+}
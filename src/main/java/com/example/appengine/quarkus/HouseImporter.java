@@ -0,0 +1,680 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.Datastore;
+import com.example.appengine.quarkus.datastore.VersionConflictException;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.ImportProgress;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.Year;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Imports houses from a stream of rows, such as an extract of a building registry, in constant memory.
+ * <p>
+ * Rows are read and validated one at a time on the calling thread and gathered into batches, which are
+ * written on writer threads while the next batch is read. Rows without an id are written with
+ * {@link Datastore#putAll}. A row with an id replaces the house stored under it with a conditional put,
+ * read and tried again if the house changes in between, so every house replaced is handed to
+ * {@code onStored} exactly once, however the import races with other writes. At most
+ * {@code maxInFlight} batches per import are being written at once, beyond that reading waits, so a
+ * datastore that falls behind slows down the upload instead of filling the heap.
+ * <p>
+ * Rows are framed by line breaks before they are parsed, so that a row that is not valid JSON or CSV is
+ * skipped without losing track of the rows after it. At most {@link #MAX_ROW_LENGTH} characters of a row
+ * are held, a longer row is skipped to its end.
+ * <p>
+ * A row that is not a valid house is skipped and counted, as is a batch that could not be written, and
+ * the import goes on. An error reading the stream stops it, as does a column or field that is not a field
+ * of a house, since a misspelled name would leave that field unset on every house. Progress of the imports still running,
+ * and of the last {@link #RETAINED_JOBS} finished, can be followed while they run.
+ * <p>
+ * Extracts larger than a request body can be are imported from an {@link ImportSource} in the background,
+ * at most {@link #MAX_BACKGROUND_IMPORTS} at a time, with the others waiting for their turn.
+ */
+public class HouseImporter implements AutoCloseable {
+
+    public enum Format {
+        /** One JSON house per line */
+        NDJSON,
+        /** A header line with house field names, then one house per line */
+        CSV
+    }
+
+    private static final Logger LOG = Logger.getLogger(HouseImporter.class);
+
+    static final int RETAINED_JOBS = 16;
+
+    static final int MAX_BACKGROUND_IMPORTS = 2;
+
+    /** How many error messages each import keeps */
+    static final int MAX_ERRORS = 100;
+
+    private static final long LOG_INTERVAL = 100_000;
+
+    /** How many times a keyed row is written before giving up, if its house keeps changing */
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+
+    /** Far more than any house, a longer row is not read into memory */
+    static final int MAX_ROW_LENGTH = 64 * 1024;
+
+    /** The optional field or column with the id to store a house under. Houses without one get a new id */
+    private static final String ID = "id";
+
+    private static final String IMPROVEMENTS = "improvements";
+
+    private static final Pattern IMPROVEMENT_SEPARATOR = Pattern.compile("\\s*;\\s*");
+
+    private static final Pattern MUNICIPALITY_NUMBER = Pattern.compile("\\d{4}");
+
+    private static final Counter IMPORTED = Metrics.counter("houses.import.rows", "outcome", "imported");
+
+    private static final Counter INVALID = Metrics.counter("houses.import.rows", "outcome", "invalid");
+
+    private static final Counter FAILED = Metrics.counter("houses.import.rows", "outcome", "failed");
+
+    private final Datastore datastore;
+
+    private final ObjectMapper mapper;
+
+    private final int batchSize;
+
+    private final int maxInFlight;
+
+    private final ExecutorService writers;
+
+    private final ExecutorService readers;
+
+    /** The fields of a house, and the id */
+    private final Set<String> fields = new HashSet<>();
+
+    /** Imports by id, oldest first. Guarded by itself */
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    public HouseImporter(Datastore datastore, ObjectMapper mapper, int batchSize, int maxInFlight) {
+        if (datastore == null) {
+            throw new IllegalArgumentException("Datastore is missing");
+        }
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
+
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in flight must be positive, was " + maxInFlight);
+        }
+
+        this.datastore = datastore;
+        this.mapper = mapper;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        mapper.getDeserializationConfig().introspect(mapper.constructType(House.class))
+                .findProperties()
+                .forEach(property -> fields.add(property.getName()));
+        fields.add(ID);
+        var threads = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            var thread = new Thread(runnable, "house-import-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        var readerThreads = new AtomicInteger();
+        this.readers = Executors.newFixedThreadPool(MAX_BACKGROUND_IMPORTS, runnable -> {
+            var thread = new Thread(runnable, "house-import-reader-" + readerThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads every row of the input and stores the valid houses, returning once all of them have been
+     * written. {@code onStored} is called on a writer thread with each batch once it is stored, by id,
+     * along with the houses that were stored under the ids of keyed rows before.
+     *
+     * @return the final progress of the import
+     */
+    public ImportProgress run(InputStream input, Format format, BiConsumer<Map<String, House>, Map<String, House>> onStored) {
+        var job = register(null);
+        read(job, input, format, onStored);
+        return job.progress();
+    }
+
+    /**
+     * Starts importing an object from the source in the background, returning the progress of the import as
+     * it starts. {@code onStored} is called as for {@link #run}.
+     */
+    public ImportProgress start(ImportSource source, String object, Format format, BiConsumer<Map<String, House>, Map<String, House>> onStored) {
+        var job = register(object);
+        readers.execute(() -> {
+            InputStream input;
+            try {
+                input = source.open(object);
+            } catch (IOException e) {
+                job.error(e.getMessage());
+                job.status = ImportProgress.Status.FAILED;
+                finish(job);
+                return;
+            }
+            read(job, input, format, onStored);
+        });
+        return job.progress();
+    }
+
+    private Job register(String object) {
+        var job = new Job(object);
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+        return job;
+    }
+
+    private void read(Job job, InputStream input, Format format, BiConsumer<Map<String, House>, Map<String, House>> onStored) {
+        var permits = new Semaphore(maxInFlight);
+        var line = 0L;
+        try (var reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+            var rows = new Rows(reader, format == Format.CSV);
+            List<String> header = null;
+            var batch = new Batch(1);
+            String text;
+            while ((text = rows.next()) != null) {
+                line = rows.line;
+                if (text.isBlank()) {
+                    continue;
+                }
+
+                if (format == Format.CSV && header == null) {
+                    rows.checkLength();
+                    header = header(text);
+                    continue;
+                }
+
+                job.rows.increment();
+                try {
+                    rows.checkLength();
+                    var row = format == Format.CSV ? csvRow(header, text) : jsonRow(text);
+                    var id = row.remove(ID);
+                    var house = mapper.treeToValue(row, House.class);
+                    validate(house);
+                    batch.add(id == null || id.isNull() ? null : id(id.asText()), house);
+                } catch (JsonProcessingException e) {
+                    job.invalid(line, e.getOriginalMessage());
+                } catch (IllegalArgumentException e) {
+                    job.invalid(line, e.getMessage());
+                }
+
+                if (batch.size == batchSize) {
+                    write(job, batch, permits, onStored);
+                    batch = new Batch(rows.nextLine);
+                }
+
+                if (job.rows.sum() % LOG_INTERVAL == 0) {
+                    LOG.infof("import id=%s status=RUNNING %s", job.id, job);
+                }
+            }
+
+            if (batch.size > 0) {
+                write(job, batch, permits, onStored);
+            }
+            job.status = ImportProgress.Status.COMPLETED;
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            job.error(line, e.getMessage());
+            job.status = ImportProgress.Status.FAILED;
+        } finally {
+            // Waits for the batches still being written
+            permits.acquireUninterruptibly(maxInFlight);
+            finish(job);
+        }
+    }
+
+    private void finish(Job job) {
+        job.finished = System.nanoTime();
+        synchronized (jobs) {
+            jobs.values().removeIf(retained -> jobs.size() > RETAINED_JOBS && retained.finished != 0);
+        }
+        LOG.infof("import id=%s status=%s %s", job.id, job.status, job);
+    }
+
+    /**
+     * The imports that are running or have finished recently, oldest first.
+     */
+    public List<ImportProgress> jobs() {
+        var progress = new ArrayList<ImportProgress>();
+        synchronized (jobs) {
+            jobs.values().forEach(job -> progress.add(job.progress()));
+        }
+        return progress;
+    }
+
+    /**
+     * The import with the given id, null if it is unknown or has been forgotten.
+     */
+    public ImportProgress job(String id) {
+        synchronized (jobs) {
+            var job = jobs.get(id);
+            return job == null ? null : job.progress();
+        }
+    }
+
+    /**
+     * Checks the fields a registry extract may get wrong, throwing IllegalArgumentException for the first
+     * field that is not valid.
+     */
+    static void validate(House house) {
+        if (house.area != null && !(house.area > 0 && house.area < Double.POSITIVE_INFINITY)) {
+            throw new IllegalArgumentException("Area must be positive, was " + house.area);
+        }
+
+        if (house.floors != null && house.floors < 1) {
+            throw new IllegalArgumentException("Floors must be positive, was " + house.floors);
+        }
+
+        if (house.constructionYear != null && house.constructionYear > Year.now().getValue()) {
+            throw new IllegalArgumentException("Construction year can not be in the future, was " + house.constructionYear);
+        }
+
+        if (house.municipalityNumber != null && !MUNICIPALITY_NUMBER.matcher(house.municipalityNumber).matches()) {
+            throw new IllegalArgumentException("Municipality number must be four digits, was " + house.municipalityNumber);
+        }
+
+        if (house.improvements != null && house.improvements.contains(null)) {
+            throw new IllegalArgumentException("Improvements can not be empty");
+        }
+    }
+
+    private static String id(String id) {
+        try {
+            UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Id must be a UUID, was " + id);
+        }
+        return id;
+    }
+
+    /**
+     * Reads a row of JSON, throwing IllegalStateException, which stops the import, if it has a field that
+     * is not a field of a house.
+     */
+    private ObjectNode jsonRow(String text) throws JsonProcessingException {
+        var node = mapper.readTree(text);
+        if (!node.isObject()) {
+            throw new IllegalArgumentException("Expected a house, was " + node.getNodeType());
+        }
+
+        node.fieldNames().forEachRemaining(field -> {
+            if (!fields.contains(field)) {
+                throw new IllegalStateException("Unknown field '" + field + "', expected any of " + new TreeSet<>(fields));
+            }
+        });
+        return (ObjectNode) node;
+    }
+
+    private List<String> header(String text) {
+        // Spreadsheets often start the file with a byte order mark
+        var header = fields(text.startsWith("\uFEFF") ? text.substring(1) : text);
+        header.replaceAll(String::trim);
+        for (var column : header) {
+            if (!fields.contains(column)) {
+                throw new IllegalArgumentException("Unknown column '" + column + "', expected any of " + new TreeSet<>(fields));
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Maps the columns of a row onto the fields of a house, leaving empty columns out. Values are given as
+     * text, and converted to the type of their field when the row is read as a house. Improvements are
+     * separated by semicolons.
+     */
+    private ObjectNode csvRow(List<String> header, String text) {
+        var fields = fields(text);
+        if (fields.size() != header.size()) {
+            throw new IllegalArgumentException("Expected " + header.size() + " columns, was " + fields.size());
+        }
+
+        var row = mapper.createObjectNode();
+        for (int i = 0; i < fields.size(); i++) {
+            var value = fields.get(i).trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+
+            if (IMPROVEMENTS.equals(header.get(i))) {
+                var improvements = row.putArray(IMPROVEMENTS);
+                for (var improvement : IMPROVEMENT_SEPARATOR.split(value)) {
+                    improvements.add(improvement);
+                }
+            } else {
+                row.put(header.get(i), value);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Splits a row of comma separated values. A value may be quoted to hold commas and line breaks, with
+     * quotes in it doubled.
+     */
+    static List<String> fields(String text) {
+        var fields = new ArrayList<String>();
+        var field = new StringBuilder();
+        var quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("Quoted value is not closed");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private void write(Job job, Batch batch, Semaphore permits, BiConsumer<Map<String, House>, Map<String, House>> onStored) {
+        permits.acquireUninterruptibly();
+        try {
+            writers.execute(() -> {
+                try {
+                    write(job, batch, onStored);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void write(Job job, Batch batch, BiConsumer<Map<String, House>, Map<String, House>> onStored) {
+        var previous = new LinkedHashMap<String, House>();
+        var stored = new LinkedHashMap<String, House>();
+        var written = 0;
+        try {
+            for (var keyed : batch.keyed.entrySet()) {
+                var id = keyed.getKey();
+                var replaced = replace(id, keyed.getValue());
+                if (replaced != null) {
+                    previous.put(id, replaced);
+                }
+                stored.put(id, keyed.getValue());
+                written += batch.keyedRows.get(id);
+            }
+
+            if (!batch.unkeyed.isEmpty()) {
+                var ids = datastore.putAll(batch.unkeyed);
+                for (int i = 0; i < ids.size(); i++) {
+                    stored.put(ids.get(i), batch.unkeyed.get(i));
+                }
+                written += batch.unkeyed.size();
+            }
+        } catch (RuntimeException e) {
+            job.failed.add(batch.size - written);
+            FAILED.increment(batch.size - written);
+            job.error(batch.firstLine, "Batch of " + batch.size + " houses could not be stored: " + e.getMessage());
+            LOG.warnf(e, "import id=%s line=%d size=%d outcome=error", job.id, batch.firstLine, batch.size);
+        } finally {
+            job.imported.add(written);
+            IMPORTED.increment(written);
+        }
+
+        try {
+            onStored.accept(previous, stored);
+        } catch (RuntimeException e) {
+            job.error(batch.firstLine, "Houses were stored, but not counted in the statistics: " + e.getMessage());
+            LOG.warnf(e, "import id=%s line=%d size=%d outcome=stored", job.id, batch.firstLine, batch.size);
+        }
+    }
+
+    /**
+     * Stores the house under its id if the house read before is still the one stored, and reads it again if
+     * not, so that the house replaced is known.
+     *
+     * @return the house replaced, null if there was none
+     */
+    private House replace(String id, House house) {
+        for (int attempt = 1; ; attempt++) {
+            var versioned = datastore.getVersioned(id, House.class);
+            try {
+                datastore.put(id, house, versioned == null ? null : versioned.getVersion());
+                return versioned == null ? null : versioned.getObject();
+            } catch (VersionConflictException e) {
+                if (attempt == MAX_WRITE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        readers.shutdownNow();
+        writers.shutdown();
+    }
+
+    /**
+     * Reads a stream a row at a time. A row ends at a line break, except for a line break in a quoted CSV
+     * value. Characters of a row beyond {@link #MAX_ROW_LENGTH} are dropped as they are read.
+     */
+    static class Rows {
+
+        private final Reader reader;
+
+        private final boolean quoting;
+
+        private final char[] buffer = new char[8192];
+
+        private int position, limit;
+
+        private final StringBuilder row = new StringBuilder();
+
+        private boolean truncated;
+
+        /** The line the last row read starts on */
+        long line;
+
+        /** The line the next row starts on */
+        long nextLine = 1;
+
+        Rows(Reader reader, boolean quoting) {
+            this.reader = reader;
+            this.quoting = quoting;
+        }
+
+        /**
+         * The next row without its line break, null at the end of the stream.
+         */
+        String next() throws IOException {
+            row.setLength(0);
+            truncated = false;
+            line = nextLine;
+            var quoted = false;
+            var read = false;
+            while (true) {
+                if (position == limit) {
+                    limit = reader.read(buffer);
+                    position = 0;
+                    if (limit == -1) {
+                        limit = 0;
+                        break;
+                    }
+                }
+
+                read = true;
+                var c = buffer[position++];
+                if (c == '\n') {
+                    nextLine++;
+                    if (!quoted) {
+                        break;
+                    }
+                } else if (c == '"' && quoting) {
+                    quoted = !quoted;
+                }
+
+                if (row.length() < MAX_ROW_LENGTH) {
+                    row.append(c);
+                } else {
+                    truncated = true;
+                }
+            }
+
+            if (!read) {
+                return null;
+            }
+            if (row.length() > 0 && row.charAt(row.length() - 1) == '\r') {
+                row.setLength(row.length() - 1);
+            }
+            return row.toString();
+        }
+
+        /**
+         * @throws IllegalArgumentException if the last row read was longer than {@link #MAX_ROW_LENGTH}
+         */
+        void checkLength() {
+            if (truncated) {
+                throw new IllegalArgumentException("Row is longer than " + MAX_ROW_LENGTH + " characters");
+            }
+        }
+    }
+
+    /**
+     * Houses read since the last batch was written, keyed or not by an id of their own.
+     */
+    private static class Batch {
+
+        final long firstLine;
+
+        final Map<String, House> keyed = new LinkedHashMap<>();
+
+        final List<House> unkeyed = new ArrayList<>();
+
+        /** Rows with each id, more than one if an id is repeated */
+        final Map<String, Integer> keyedRows = new HashMap<>();
+
+        int size;
+
+        Batch(long firstLine) {
+            this.firstLine = firstLine;
+        }
+
+        void add(String id, House house) {
+            if (id == null) {
+                unkeyed.add(house);
+            } else {
+                keyed.put(id, house);
+                keyedRows.merge(id, 1, Integer::sum);
+            }
+            size++;
+        }
+    }
+
+    private static class Job {
+
+        final String id = UUID.randomUUID().toString();
+
+        /** The object imported from a source, null for a request body */
+        final String object;
+
+        final long startedAt = System.currentTimeMillis();
+
+        final long started = System.nanoTime();
+
+        final LongAdder rows = new LongAdder(), imported = new LongAdder(), invalid = new LongAdder(), failed = new LongAdder();
+
+        /** Guarded by itself */
+        final List<String> errors = new ArrayList<>();
+
+        volatile ImportProgress.Status status = ImportProgress.Status.RUNNING;
+
+        /** When the last batch was written, 0 while running */
+        volatile long finished;
+
+        Job(String object) {
+            this.object = object;
+        }
+
+        void invalid(long line, String message) {
+            invalid.increment();
+            INVALID.increment();
+            error(line, message);
+        }
+
+        void error(long line, String message) {
+            error("Line " + line + ": " + message);
+        }
+
+        void error(String message) {
+            synchronized (errors) {
+                if (errors.size() < MAX_ERRORS) {
+                    errors.add(message);
+                }
+            }
+        }
+
+        ImportProgress progress() {
+            var progress = new ImportProgress();
+            progress.id = id;
+            progress.object = object;
+            progress.status = finished == 0 ? ImportProgress.Status.RUNNING : status;
+            progress.startedAt = startedAt;
+            progress.elapsed = TimeUnit.NANOSECONDS.toMillis((finished == 0 ? System.nanoTime() : finished) - started);
+            progress.rows = rows.sum();
+            progress.imported = imported.sum();
+            progress.invalid = invalid.sum();
+            progress.failed = failed.sum();
+            synchronized (errors) {
+                progress.errors = new ArrayList<>(errors);
+            }
+            return progress;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows=%d imported=%d invalid=%d failed=%d elapsedMs=%d",
+                    rows.sum(), imported.sum(), invalid.sum(), failed.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        }
+    }
+}
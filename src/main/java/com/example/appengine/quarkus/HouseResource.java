@@ -1,34 +1,100 @@
 package com.example.appengine.quarkus;
 
 import com.example.appengine.quarkus.datastore.Datastore;
-import com.example.appengine.quarkus.datastore.FirestoreDatastoreImpl;
-import com.example.appengine.quarkus.datastore.HashMapDatastoreImpl;
+import com.example.appengine.quarkus.datastore.Page;
+import com.example.appengine.quarkus.datastore.Query;
+import com.example.appengine.quarkus.datastore.VersionConflictException;
+import com.example.appengine.quarkus.datastore.Versioned;
+import com.example.appengine.quarkus.model.CacheStatistics;
 import com.example.appengine.quarkus.model.EnergyAnalysis;
+import com.example.appengine.quarkus.model.EnergyAnalysisVersion;
+import com.example.appengine.quarkus.model.EnergyFeature;
+import com.example.appengine.quarkus.model.EnergyFeatureType;
 import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.HouseCollection;
+import com.example.appengine.quarkus.model.HousePatch;
+import com.example.appengine.quarkus.model.HouseVersion;
+import com.example.appengine.quarkus.model.ImportProgress;
+import com.example.appengine.quarkus.model.ImprovementScenario;
+import com.example.appengine.quarkus.model.MunicipalityStatistics;
+import com.example.appengine.quarkus.model.PortfolioAnalysis;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.openapi.annotations.OpenAPIDefinition;
 import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.enums.SchemaType;
 import org.eclipse.microprofile.openapi.annotations.info.Info;
+import org.eclipse.microprofile.openapi.annotations.media.Content;
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
 import org.eclipse.microprofile.openapi.annotations.parameters.RequestBody;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+import org.jboss.logging.Logger;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @OpenAPIDefinition(info = @Info(title = "House Api", version = "1.0.0"))
 @Path("/houses")
 public class HouseResource {
 
-    private static final String COLLECTION = "houses";
+    private static final Logger LOG = Logger.getLogger(HouseResource.class);
 
+    static final String MUNICIPALITY_NUMBER = "municipalityNumber";
 
-    @ConfigProperty(name = "store.impl")
-    String storeImplementation;
+    private static final String CONSTRUCTION_YEAR = "constructionYear";
+
+    private static final String IS_APARTMENT = "isApartment";
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    static final String NDJSON = "application/x-ndjson";
+
+    static final String CSV = "text/csv";
+
+    /** How many times a write is tried on a house that keeps changing before giving up */
+    private static final int MAX_WRITE_ATTEMPTS = 5;
 
     @ConfigProperty(name = "energy.price")
     Double energyPrice;
@@ -36,59 +102,417 @@ public class HouseResource {
     @ConfigProperty(name = "energy.pollution")
     Double energyPollution;
 
-    @ConfigProperty(name = "GOOGLE_CLOUD_PROJECT")
-    Optional<String> projectId;
-
-    private Datastore datastore;
-
-    private Datastore getDatastore() {
-        if (datastore == null) {
-            System.out.println("Using datastore impl " + storeImplementation);
-            System.out.println("Using projectId " + projectId.orElse(null));
-
-            switch (storeImplementation) {
-                case "Firestore":
-                    try {
-                        datastore = new FirestoreDatastoreImpl(
-                                projectId.orElseThrow(() -> new IllegalStateException("GOOGLE_CLOUD_PROJECT")),
-                                COLLECTION
-                        );
-                    } catch (IOException e) {
-                        throw new IllegalStateException(e);
-                    }
-                    break;
-                case "HashMap":
-                    datastore = new HashMapDatastoreImpl();
-                    break;
-                default:
-                    throw new IllegalStateException("Property store.impl not valid, was " + storeImplementation);
-            }
+    @ConfigProperty(name = "energy.tariff.directory")
+    Optional<String> tariffDirectory;
+
+    @ConfigProperty(name = "energy.tariff.reload-interval")
+    Duration tariffReloadInterval;
+
+    @ConfigProperty(name = "energy.batch.parallelism")
+    Integer batchParallelism;
+
+    @ConfigProperty(name = "energy.batch.in-flight")
+    Integer batchInFlight;
+
+    @ConfigProperty(name = "energy.cache.size")
+    Integer analysisCacheSize;
+
+    @ConfigProperty(name = "energy.stream.heartbeat-interval")
+    Duration streamHeartbeatInterval;
+
+    @ConfigProperty(name = "houses.import.batch-size")
+    Integer importBatchSize;
+
+    @ConfigProperty(name = "houses.import.in-flight")
+    Integer importInFlight;
+
+    /** Imports objects from this directory instead of the bucket, when set */
+    @ConfigProperty(name = "houses.import.directory")
+    Optional<String> importDirectory;
+
+    @ConfigProperty(name = "BUCKET_NAME")
+    Optional<String> bucketName;
+
+    @ConfigProperty(name = "houses.bookkeeping.threads")
+    Integer bookkeepingThreads;
+
+    @Inject
+    ObjectMapper mapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    Datastore datastore;
+
+    @Inject
+    HouseHistory history;
+
+    @Inject
+    MunicipalityRollups rollups;
+
+    private ForkJoinPool analysisPool;
+
+    private BatchEnergyAnalyzer batchAnalyzer;
+
+    private PortfolioAnalyzer portfolioAnalyzer;
+
+    /** Keeps the statistics and history up to date once houses are written, and reads the history, off the threads that complete datastore calls */
+    private ExecutorService bookkeeping;
+
+    private EnergyAnalysisCache analysisCache;
+
+    private TariffEngine tariffs;
+
+    private EnergyStreams energyStreams;
+
+    private HouseImporter importer;
+
+    /** Null if neither a bucket nor a directory is configured */
+    private ImportSource importSource;
+
+    @PostConstruct
+    void init() {
+        analysisPool = new ForkJoinPool(batchParallelism);
+        batchAnalyzer = new BatchEnergyAnalyzer(analysisPool, batchInFlight);
+        portfolioAnalyzer = new PortfolioAnalyzer(analysisPool);
+        analysisCache = new EnergyAnalysisCache(analysisCacheSize);
+        tariffs = new TariffEngine(tariffDirectory.map(Paths::get).orElse(null), energyPrice, energyPollution, tariffReloadInterval);
+        energyStreams = new EnergyStreams(streamHeartbeatInterval);
+        importer = new HouseImporter(datastore, mapper, importBatchSize, importInFlight);
+        importSource = importDirectory.map(directory -> ImportSource.directory(Paths.get(directory)))
+                .or(() -> bucketName.map(ImportSource::bucket))
+                .orElse(null);
+        var threads = new AtomicInteger();
+        bookkeeping = Executors.newFixedThreadPool(bookkeepingThreads, runnable -> {
+            var thread = new Thread(runnable, "house-bookkeeping-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        MetricsConfiguration.monitorCache(registry, "energyAnalysis", analysisCache,
+                EnergyAnalysisCache::hits, EnergyAnalysisCache::misses, EnergyAnalysisCache::size);
+        Gauge.builder("energy.streams", energyStreams, EnergyStreams::size).register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        analysisPool.shutdown();
+        tariffs.close();
+        energyStreams.close();
+        importer.close();
+        bookkeeping.shutdown();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Get several houses by id in one request, ids that are not found are listed as missing. " +
+            "Without ids, lists the houses in a municipality one page at a time, ordered by id")
+    public HouseCollection list(
+            @Parameter(description = "Comma separated list of ids") @QueryParam("ids") String ids,
+            @Parameter(description = "The municipality number to list houses for") @QueryParam("municipality") String municipality,
+            @Parameter(description = "Only houses constructed in or after this year") @QueryParam("fromYear") Integer fromYear,
+            @Parameter(description = "Only houses constructed in or before this year") @QueryParam("toYear") Integer toYear,
+            @Parameter(description = "Only apartments, or only houses that are not apartments") @QueryParam("isApartment") Boolean isApartment,
+            @Parameter(description = "The cursor returned with the previous page") @QueryParam("cursor") String cursor,
+            @Parameter(description = "The maximum number of houses in the page") @QueryParam("limit") @DefaultValue("100") Integer limit
+    ) {
+        if (ids != null && !ids.isBlank()) {
+            return getAll(ids);
         }
 
-        return datastore;
+        if (municipality == null || municipality.isBlank()) {
+            throw new WebApplicationException("Query parameter 'ids' or 'municipality' is required", HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new WebApplicationException("Limit must be between 1 and " + MAX_PAGE_SIZE, HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        var query = new Query(MUNICIPALITY_NUMBER, municipality).startAfter(cursor).limit(limit);
+        if (fromYear != null || toYear != null) {
+            query.whereBetween(CONSTRUCTION_YEAR, fromYear, toYear);
+        }
+        if (isApartment != null) {
+            query.whereEqualTo(IS_APARTMENT, isApartment);
+        }
+
+        Page<House> page;
+        try {
+            page = datastore.query(query, House.class);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(e.getMessage(), HttpURLConnection.HTTP_BAD_REQUEST);
+        } catch (UnsupportedOperationException e) {
+            throw new WebApplicationException(e.getMessage(), HttpURLConnection.HTTP_NOT_IMPLEMENTED);
+        }
+
+        var collection = new HouseCollection();
+        collection.houses = page.getObjects();
+        collection.cursor = page.getCursor();
+        return collection;
+    }
+
+    private HouseCollection getAll(String ids) {
+        var requested = Arrays.stream(ids.split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .distinct()
+                .collect(Collectors.toList());
+
+        var collection = new HouseCollection();
+        collection.houses = datastore.getAll(requested, House.class);
+        collection.missing = requested.stream()
+                .filter(id -> !collection.houses.containsKey(id))
+                .collect(Collectors.toList());
+        return collection;
     }
 
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    @Operation(description = "Get a house from datastore by id")
-    public House get(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
-        var object = getDatastore().get(id, House.class);
-        if (object == null) {
-            throw new WebApplicationException("Object with id '" + id + "' not found", HttpURLConnection.HTTP_NOT_FOUND);
+    @Operation(description = "Get a house from datastore by id. The response has an ETag, and is answered with " +
+            "304 Not Modified when the house still matches the If-None-Match header")
+    public CompletionStage<Response> get(
+            @Parameter(description = "The id. Format is UUID") @PathParam("id") String id,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+            @Context Request request
+    ) {
+        return notModified(id, ifNoneMatch, request, EntityTag::new).thenCompose(response -> response != null
+                ? CompletableFuture.completedFuture(response)
+                : findVersioned(id).thenApply(house -> Response.ok(house.getObject()).tag(house.getVersion()).build()));
+    }
+
+    /**
+     * Endpoints share this rather than calling {@link #get}, as calling another endpoint method would
+     * record the request under that endpoint's path in the request metrics.
+     */
+    private CompletionStage<House> find(String id) {
+        return datastore.getAsync(id, House.class).thenApply(object -> {
+            if (object == null) {
+                throw notFound(id);
+            }
+
+            return object;
+        });
+    }
+
+    private CompletionStage<Versioned<House>> findVersioned(String id) {
+        return datastore.getVersionedAsync(id, House.class).thenApply(versioned -> {
+            if (versioned == null) {
+                throw notFound(id);
+            }
+
+            return versioned;
+        });
+    }
+
+    /**
+     * Answers a conditional GET from the version of the house alone, without reading the house. Completes
+     * with null when the request has no If-None-Match header or the house has changed since.
+     */
+    private CompletionStage<Response> notModified(String id, String ifNoneMatch, Request request, Function<String, EntityTag> tag) {
+        if (ifNoneMatch == null) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        return object;
+        return datastore.versionAsync(id).thenApply(version -> {
+            if (version == null) {
+                throw notFound(id);
+            }
+
+            var notModified = request.evaluatePreconditions(tag.apply(version));
+            return notModified == null ? null : notModified.build();
+        });
+    }
+
+    private static WebApplicationException notFound(String id) {
+        return new WebApplicationException("Object with id '" + id + "' not found", HttpURLConnection.HTTP_NOT_FOUND);
     }
 
     @GET
     @Path("/{id}/energy")
     @Produces(MediaType.APPLICATION_JSON)
-    @Operation(description = "Analyze the energy used by a house and determine the energy characteristics")
-    public EnergyAnalysis getEnergyAnalysis(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
-        var house = get(id);
+    @Operation(description = "Analyze the energy used by a house and determine the energy characteristics. The response " +
+            "has an ETag, and is answered with 304 Not Modified when the analysis still matches the If-None-Match header")
+    public CompletionStage<Response> getEnergyAnalysis(
+            @Parameter(description = "The id. Format is UUID") @PathParam("id") String id,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+            @Context Request request
+    ) {
+        return notModified(id, ifNoneMatch, request, this::energyTag).thenCompose(response -> response != null
+                ? CompletableFuture.completedFuture(response)
+                : findVersioned(id).thenApply(house -> Response
+                        .ok(analysisCache.analyze(id, house.getObject(), tariff(house.getObject())))
+                        .tag(energyTag(house.getVersion()))
+                        .build()));
+    }
+
+    @GET
+    @Path("/{id}/energy/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Operation(description = "Stream the energy analysis of a house as server-sent events. An energy event with the " +
+            "analysis is sent right away and whenever the house is stored, and a deleted event when the house is deleted")
+    public void streamEnergyAnalysis(
+            @Parameter(description = "The id. Format is UUID") @PathParam("id") String id,
+            @Context SseEventSink sink,
+            @Context Sse sse
+    ) {
+        if (datastore.get(id, House.class) == null) {
+            throw notFound(id);
+        }
+
+        var stream = energyStreams.open(sink, sse);
+        stream.watching(datastore.watch(id, House.class, house -> {
+            if (house == null) {
+                stream.deleted(id);
+            } else {
+                stream.analysis(analysisCache.analyze(id, house, tariff(house)));
+            }
+        }, stream::failed));
+    }
+
+    /**
+     * The analysis changes with the house and with the tariffs.
+     */
+    private EntityTag energyTag(String version) {
+        return new EntityTag(version + "-" + tariffs.version());
+    }
+
+    private Tariff tariff(House house) {
+        return tariffs.tariff(house.municipalityNumber);
+    }
+
+    @GET
+    @Path("/{id}/history")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Get every version of a house, oldest first")
+    public CompletionStage<List<HouseVersion>> getVersions(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
+        return find(id).thenApplyAsync(house -> history.versions(id), bookkeeping);
+    }
+
+    @GET
+    @Path("/{id}/energy/history")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Analyze the energy used by every version of a house, oldest first")
+    public CompletionStage<List<EnergyAnalysisVersion>> getEnergyVersions(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
+        return find(id).thenApplyAsync(house -> history.versions(id), bookkeeping).thenApply(versions -> versions.stream().map(version -> {
+            var analysis = new EnergyAnalysisVersion();
+            analysis.version = version.version;
+            analysis.recordedAt = version.recordedAt;
+            analysis.analysis = EnergyCalculator.analyze(version.house, tariff(version.house));
+            return analysis;
+        }).collect(Collectors.toList()));
+    }
+
+    @GET
+    @Path("/{id}/energy/scenarios")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Find the combinations of improvements that give the best energy, expense and pollution savings for a house")
+    public CompletionStage<List<ImprovementScenario>> getImprovementScenarios(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
+        return find(id).thenApply(house -> ScenarioOptimizer.paretoFront(house, tariff(house)));
+    }
+
+    @GET
+    @Path("/energy/cache")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Get hit and miss counts for the energy analysis cache")
+    public CacheStatistics getEnergyAnalysisCacheStatistics() {
+        var statistics = new CacheStatistics();
+        statistics.hits = analysisCache.hits();
+        statistics.misses = analysisCache.misses();
+        statistics.size = analysisCache.size();
+        return statistics;
+    }
+
+    @POST
+    @Path("/energy/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Analyze a list of houses, each given either as a house object or as the id of a stored house. " +
+            "Analyses are streamed back in the same order as the request, null for ids that are not found")
+    public StreamingOutput getEnergyAnalyses(@RequestBody(description = "Houses or house ids to analyze") List<JsonNode> body) {
+        if (body == null) {
+            throw new WebApplicationException("Missing list of houses", HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        var store = datastore;
+        List<Supplier<House>> houses = body.stream().map(entry -> {
+            if (entry.isTextual()) {
+                var id = entry.asText();
+                return (Supplier<House>) () -> store.get(id, House.class);
+            } else if (entry.isObject()) {
+                return (Supplier<House>) () -> mapper.convertValue(entry, House.class);
+            } else {
+                throw new WebApplicationException("Entry '" + entry + "' is neither a house nor an id", HttpURLConnection.HTTP_BAD_REQUEST);
+            }
+        }).collect(Collectors.toList());
+
+        return output -> {
+            try (var generator = mapper.getFactory().createGenerator(output)) {
+                generator.writeStartArray();
+                var analyses = batchAnalyzer.analyze(houses, this::tariff);
+                while (analyses.hasNext()) {
+                    generator.writeObject(analyses.next());
+                }
+                generator.writeEndArray();
+            }
+        };
+    }
+
+    @POST
+    @Path("/energy/portfolio")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Analyze a large list of houses and return the totals and means per energy feature")
+    public PortfolioAnalysis getPortfolioAnalysis(
+            @RequestBody(description = "The houses to analyze", content = @Content(schema = @Schema(type = SchemaType.ARRAY, implementation = House.class)))
+            InputStream body
+    ) throws IOException {
+        var columns = new PortfolioAnalyzer.Columns(1024);
+        try (var parser = mapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new WebApplicationException("Expected a list of houses", HttpURLConnection.HTTP_BAD_REQUEST);
+            }
+
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new WebApplicationException("Expected a house, was " + (token == null ? "end of input" : parser.getText()),
+                            HttpURLConnection.HTTP_BAD_REQUEST);
+                }
 
-        return EnergyCalculator.analyze(house, energyPrice, energyPollution);
+                var house = mapper.readValue(parser, House.class);
+                columns.add(house, tariff(house));
+            }
+        } catch (JsonProcessingException e) {
+            throw new WebApplicationException("Invalid list of houses: " + e.getOriginalMessage(), HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        var result = portfolioAnalyzer.analyze(columns);
+
+        var analysis = new PortfolioAnalysis();
+        analysis.houses = result.size();
+        analysis.totals = new ArrayList<>();
+        analysis.means = new ArrayList<>();
+        for (var type : EnergyFeatureType.values()) {
+            var houses = result.houses(type);
+            if (houses > 0) {
+                var energy = result.totalEnergy(type);
+                var expense = result.totalExpense(type);
+                var pollution = result.totalPollution(type);
+                analysis.totals.add(feature(type, energy, expense, pollution));
+                analysis.means.add(feature(type, energy / houses, expense / houses, pollution / houses));
+            }
+        }
+        return analysis;
+    }
+
+    private static EnergyFeature feature(EnergyFeatureType type, double energy, double expense, double pollution) {
+        var feature = new EnergyFeature();
+        feature.type = type;
+        feature.energy = energy;
+        feature.expense = expense;
+        feature.pollution = pollution;
+        return feature;
     }
 
     @POST
@@ -96,16 +520,19 @@ public class HouseResource {
     @Produces(MediaType.TEXT_PLAIN)
     @Operation(description = "Create a new house, returns the id used to retrieve the house as the response")
     @APIResponse(name = "id", description = "Id of the house that has been created")
-    public String post(@RequestBody(description = "The new house to be created") House body) {
-        return getDatastore().put(body);
+    public CompletionStage<String> post(@RequestBody(description = "The new house to be created") House body) {
+        return datastore.putAsync(body).thenCompose(id -> stored(List.of(), Map.of(id, body)).thenApply(ignored -> id));
     }
 
     @POST
     @Path("/{id}")
     @Consumes(MediaType.APPLICATION_JSON)
-    @Operation(description = "Create a new house with the given id, if the id is taken overwrites the old house")
-    public void post(
+    @Operation(description = "Create a new house with the given id, if the id is taken overwrites the old house. " +
+            "With an If-Match header the house is only overwritten if it still matches, otherwise the answer is 412 Precondition Failed")
+    public CompletionStage<Response> post(
             @Parameter(description = "The id. Format is UUID") @PathParam("id") String id,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+            @Context Request request,
             @RequestBody(description = "The new house to be created, or updated if an old id is used") House body
     ) {
         // Check if id is a UUID
@@ -115,13 +542,273 @@ public class HouseResource {
             throw new WebApplicationException("Id '" + id + "' is not a valid UUID", HttpURLConnection.HTTP_BAD_REQUEST);
         }
 
-        getDatastore().put(id, body);
+        return retryOnConflict(() -> datastore.getVersionedAsync(id, House.class).thenCompose(versioned -> {
+            var version = versioned == null ? null : versioned.getVersion();
+            if (ifMatch != null) {
+                var failed = version == null
+                        ? Response.status(Response.Status.PRECONDITION_FAILED)
+                        : request.evaluatePreconditions(new EntityTag(version));
+                if (failed != null) {
+                    return CompletableFuture.completedFuture(failed.build());
+                }
+            }
+
+            // Written only if the house read is still the one stored, so it is replaced in the statistics exactly once
+            var previous = versioned == null ? List.<House>of() : List.of(versioned.getObject());
+            return datastore.putAsync(id, body, version)
+                    .thenCompose(ignored -> {
+                        analysisCache.invalidate(id);
+                        return stored(previous, Map.of(id, body));
+                    })
+                    .thenApply(ignored -> Response.noContent().build());
+        }), ifMatch == null, 1);
+    }
+
+    @PATCH
+    @Path("/{id}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Change some fields of a house, such as adding an improvement, and get the new energy analysis. " +
+            "Only the features affected by changed improvements are analyzed again. The patch is applied again if the house " +
+            "is changed at the same time. With an If-Match header the patch is only applied if the house still matches, " +
+            "otherwise the answer is 412 Precondition Failed")
+    public CompletionStage<EnergyAnalysis> patch(
+            @Parameter(description = "The id. Format is UUID") @PathParam("id") String id,
+            @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+            @Context Request request,
+            @RequestBody(description = "The changes to make to the house") HousePatch body
+    ) {
+        if (body == null) {
+            throw new WebApplicationException("Missing patch", HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        // Applied to the latest version of the house, and stored only if the house is still at that version
+        return retryOnConflict(() -> findVersioned(id).thenCompose(versioned -> {
+            if (ifMatch != null) {
+                var failed = request.evaluatePreconditions(new EntityTag(versioned.getVersion()));
+                if (failed != null) {
+                    throw new WebApplicationException(failed.build());
+                }
+            }
+
+            var previous = versioned.getObject();
+            var house = body.apply(previous);
+            // Analyzed once written, so that only a house that was stored is analyzed and cached
+            return datastore.putAsync(id, house, versioned.getVersion())
+                    .thenApply(ignored -> analysisCache.reanalyze(id, previous, house, tariff(house)))
+                    .thenCompose(analysis -> stored(List.of(previous), Map.of(id, house)).thenApply(ignored -> analysis));
+        }), ifMatch == null, 1);
+    }
+
+    /**
+     * Runs a read followed by a conditional write, and runs it again if the house changed in between. With
+     * If-Match there is only one try, as the client asked for that version of the house.
+     */
+    private <T> CompletionStage<T> retryOnConflict(Supplier<CompletionStage<T>> write, boolean retry, int attempt) {
+        return write.get().handle((result, error) -> {
+            var cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof VersionConflictException && retry && attempt < MAX_WRITE_ATTEMPTS) {
+                return retryOnConflict(write, true, attempt + 1);
+            }
+            return cause == null
+                    ? CompletableFuture.completedFuture(result)
+                    : CompletableFuture.<T>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    @POST
+    @Path("/bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Create many houses at once, returns the ids of the created houses in the same order")
+    public List<String> postAll(@RequestBody(description = "The new houses to be created") List<House> body) {
+        if (body == null) {
+            throw new WebApplicationException("Missing list of houses", HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        var ids = datastore.putAll(body);
+        var houses = new LinkedHashMap<String, House>();
+        for (int i = 0; i < ids.size(); i++) {
+            houses.put(ids.get(i), body.get(i));
+        }
+        stored(List.of(), houses).toCompletableFuture().join();
+        return ids;
+    }
+
+    @POST
+    @Path("/import")
+    @Consumes({NDJSON, CSV})
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Import a large number of houses, such as an extract of a building registry, as one JSON house per line " +
+            "or as CSV with a header line of house field names, improvements separated by semicolons. A row may have an id " +
+            "to store the house under, otherwise the house gets a new id. Rows that are not valid houses are skipped. " +
+            "Answers once every row has been stored, progress can be followed under /houses/imports while it runs. Larger " +
+            "extracts than the request body limit are imported from the bucket with POST /houses/imports")
+    public ImportProgress importHouses(
+            @Parameter(description = "Whether to analyze the houses as they are stored, so their analyses are cached. " +
+                    "Off by default, as the analyses of a large import push those of other houses out of the cache")
+            @QueryParam("analyze") @DefaultValue("false") boolean analyze,
+            @Context HttpHeaders headers,
+            @RequestBody(description = "The houses to import, one per line") InputStream body
+    ) {
+        var format = headers.getMediaType().isCompatible(MediaType.valueOf(CSV)) ? HouseImporter.Format.CSV : HouseImporter.Format.NDJSON;
+        return importer.run(body, format, (previous, houses) -> imported(previous, houses, analyze));
+    }
+
+    @POST
+    @Path("/imports")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Import an extract from the bucket in the background, for extracts too large to upload. The format " +
+            "is taken from the name of the object, .csv for CSV and .ndjson or .jsonl for one JSON house per line. Answers with " +
+            "202 Accepted as soon as the import starts, and its progress can be followed at the Location of the answer")
+    @APIResponse(responseCode = "202", description = "The import has started")
+    public Response startImport(
+            @Parameter(description = "The name of the object in the bucket") @QueryParam("object") String object,
+            @Parameter(description = "Whether to analyze the houses as they are stored, so their analyses are cached. " +
+                    "Off by default, as the analyses of a large import push those of other houses out of the cache")
+            @QueryParam("analyze") @DefaultValue("false") boolean analyze,
+            @Context UriInfo uriInfo
+    ) {
+        if (importSource == null) {
+            throw new WebApplicationException("No bucket to import from is configured", HttpURLConnection.HTTP_NOT_IMPLEMENTED);
+        }
+
+        if (object == null || object.isBlank()) {
+            throw new WebApplicationException("Missing object to import", HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        var progress = importer.start(importSource, object, format(object), (previous, houses) -> imported(previous, houses, analyze));
+        var location = uriInfo.getBaseUriBuilder().path(HouseResource.class).path("imports").path(progress.id).build();
+        return Response.accepted(progress).location(location).build();
+    }
+
+    private static HouseImporter.Format format(String object) {
+        var name = object.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".csv")) {
+            return HouseImporter.Format.CSV;
+        }
+
+        if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+            return HouseImporter.Format.NDJSON;
+        }
+
+        throw new WebApplicationException("Object '" + object + "' is neither .csv, .ndjson nor .jsonl", HttpURLConnection.HTTP_BAD_REQUEST);
+    }
+
+    /**
+     * Called on an import writer thread with each batch of houses once it is stored.
+     */
+    private void imported(Map<String, House> previous, Map<String, House> houses, boolean analyze) {
+        houses.keySet().forEach(analysisCache::invalidate);
+        var bookkept = stored(previous.values(), houses);
+        if (analyze) {
+            analysisPool.submit(() -> houses.entrySet().parallelStream()
+                    .forEach(house -> analysisCache.analyze(house.getKey(), house.getValue(), tariff(house.getValue())))).join();
+        }
+        bookkept.toCompletableFuture().join();
+    }
+
+    @GET
+    @Path("/imports")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Get the progress of the imports that are running or have finished recently on this instance, oldest first")
+    public List<ImportProgress> getImports() {
+        return importer.jobs();
+    }
+
+    @GET
+    @Path("/imports/{importId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Get the progress of an import")
+    public ImportProgress getImport(@Parameter(description = "The id of the import") @PathParam("importId") String importId) {
+        var progress = importer.job(importId);
+        if (progress == null) {
+            throw new WebApplicationException("Import '" + importId + "' not found", HttpURLConnection.HTTP_NOT_FOUND);
+        }
+        return progress;
+    }
+
+    @DELETE
+    @Path("/bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Operation(description = "Delete all houses with the given ids")
+    public void deleteAll(@RequestBody(description = "The ids of the houses to delete") List<String> body) {
+        if (body == null) {
+            throw new WebApplicationException("Missing list of ids", HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+
+        // Houses written between reading and deleting them are taken out of the statistics as they were read
+        var previous = datastore.getAll(body, House.class);
+        datastore.deleteAll(body);
+        body.forEach(analysisCache::invalidate);
+        deleted(previous.values(), body).toCompletableFuture().join();
     }
 
     @DELETE
     @Path("{id}")
     @Operation(description = "Delete the house with the given id")
-    public void delete(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
-        getDatastore().delete(id);
+    public CompletionStage<Void> delete(@Parameter(description = "The id. Format is UUID") @PathParam("id") String id) {
+        return retryOnConflict(() -> datastore.getVersionedAsync(id, House.class).thenCompose(versioned -> {
+            if (versioned == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            return datastore.deleteAsync(id, versioned.getVersion()).thenCompose(ignored -> {
+                analysisCache.invalidate(id);
+                return deleted(List.of(versioned.getObject()), List.of(id));
+            });
+        }), true, 1);
+    }
+
+    @GET
+    @Path("/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Get the number of houses and the total and mean energy, expense and pollution per feature, " +
+            "for one municipality or for all municipalities. Expense and pollution are priced with the current tariff " +
+            "of each municipality")
+    public List<MunicipalityStatistics> getStatistics(
+            @Parameter(description = "The municipality number, all municipalities if not set") @QueryParam("municipality") String municipality
+    ) {
+        return rollups.statistics(municipality, tariffs::tariff);
+    }
+
+    @POST
+    @Path("/stats/{municipality}/recount")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(description = "Count the houses of a municipality from scratch, such as for houses stored before the statistics " +
+            "were kept, and get the new statistics. Houses written while counting may be missed, so run it while the " +
+            "municipality is not being written to")
+    public List<MunicipalityStatistics> recountStatistics(
+            @Parameter(description = "The municipality number") @PathParam("municipality") String municipality
+    ) {
+        rollups.recount(municipality, datastore);
+        return rollups.statistics(municipality, tariffs::tariff);
+    }
+
+    /**
+     * Brings the municipality rollups and the history up to date with houses that have been stored over
+     * {@code previous}, on the bookkeeping threads.
+     */
+    private CompletionStage<Void> stored(Collection<House> previous, Map<String, House> houses) {
+        return CompletableFuture.allOf(
+                bookkeep("rollups", houses.size(), () -> rollups.update(previous, houses.values())),
+                bookkeep("history", houses.size(), () -> history.record(houses.keySet())));
+    }
+
+    private CompletionStage<Void> deleted(Collection<House> previous, Collection<String> ids) {
+        return CompletableFuture.allOf(
+                bookkeep("rollups", ids.size(), () -> rollups.update(previous, List.of())),
+                bookkeep("history", ids.size(), () -> history.delete(ids)));
+    }
+
+    /**
+     * The houses are already written when their bookkeeping runs, so a failure is logged rather than
+     * failing the request.
+     */
+    private CompletableFuture<Void> bookkeep(String task, int houses, Runnable work) {
+        return CompletableFuture.runAsync(work, bookkeeping).exceptionally(e -> {
+            LOG.warnf(e, "bookkeeping task=%s houses=%d outcome=error", task, houses);
+            return null;
+        });
     }
 }
@@ -0,0 +1,86 @@
+package com.example.appengine.quarkus;
+
+import com.google.auth.oauth2.GoogleCredentials;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * Where extracts too large for a request body are imported from, by object name.
+ */
+public interface ImportSource {
+
+    /**
+     * Opens the object for reading.
+     *
+     * @throws FileNotFoundException if there is no such object
+     */
+    InputStream open(String name) throws IOException;
+
+    /**
+     * Objects in a Cloud Storage bucket, read through the JSON API with the application default credentials.
+     */
+    static ImportSource bucket(String bucket) {
+        var client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+        return name -> {
+            var credentials = GoogleCredentials.getApplicationDefault()
+                    .createScoped("https://www.googleapis.com/auth/devstorage.read_only");
+            credentials.refreshIfExpired();
+
+            var uri = URI.create("https://storage.googleapis.com/storage/v1/b/" + encode(bucket) + "/o/" + encode(name) + "?alt=media");
+            var request = HttpRequest.newBuilder(uri)
+                    .header("Authorization", "Bearer " + credentials.getAccessToken().getTokenValue())
+                    .build();
+            HttpResponse<InputStream> response;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted opening object '" + name + "'");
+            }
+
+            if (response.statusCode() != 200) {
+                response.body().close();
+                if (response.statusCode() == 404) {
+                    throw new FileNotFoundException("Object '" + name + "' not found in bucket " + bucket);
+                }
+                throw new IOException("Object '" + name + "' could not be read from bucket " + bucket + ", status was " + response.statusCode());
+            }
+            return response.body();
+        };
+    }
+
+    /**
+     * Files in a local directory, for running without a bucket.
+     */
+    static ImportSource directory(Path directory) {
+        var root = directory.toAbsolutePath().normalize();
+        return name -> {
+            var path = root.resolve(name).normalize();
+            if (!path.startsWith(root)) {
+                throw new FileNotFoundException("Object '" + name + "' is outside of " + root);
+            }
+
+            try {
+                return Files.newInputStream(path);
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException("Object '" + name + "' not found in " + root);
+            }
+        };
+    }
+
+    private static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.appengine.quarkus;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+
+import com.example.appengine.quarkus.datastore.AdaptiveLimiter;
+
+import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Publishes latency histograms for the timers we alert on, so percentiles can be aggregated
+ * across instances in Prometheus.
+ */
+@Singleton
+public class MetricsConfiguration {
+
+    private static final Set<String> HISTOGRAMS = Set.of("http.server.requests", "datastore.operation", "energy.analyze");
+
+    @Produces
+    @Singleton
+    public MeterFilter histograms() {
+        return new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (HISTOGRAMS.contains(id.getName())) {
+                    return DistributionStatisticConfig.builder()
+                            .percentilesHistogram(true)
+                            .build()
+                            .merge(config);
+                }
+                return config;
+            }
+        };
+    }
+
+    /**
+     * Publishes hit and miss counts, the hit ratio and the size of a cache.
+     */
+    static <T> void monitorCache(MeterRegistry registry, String name, T cache,
+                                 ToDoubleFunction<T> hits, ToDoubleFunction<T> misses, ToDoubleFunction<T> size) {
+        FunctionCounter.builder("cache.gets", cache, hits).tags("cache", name, "result", "hit").register(registry);
+        FunctionCounter.builder("cache.gets", cache, misses).tags("cache", name, "result", "miss").register(registry);
+        Gauge.builder("cache.size", cache, size).tag("cache", name).register(registry);
+        Gauge.builder("cache.hit.ratio", cache, value -> {
+            var hit = hits.applyAsDouble(value);
+            var total = hit + misses.applyAsDouble(value);
+            return total == 0 ? Double.NaN : hit / total;
+        }).tag("cache", name).register(registry);
+    }
+
+    /**
+     * Publishes the current limit, the operations in flight and waiting, and the operations shed by a limiter.
+     */
+    static void monitorLimiter(MeterRegistry registry, String collection, String budget, AdaptiveLimiter limiter) {
+        Gauge.builder("datastore.admission.limit", limiter, AdaptiveLimiter::limit)
+                .tags("collection", collection, "budget", budget).register(registry);
+        Gauge.builder("datastore.admission.in.flight", limiter, AdaptiveLimiter::inFlight)
+                .tags("collection", collection, "budget", budget).register(registry);
+        Gauge.builder("datastore.admission.queued", limiter, AdaptiveLimiter::queued)
+                .tags("collection", collection, "budget", budget).register(registry);
+        FunctionCounter.builder("datastore.admission.rejected", limiter, AdaptiveLimiter::rejected)
+                .tags("collection", collection, "budget", budget).register(registry);
+    }
+}
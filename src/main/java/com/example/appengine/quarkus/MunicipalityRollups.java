@@ -0,0 +1,257 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.Datastore;
+import com.example.appengine.quarkus.datastore.Query;
+import com.example.appengine.quarkus.datastore.VersionConflictException;
+import com.example.appengine.quarkus.model.EnergyFeature;
+import com.example.appengine.quarkus.model.EnergyFeatureType;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.MunicipalityStatistics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static com.example.appengine.quarkus.EnergyCalculator.FEATURE_COUNT;
+
+/**
+ * Energy totals per municipality, kept in a datastore of their own with one document per municipality.
+ * Storing or deleting houses adds the difference between the old and the new houses to the documents of
+ * the municipalities involved, so the totals count every house, whichever instance wrote it.
+ * <p>
+ * Documents are changed with a conditional put, tried again if another write got there first. Differences
+ * add up in any order, so concurrent writes end up with the same totals. Only the kWh are stored, expense
+ * and pollution are priced with the tariff of the municipality when the statistics are read.
+ */
+public class MunicipalityRollups implements AutoCloseable {
+
+    /** Field with the same value in every document, indexed so that all municipalities can be listed */
+    static final String LEVEL = "level";
+
+    private static final String MUNICIPALITY = "municipality";
+
+    /** How many times a document that keeps changing is written before giving up */
+    private static final int MAX_ATTEMPTS = 20;
+
+    private static final int PAGE_SIZE = 500;
+
+    /** Energy does not depend on the tariff, so houses are analyzed without one */
+    private static final Tariff NO_TARIFF = Tariff.flat(0.0, 0.0);
+
+    private final Datastore datastore;
+
+    public MunicipalityRollups(Datastore datastore) {
+        if (datastore == null) {
+            throw new IllegalArgumentException("Datastore is missing");
+        }
+
+        this.datastore = datastore;
+    }
+
+    /**
+     * Replaces the houses {@code previous} with {@code current} in the totals. Either may be empty, such as
+     * when houses are created or deleted.
+     *
+     * @throws VersionConflictException if a document kept changing while it was being written
+     */
+    public void update(Collection<House> previous, Collection<House> current) {
+        var deltas = new HashMap<String, Delta>();
+        previous.forEach(house -> add(deltas, house, -1));
+        current.forEach(house -> add(deltas, house, 1));
+        deltas.forEach((municipality, delta) -> {
+            if (!delta.isEmpty()) {
+                apply(municipality, delta);
+            }
+        });
+    }
+
+    /**
+     * Replaces the house {@code previous} with {@code current} in the totals, either may be null.
+     */
+    public void update(House previous, House current) {
+        update(previous == null ? List.of() : List.of(previous), current == null ? List.of() : List.of(current));
+    }
+
+    /**
+     * Counts the houses of a municipality from scratch, replacing its totals. Used to seed the totals from
+     * houses stored before they were kept, or to repair them. Houses written while counting may be missed.
+     */
+    public void recount(String municipalityNumber, Datastore houses) {
+        var delta = new Delta();
+        String cursor = null;
+        do {
+            var page = houses.query(new Query(HouseResource.MUNICIPALITY_NUMBER, municipalityNumber)
+                    .startAfter(cursor)
+                    .limit(PAGE_SIZE), House.class);
+            page.getObjects().values().forEach(house -> delta.add(house, 1));
+            cursor = page.getCursor();
+        } while (cursor != null);
+
+        var document = new Document(municipalityNumber);
+        delta.addTo(document);
+        datastore.put(municipalityNumber, document);
+    }
+
+    /**
+     * Statistics for the given municipality, or for every municipality if null, priced with the tariff of
+     * each municipality.
+     */
+    public List<MunicipalityStatistics> statistics(String municipalityNumber, Function<String, Tariff> tariffs) {
+        var documents = new ArrayList<Document>();
+        if (municipalityNumber != null) {
+            var document = datastore.get(municipalityNumber, Document.class);
+            if (document != null) {
+                documents.add(document);
+            }
+        } else {
+            String cursor = null;
+            do {
+                var page = datastore.query(new Query(LEVEL, MUNICIPALITY).startAfter(cursor).limit(PAGE_SIZE), Document.class);
+                documents.addAll(page.getObjects().values());
+                cursor = page.getCursor();
+            } while (cursor != null);
+        }
+
+        var statistics = new ArrayList<MunicipalityStatistics>();
+        for (var document : documents) {
+            if (document.houses != null && document.houses > 0) {
+                statistics.add(toStatistics(document, tariffs.apply(document.municipalityNumber)));
+            }
+        }
+        statistics.sort((a, b) -> a.municipalityNumber.compareTo(b.municipalityNumber));
+        return statistics;
+    }
+
+    @Override
+    public void close() {
+        datastore.close();
+    }
+
+    private static void add(Map<String, Delta> deltas, House house, int sign) {
+        if (house != null && house.municipalityNumber != null) {
+            deltas.computeIfAbsent(house.municipalityNumber, key -> new Delta()).add(house, sign);
+        }
+    }
+
+    private void apply(String municipalityNumber, Delta delta) {
+        for (int attempt = 1; ; attempt++) {
+            var versioned = datastore.getVersioned(municipalityNumber, Document.class);
+            var document = versioned == null ? new Document(municipalityNumber) : versioned.getObject();
+            delta.addTo(document);
+            try {
+                datastore.put(municipalityNumber, document, versioned == null ? null : versioned.getVersion());
+                return;
+            } catch (VersionConflictException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static MunicipalityStatistics toStatistics(Document document, Tariff tariff) {
+        var statistics = new MunicipalityStatistics();
+        statistics.municipalityNumber = document.municipalityNumber;
+        statistics.houses = document.houses.intValue();
+        statistics.totals = new ArrayList<>();
+        statistics.means = new ArrayList<>();
+        for (var type : EnergyFeatureType.values()) {
+            var count = document.features == null ? null : document.features.get(type.name());
+            var energy = document.energy == null ? null : document.energy.get(type.name());
+            if (count != null && count > 0 && energy != null) {
+                statistics.totals.add(feature(type, energy, tariff));
+                statistics.means.add(feature(type, energy / count, tariff));
+            }
+        }
+        return statistics;
+    }
+
+    private static EnergyFeature feature(EnergyFeatureType type, double energy, Tariff tariff) {
+        var feature = new EnergyFeature();
+        feature.type = type;
+        feature.energy = energy;
+        feature.expense = energy * tariff.price(type);
+        feature.pollution = energy * tariff.pollution(type);
+        return feature;
+    }
+
+    /**
+     * What some houses add to the totals of one municipality.
+     */
+    private static class Delta {
+        long houses;
+        final long[] features = new long[FEATURE_COUNT];
+        final double[] energy = new double[FEATURE_COUNT];
+
+        void add(House house, int sign) {
+            houses += sign;
+            for (var feature : EnergyCalculator.analyze(house, NO_TARIFF).features) {
+                features[feature.type.ordinal()] += sign;
+                energy[feature.type.ordinal()] += sign * feature.energy;
+            }
+        }
+
+        /**
+         * Whether the houses cancel out, such as when a house is stored again without changing its energy.
+         */
+        boolean isEmpty() {
+            if (houses != 0) {
+                return false;
+            }
+
+            for (int type = 0; type < FEATURE_COUNT; type++) {
+                if (features[type] != 0 || energy[type] != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void addTo(Document document) {
+            if (document.features == null) {
+                document.features = new HashMap<>();
+            }
+            if (document.energy == null) {
+                document.energy = new HashMap<>();
+            }
+
+            document.houses = (document.houses == null ? 0 : document.houses) + houses;
+            for (var type : EnergyFeatureType.values()) {
+                var count = features[type.ordinal()];
+                var kwh = energy[type.ordinal()];
+                if (count != 0 || kwh != 0) {
+                    document.features.merge(type.name(), count, Long::sum);
+                    document.energy.merge(type.name(), kwh, Double::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * The stored totals of one municipality. Public with public fields so that every datastore can map it.
+     */
+    public static class Document {
+        public String municipalityNumber;
+
+        public String level = MUNICIPALITY;
+
+        public Long houses;
+
+        /** Number of houses with each feature type, by type name */
+        public Map<String, Long> features = new HashMap<>();
+
+        /** Total yearly kWh of each feature type, by type name */
+        public Map<String, Double> energy = new HashMap<>();
+
+        public Document() {
+        }
+
+        Document(String municipalityNumber) {
+            this.municipalityNumber = municipalityNumber;
+            this.houses = 0L;
+        }
+    }
+}
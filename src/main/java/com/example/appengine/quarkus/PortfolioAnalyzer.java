@@ -0,0 +1,215 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyFeatureType;
+import com.example.appengine.quarkus.model.House;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static com.example.appengine.quarkus.EnergyCalculator.FEATURE_COUNT;
+
+/**
+ * Energy analysis of large numbers of houses at once. Houses are loaded into {@link Columns} of
+ * primitive values, and evaluated in parallel chunks. Expense and pollution are totalled with each
+ * house's own tariff. The kWh per house and feature are only kept, in one flat array, when asked for.
+ */
+public class PortfolioAnalyzer {
+
+    /** Houses evaluated by a single fork-join task */
+    private static final int CHUNK_SIZE = 4096;
+
+    private static final EnergyFeatureType[] TYPES = EnergyFeatureType.values();
+
+    private final ForkJoinPool pool;
+
+    public PortfolioAnalyzer(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool is missing");
+        }
+
+        this.pool = pool;
+    }
+
+    /**
+     * The totals of the houses, without the kWh of each house.
+     */
+    public Result analyze(Columns houses) {
+        return analyze(houses, false);
+    }
+
+    /**
+     * The totals of the houses, and with {@code perHouse} the kWh of each house as well.
+     */
+    public Result analyze(Columns houses, boolean perHouse) {
+        var energy = perHouse ? new double[houses.size * FEATURE_COUNT] : null;
+        var totals = pool.invoke(new Chunk(houses, energy, 0, houses.size));
+        return new Result(houses.size, energy, totals);
+    }
+
+    /**
+     * The inputs of the energy calculation for many houses, one array per field.
+     */
+    public static class Columns {
+        private double[] area;
+        private int[] floors;
+        private int[] constructionYear;
+        private int[] improvements;
+        private boolean[] isApartment;
+        private Tariff[] tariffs;
+        private int size;
+
+        public Columns(int capacity) {
+            area = new double[capacity];
+            floors = new int[capacity];
+            constructionYear = new int[capacity];
+            improvements = new int[capacity];
+            isApartment = new boolean[capacity];
+            tariffs = new Tariff[capacity];
+        }
+
+        public void add(House house, Tariff tariff) {
+            if (size == area.length) {
+                var capacity = Math.max(16, size * 2);
+                area = Arrays.copyOf(area, capacity);
+                floors = Arrays.copyOf(floors, capacity);
+                constructionYear = Arrays.copyOf(constructionYear, capacity);
+                improvements = Arrays.copyOf(improvements, capacity);
+                isApartment = Arrays.copyOf(isApartment, capacity);
+                tariffs = Arrays.copyOf(tariffs, capacity);
+            }
+
+            area[size] = house.area == null ? Double.NaN : house.area;
+            floors[size] = house.floors == null ? 1 : house.floors;
+            constructionYear[size] = house.constructionYear == null ? EnergyCalculator.UNKNOWN_YEAR : house.constructionYear;
+            improvements[size] = EnergyCalculator.improvementMask(house.improvements);
+            isApartment[size] = house.isApartment != null && house.isApartment;
+            tariffs[size] = tariff;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    public static class Result {
+        private final int size;
+        private final double[] energy;
+        private final Totals totals;
+
+        Result(int size, double[] energy, Totals totals) {
+            this.size = size;
+            this.energy = energy;
+            this.totals = totals;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * The kWh of the feature for the house at the given index, NaN if the house does not have the feature.
+         *
+         * @throws IllegalStateException if the houses were analyzed without keeping the kWh of each house
+         */
+        public double energy(int house, EnergyFeatureType type) {
+            if (energy == null) {
+                throw new IllegalStateException("The kWh of each house were not kept");
+            }
+            return energy[house * FEATURE_COUNT + type.ordinal()];
+        }
+
+        /**
+         * The sum of kWh of the feature over all houses that have it.
+         */
+        public double totalEnergy(EnergyFeatureType type) {
+            return totals.energy[type.ordinal()];
+        }
+
+        /**
+         * The sum of the expense of the feature over all houses that have it.
+         */
+        public double totalExpense(EnergyFeatureType type) {
+            return totals.expense[type.ordinal()];
+        }
+
+        /**
+         * The sum of the pollution of the feature over all houses that have it.
+         */
+        public double totalPollution(EnergyFeatureType type) {
+            return totals.pollution[type.ordinal()];
+        }
+
+        /**
+         * The number of houses that have the feature.
+         */
+        public int houses(EnergyFeatureType type) {
+            return totals.houses[type.ordinal()];
+        }
+    }
+
+    private static class Totals {
+        final double[] energy = new double[FEATURE_COUNT];
+        final double[] expense = new double[FEATURE_COUNT];
+        final double[] pollution = new double[FEATURE_COUNT];
+        final int[] houses = new int[FEATURE_COUNT];
+
+        Totals add(Totals other) {
+            for (int type = 0; type < FEATURE_COUNT; type++) {
+                energy[type] += other.energy[type];
+                expense[type] += other.expense[type];
+                pollution[type] += other.pollution[type];
+                houses[type] += other.houses[type];
+            }
+            return this;
+        }
+    }
+
+    private static class Chunk extends RecursiveTask<Totals> {
+        private final Columns houses;
+        /** The kWh of every house, null to only total them */
+        private final double[] energy;
+        private final int from;
+        private final int to;
+
+        Chunk(Columns houses, double[] energy, int from, int to) {
+            this.houses = houses;
+            this.energy = energy;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Totals compute() {
+            if (to - from > CHUNK_SIZE) {
+                var middle = (from + to) >>> 1;
+                var left = new Chunk(houses, energy, from, middle);
+                left.fork();
+                var right = new Chunk(houses, energy, middle, to).compute();
+                return left.join().add(right);
+            }
+
+            var totals = new Totals();
+            // Without the kWh of every house, each house is evaluated into the same few values
+            var values = energy == null ? new double[FEATURE_COUNT] : energy;
+            for (int i = from; i < to; i++) {
+                var offset = energy == null ? 0 : i * FEATURE_COUNT;
+                EnergyCalculator.evaluate(houses.isApartment[i], houses.improvements[i], houses.area[i],
+                        houses.floors[i], houses.constructionYear[i], values, offset);
+
+                var tariff = houses.tariffs[i];
+                for (var type : TYPES) {
+                    var value = values[offset + type.ordinal()];
+                    if (!Double.isNaN(value)) {
+                        totals.energy[type.ordinal()] += value;
+                        totals.expense[type.ordinal()] += value * tariff.price(type);
+                        totals.pollution[type.ordinal()] += value * tariff.pollution(type);
+                        totals.houses[type.ordinal()]++;
+                    }
+                }
+            }
+            return totals;
+        }
+    }
+}
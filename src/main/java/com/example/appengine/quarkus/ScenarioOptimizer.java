@@ -0,0 +1,138 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyFeatureType;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+import com.example.appengine.quarkus.model.ImprovementScenario;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.example.appengine.quarkus.EnergyCalculator.FEATURE_COUNT;
+import static com.example.appengine.quarkus.EnergyCalculator.IMPROVEMENT_MASKS;
+
+/**
+ * Finds the combinations of improvements worth adding to a house. Every combination of the improvements the
+ * house does not have is evaluated in one {@link EnergyCalculator#evaluate(boolean, int[], double, int, int, double[])}
+ * call, and only the Pareto front is kept: a combination is dropped if another one adds no more improvements
+ * and saves at least as much energy, expense and pollution.
+ */
+public class ScenarioOptimizer {
+
+    private static final Improvement[] IMPROVEMENTS = Improvement.values();
+
+    private static final EnergyFeatureType[] TYPES = EnergyFeatureType.values();
+
+    private ScenarioOptimizer() {}
+
+    /**
+     * The non-dominated scenarios, ordered by number of added improvements and then by energy saved.
+     */
+    public static List<ImprovementScenario> paretoFront(House house, Double pricePerKwH, Double CO2KiloPerKwH) {
+        return paretoFront(house, Tariff.flat(pricePerKwH, CO2KiloPerKwH));
+    }
+
+    /**
+     * The non-dominated scenarios, ordered by number of added improvements and then by energy saved, with
+     * expense and pollution savings priced per feature by the tariff.
+     */
+    public static List<ImprovementScenario> paretoFront(House house, Tariff tariff) {
+        var isApartment = house.isApartment != null && house.isApartment;
+        var area = house.area == null ? Double.NaN : house.area;
+        var floors = house.floors == null ? 1 : house.floors;
+        var constructionYear = house.constructionYear == null ? EnergyCalculator.UNKNOWN_YEAR : house.constructionYear;
+
+        var current = EnergyCalculator.improvementMask(house.improvements);
+        var missing = (IMPROVEMENT_MASKS - 1) & ~current;
+
+        // Slot 0 is the house as it is, followed by every non-empty subset of the missing improvements
+        var masks = new int[1 << Integer.bitCount(missing)];
+        masks[0] = current;
+        var count = 1;
+        for (int added = missing; added > 0; added = (added - 1) & missing) {
+            masks[count++] = current | added;
+        }
+
+        var energy = new double[masks.length * FEATURE_COUNT];
+        EnergyCalculator.evaluate(isApartment, masks, area, floors, constructionYear, energy);
+
+        var prices = new double[FEATURE_COUNT];
+        var pollutions = new double[FEATURE_COUNT];
+        for (var type : TYPES) {
+            prices[type.ordinal()] = tariff.price(type);
+            pollutions[type.ordinal()] = tariff.pollution(type);
+        }
+
+        var candidates = new ArrayList<Candidate>(masks.length - 1);
+        for (int i = 1; i < masks.length; i++) {
+            var saving = 0.0;
+            var expense = 0.0;
+            var pollution = 0.0;
+            for (int type = 0; type < FEATURE_COUNT; type++) {
+                var difference = energy[type] - energy[i * FEATURE_COUNT + type];
+                if (!Double.isNaN(difference)) {
+                    saving += difference;
+                    expense += difference * prices[type];
+                    pollution += difference * pollutions[type];
+                }
+            }
+
+            if (saving > 0) {
+                candidates.add(new Candidate(masks[i] & ~current, expense, saving, pollution));
+            }
+        }
+
+        candidates.sort(Comparator.comparingInt((Candidate candidate) -> Integer.bitCount(candidate.added))
+                .thenComparing(Comparator.comparingDouble((Candidate candidate) -> candidate.energy).reversed()));
+
+        // Candidates are sorted so that a dominating candidate always comes before the ones it dominates
+        var front = new ArrayList<Candidate>();
+        for (var candidate : candidates) {
+            if (front.stream().noneMatch(kept -> kept.dominates(candidate))) {
+                front.add(candidate);
+            }
+        }
+
+        var scenarios = new ArrayList<ImprovementScenario>(front.size());
+        for (var candidate : front) {
+            scenarios.add(candidate.toScenario());
+        }
+        return scenarios;
+    }
+
+    private static class Candidate {
+        final int added;
+        final double expense;
+        final double energy;
+        final double pollution;
+
+        Candidate(int added, double expense, double energy, double pollution) {
+            this.added = added;
+            this.expense = expense;
+            this.energy = energy;
+            this.pollution = pollution;
+        }
+
+        boolean dominates(Candidate other) {
+            return Integer.bitCount(added) <= Integer.bitCount(other.added)
+                    && energy >= other.energy
+                    && expense >= other.expense
+                    && pollution >= other.pollution;
+        }
+
+        ImprovementScenario toScenario() {
+            var scenario = new ImprovementScenario();
+            scenario.improvements = new ArrayList<>(Integer.bitCount(added));
+            for (var improvement : IMPROVEMENTS) {
+                if ((added & (1 << improvement.ordinal())) != 0) {
+                    scenario.improvements.add(improvement);
+                }
+            }
+            scenario.energySaving = energy;
+            scenario.expenseSaving = expense;
+            scenario.pollutionSaving = pollution;
+            return scenario;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyFeatureType;
+
+import static com.example.appengine.quarkus.TariffEngine.HOURS_IN_A_YEAR;
+
+/**
+ * The price and pollution of the energy used by each feature of a house. Features use their yearly
+ * energy at different times of the year, so each has its own price per kWh.
+ */
+public interface Tariff {
+
+    /**
+     * The price per kWh of the yearly energy of the feature.
+     */
+    double price(EnergyFeatureType type);
+
+    /**
+     * The kilos of CO2 per kWh of the yearly energy of the feature.
+     */
+    double pollution(EnergyFeatureType type);
+
+    /**
+     * The expense of the part of the feature's yearly kWh that is used from the start of hour {@code fromHour}
+     * of the year up to the start of hour {@code toHour}.
+     */
+    double expense(EnergyFeatureType type, double kwh, int fromHour, int toHour);
+
+    /**
+     * The kilos of CO2 from the part of the feature's yearly kWh that is used from the start of hour
+     * {@code fromHour} of the year up to the start of hour {@code toHour}.
+     */
+    double pollution(EnergyFeatureType type, double kwh, int fromHour, int toHour);
+
+    /**
+     * The same price and pollution for every kWh, whenever it is used.
+     */
+    static Tariff flat(double pricePerKwH, double CO2KiloPerKwH) {
+        return new Tariff() {
+            @Override
+            public double price(EnergyFeatureType type) {
+                return pricePerKwH;
+            }
+
+            @Override
+            public double pollution(EnergyFeatureType type) {
+                return CO2KiloPerKwH;
+            }
+
+            @Override
+            public double expense(EnergyFeatureType type, double kwh, int fromHour, int toHour) {
+                TariffEngine.checkHours(fromHour, toHour);
+                return pricePerKwH * kwh * (toHour - fromHour) / HOURS_IN_A_YEAR;
+            }
+
+            @Override
+            public double pollution(EnergyFeatureType type, double kwh, int fromHour, int toHour) {
+                TariffEngine.checkHours(fromHour, toHour);
+                return CO2KiloPerKwH * kwh * (toHour - fromHour) / HOURS_IN_A_YEAR;
+            }
+        };
+    }
+}
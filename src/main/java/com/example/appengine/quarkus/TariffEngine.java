@@ -0,0 +1,419 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyFeatureType;
+import org.jboss.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Tariffs per price zone, computed from hourly price and emission series.
+ * <p>
+ * The tariff directory holds a file per zone named after the zone, such as {@code NO1.csv}, with a
+ * {@code price,co2} line for every hour of the year in NOK and kilos of CO2 per kWh. An optional
+ * {@code profiles.csv} has a {@code heating,appliances} line for every hour, giving how the yearly energy
+ * of the heating features and of the appliances is spread over the year. Without it energy is spread
+ * evenly. Houses are mapped to zones by {@code zones.csv}, with lines of a municipality number or a
+ * county, the first two digits of a municipality number, followed by its zone. Without it the bundled
+ * county mapping is used.
+ * <p>
+ * For every zone and profile, the hourly prices and emissions weighted by the profile are summed into
+ * prefix sums, so the expense of any range of hours is a single subtraction. The directory is checked for
+ * changes periodically, and reloaded without a restart. Houses in zones without a series, and every
+ * house when no directory is configured, get the flat tariff.
+ */
+public class TariffEngine implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(TariffEngine.class);
+
+    static final int HOURS_IN_A_YEAR = 8760;
+
+    private static final String ZONES = "zones.csv";
+
+    private static final String PROFILES = "profiles.csv";
+
+    private static final String SUFFIX = ".csv";
+
+    /** How the yearly energy of a feature is spread over the hours of the year */
+    enum LoadProfile {
+        HEATING,
+        APPLIANCES
+    }
+
+    private static final LoadProfile[] PROFILES_BY_TYPE = new LoadProfile[EnergyFeatureType.values().length];
+
+    static {
+        for (var type : EnergyFeatureType.values()) {
+            switch (type) {
+                case FRIDGE:
+                case WASHING_MACHINE:
+                case CLOTHES_DRYER:
+                case SHOWER:
+                    PROFILES_BY_TYPE[type.ordinal()] = LoadProfile.APPLIANCES;
+                    break;
+                default:
+                    PROFILES_BY_TYPE[type.ordinal()] = LoadProfile.HEATING;
+            }
+        }
+    }
+
+    private final Path directory;
+
+    private final double pricePerKwH;
+
+    private final double CO2KiloPerKwH;
+
+    private final Tariff flat;
+
+    private volatile Snapshot snapshot;
+
+    /** Modification time of the directory when it last failed to load, so it is not loaded again until it changes */
+    private volatile long rejected = Long.MIN_VALUE;
+
+    private final ScheduledExecutorService reloader;
+
+    /**
+     * A flat tariff for every house.
+     */
+    public TariffEngine(double pricePerKwH, double CO2KiloPerKwH) {
+        this(null, pricePerKwH, CO2KiloPerKwH, null);
+    }
+
+    /**
+     * @param directory      the tariff directory, null to use the flat tariff for every house
+     * @param pricePerKwH    the flat price, for houses outside the zones with a series
+     * @param CO2KiloPerKwH  the flat pollution, for houses outside the zones with a series
+     * @param reloadInterval how often to check the directory for changes
+     */
+    public TariffEngine(Path directory, double pricePerKwH, double CO2KiloPerKwH, Duration reloadInterval) {
+        this.directory = directory;
+        this.pricePerKwH = pricePerKwH;
+        this.CO2KiloPerKwH = CO2KiloPerKwH;
+        this.flat = Tariff.flat(pricePerKwH, CO2KiloPerKwH);
+
+        if (directory == null) {
+            this.snapshot = new Snapshot(0, Map.of(), version(0), 0);
+            this.reloader = null;
+            return;
+        }
+
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Tariff directory " + directory + " does not exist");
+        }
+
+        if (reloadInterval == null || reloadInterval.isNegative() || reloadInterval.isZero()) {
+            throw new IllegalArgumentException("Reload interval must be a positive duration, was " + reloadInterval);
+        }
+
+        try {
+            this.snapshot = load(modified());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "tariff-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reloader.scheduleWithFixedDelay(this::backgroundReload, reloadInterval.toMillis(), reloadInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The tariff for a house in the municipality.
+     */
+    public Tariff tariff(String municipalityNumber) {
+        if (municipalityNumber == null) {
+            return flat;
+        }
+
+        var zones = snapshot.tariffs;
+        var tariff = zones.get(municipalityNumber);
+        if (tariff == null && municipalityNumber.length() > 2) {
+            tariff = zones.get(municipalityNumber.substring(0, 2));
+        }
+        return tariff == null ? flat : tariff;
+    }
+
+    /**
+     * Identifies the tariffs in use, it changes whenever they do.
+     */
+    public String version() {
+        return snapshot.version;
+    }
+
+    /**
+     * Loads the tariff directory again if any file in it has changed since it was last loaded.
+     *
+     * @return whether the tariffs were reloaded
+     * @throws IllegalArgumentException if a file is not valid, in which case the tariffs in use are kept and the
+     *                                  directory is not loaded again until it changes again
+     */
+    public boolean reload() {
+        if (directory == null) {
+            return false;
+        }
+
+        try {
+            var modified = modified();
+            if (modified == snapshot.modified || modified == rejected) {
+                return false;
+            }
+
+            try {
+                snapshot = load(modified);
+            } catch (IllegalArgumentException e) {
+                rejected = modified;
+                throw e;
+            }
+            LOG.infof("tariffs reloaded directory=%s zones=%d version=%s", directory, snapshot.zones, snapshot.version);
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void backgroundReload() {
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            LOG.warn("Tariff reload failed, the previous tariffs are kept", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    /**
+     * The latest modification time of the directory and the files in it, the directory changes when files are
+     * added or removed.
+     */
+    private long modified() throws IOException {
+        try (var files = Files.list(directory)) {
+            var modified = Files.getLastModifiedTime(directory).toMillis();
+            for (var file : files.collect(Collectors.toList())) {
+                modified = Math.max(modified, Files.getLastModifiedTime(file).toMillis());
+            }
+            return modified;
+        }
+    }
+
+    private Snapshot load(long modified) throws IOException {
+        var zones = readZones();
+        var profiles = readProfiles();
+
+        var byZone = new HashMap<String, Tariff>();
+        for (var zone : zones.values()) {
+            var file = directory.resolve(zone + SUFFIX);
+            if (!byZone.containsKey(zone) && Files.isRegularFile(file)) {
+                try (var reader = Files.newBufferedReader(file, UTF_8)) {
+                    var series = readHourly(reader, file.getFileName().toString(), 2);
+                    byZone.put(zone, new ZoneTariff(series[0], series[1], profiles));
+                }
+            }
+        }
+
+        var tariffs = new HashMap<String, Tariff>();
+        zones.forEach((area, zone) -> {
+            var tariff = byZone.get(zone);
+            if (tariff != null) {
+                tariffs.put(area, tariff);
+            }
+        });
+        return new Snapshot(modified, tariffs, version(modified), byZone.size());
+    }
+
+    private String version(long modified) {
+        return Integer.toHexString(Objects.hash(pricePerKwH, CO2KiloPerKwH, modified));
+    }
+
+    /**
+     * Zones by municipality number or county.
+     */
+    private Map<String, String> readZones() throws IOException {
+        var file = directory.resolve(ZONES);
+        try (var reader = Files.isRegularFile(file)
+                ? Files.newBufferedReader(file, UTF_8)
+                : new BufferedReader(new InputStreamReader(TariffEngine.class.getResourceAsStream("/tariff/" + ZONES), UTF_8))) {
+            var zones = new HashMap<String, String>();
+            for (var line : lines(reader)) {
+                var fields = line.split(",");
+                if (fields.length != 2) {
+                    throw new IllegalArgumentException(ZONES + " line '" + line + "' is not an area and a zone");
+                }
+                zones.put(fields[0].trim(), fields[1].trim());
+            }
+            return zones;
+        }
+    }
+
+    /**
+     * The share of the yearly energy used in every hour, per {@link LoadProfile}.
+     */
+    private double[][] readProfiles() throws IOException {
+        var file = directory.resolve(PROFILES);
+        var profiles = new double[LoadProfile.values().length][];
+        if (!Files.isRegularFile(file)) {
+            for (int profile = 0; profile < profiles.length; profile++) {
+                profiles[profile] = new double[HOURS_IN_A_YEAR];
+                Arrays.fill(profiles[profile], 1.0 / HOURS_IN_A_YEAR);
+            }
+            return profiles;
+        }
+
+        try (var reader = Files.newBufferedReader(file, UTF_8)) {
+            var weights = readHourly(reader, PROFILES, profiles.length);
+            for (int profile = 0; profile < profiles.length; profile++) {
+                var total = 0.0;
+                for (var weight : weights[profile]) {
+                    if (weight < 0) {
+                        throw new IllegalArgumentException(PROFILES + " has a negative weight");
+                    }
+                    total += weight;
+                }
+                if (total == 0) {
+                    throw new IllegalArgumentException(PROFILES + " has no weight for " + LoadProfile.values()[profile]);
+                }
+
+                profiles[profile] = new double[HOURS_IN_A_YEAR];
+                for (int hour = 0; hour < HOURS_IN_A_YEAR; hour++) {
+                    profiles[profile][hour] = weights[profile][hour] / total;
+                }
+            }
+            return profiles;
+        }
+    }
+
+    /**
+     * Reads a value per column for every hour of the year, skipping the header line.
+     */
+    private static double[][] readHourly(BufferedReader reader, String name, int columns) throws IOException {
+        var lines = lines(reader);
+        if (lines.size() != HOURS_IN_A_YEAR) {
+            throw new IllegalArgumentException(name + " must have a line for each of the " + HOURS_IN_A_YEAR +
+                    " hours of the year, had " + lines.size());
+        }
+
+        var values = new double[columns][HOURS_IN_A_YEAR];
+        for (int hour = 0; hour < HOURS_IN_A_YEAR; hour++) {
+            var fields = lines.get(hour).split(",");
+            if (fields.length != columns) {
+                throw new IllegalArgumentException(name + " line " + (hour + 2) + " must have " + columns + " values");
+            }
+
+            for (int column = 0; column < columns; column++) {
+                try {
+                    values[column][hour] = Double.parseDouble(fields[column].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(name + " line " + (hour + 2) + " has an invalid value '" + fields[column] + "'");
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The non-empty lines after the header.
+     */
+    private static List<String> lines(BufferedReader reader) throws IOException {
+        var lines = new ArrayList<String>(HOURS_IN_A_YEAR);
+        reader.readLine();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isBlank()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    static void checkHours(int fromHour, int toHour) {
+        if (fromHour < 0 || toHour > HOURS_IN_A_YEAR || fromHour > toHour) {
+            throw new IllegalArgumentException("Hours must be within the year, was " + fromHour + " to " + toHour);
+        }
+    }
+
+    private static class Snapshot {
+        final long modified;
+        final Map<String, Tariff> tariffs;
+        final String version;
+        final int zones;
+
+        Snapshot(long modified, Map<String, Tariff> tariffs, String version, int zones) {
+            this.modified = modified;
+            this.tariffs = tariffs;
+            this.version = version;
+            this.zones = zones;
+        }
+    }
+
+    /**
+     * The tariff of one zone. Index {@code h} of a prefix sum holds the price or pollution of the first
+     * {@code h} hours of the year, weighted by the share of the profile's yearly energy used in them.
+     */
+    private static class ZoneTariff implements Tariff {
+        final double[][] pricePrefix;
+        final double[][] pollutionPrefix;
+
+        ZoneTariff(double[] prices, double[] pollutions, double[][] profiles) {
+            pricePrefix = new double[profiles.length][];
+            pollutionPrefix = new double[profiles.length][];
+            for (int profile = 0; profile < profiles.length; profile++) {
+                pricePrefix[profile] = prefixSum(prices, profiles[profile]);
+                pollutionPrefix[profile] = prefixSum(pollutions, profiles[profile]);
+            }
+        }
+
+        private static double[] prefixSum(double[] values, double[] weights) {
+            var sums = new double[HOURS_IN_A_YEAR + 1];
+            for (int hour = 0; hour < HOURS_IN_A_YEAR; hour++) {
+                sums[hour + 1] = sums[hour] + values[hour] * weights[hour];
+            }
+            return sums;
+        }
+
+        @Override
+        public double price(EnergyFeatureType type) {
+            return pricePrefix[PROFILES_BY_TYPE[type.ordinal()].ordinal()][HOURS_IN_A_YEAR];
+        }
+
+        @Override
+        public double pollution(EnergyFeatureType type) {
+            return pollutionPrefix[PROFILES_BY_TYPE[type.ordinal()].ordinal()][HOURS_IN_A_YEAR];
+        }
+
+        @Override
+        public double expense(EnergyFeatureType type, double kwh, int fromHour, int toHour) {
+            checkHours(fromHour, toHour);
+            var sums = pricePrefix[PROFILES_BY_TYPE[type.ordinal()].ordinal()];
+            return kwh * (sums[toHour] - sums[fromHour]);
+        }
+
+        @Override
+        public double pollution(EnergyFeatureType type, double kwh, int fromHour, int toHour) {
+            checkHours(fromHour, toHour);
+            var sums = pollutionPrefix[PROFILES_BY_TYPE[type.ordinal()].ordinal()];
+            return kwh * (sums[toHour] - sums[fromHour]);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.VersionConflictException;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * A conditional write that lost the race against another write fails its precondition.
+ */
+@Provider
+public class VersionConflictExceptionMapper implements ExceptionMapper<VersionConflictException> {
+
+    @Override
+    public Response toResponse(VersionConflictException exception) {
+        return Response.status(Response.Status.PRECONDITION_FAILED).build();
+    }
+}
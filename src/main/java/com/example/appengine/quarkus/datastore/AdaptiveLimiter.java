@@ -0,0 +1,182 @@
+package com.example.appengine.quarkus.datastore;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many operations are in flight at once, with a bounded queue of operations waiting for a permit.
+ * <p>
+ * The limit follows the latency of the operations. A short term and a long term average of the latency are
+ * kept, and while the short term average stays within {@link #TOLERANCE} of the long term one the limit grows
+ * by its square root each time a permit is released with the limit in use. When latency rises beyond that,
+ * the limit shrinks in proportion, down to the min limit, so fewer operations pile up in a backend that is
+ * slowing down.
+ */
+public class AdaptiveLimiter {
+
+    /** How much the short term latency may exceed the long term latency before the limit shrinks */
+    static final double TOLERANCE = 1.5;
+
+    private static final double SHORT_SMOOTHING = 0.1;
+
+    private static final double LONG_SMOOTHING = 0.01;
+
+    private final String name;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final int queueSize;
+
+    private final long maxWaitNanos;
+
+    private final Duration retryAfter;
+
+    /** Guarded by this */
+    private double limit;
+
+    /** Guarded by this */
+    private int inFlight;
+
+    /** Operations waiting for a permit, oldest first. Guarded by this */
+    private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    /** Average latencies in nanoseconds, NaN until the first release. Guarded by this */
+    private double shortLatency = Double.NaN, longLatency = Double.NaN;
+
+    /** Guarded by this */
+    private long rejected;
+
+    /**
+     * @param name       what the permits are for, used in the message of the exception for operations shed
+     * @param queueSize  how many operations may wait for a permit
+     * @param maxWait    how long an operation may wait for a permit before it is shed
+     * @param retryAfter how long a caller whose operation was shed should wait before trying again
+     */
+    public AdaptiveLimiter(String name, int minLimit, int maxLimit, int queueSize, Duration maxWait, Duration retryAfter) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Limits must be positive with max at least min, was " + minLimit + " and " + maxLimit);
+        }
+
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("Queue size can not be negative, was " + queueSize);
+        }
+
+        if (maxWait == null || maxWait.isNegative()) {
+            throw new IllegalArgumentException("Max wait must be a positive duration, was " + maxWait);
+        }
+
+        if (retryAfter == null || retryAfter.isNegative()) {
+            throw new IllegalArgumentException("Retry after must be a positive duration, was " + retryAfter);
+        }
+
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueSize = queueSize;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.retryAfter = retryAfter;
+        this.limit = Math.max(minLimit, maxLimit / 2.0);
+    }
+
+    /**
+     * Completes once a permit is given, which must be handed back with {@link #release(long)}. Completes
+     * exceptionally with {@link DatastoreOverloadedException} right away if the queue is full, or once the
+     * max wait has passed without a permit.
+     */
+    public CompletableFuture<Void> acquire() {
+        var waiter = new CompletableFuture<Void>();
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (waiting.size() >= queueSize) {
+                rejected++;
+                return CompletableFuture.failedFuture(overloaded());
+            }
+
+            waiting.add(waiter);
+        }
+
+        CompletableFuture.delayedExecutor(maxWaitNanos, TimeUnit.NANOSECONDS).execute(() -> {
+            synchronized (this) {
+                // A waiter no longer in the queue has been given a permit
+                if (!waiting.remove(waiter)) {
+                    return;
+                }
+                rejected++;
+            }
+            waiter.completeExceptionally(overloaded());
+        });
+        return waiter;
+    }
+
+    /**
+     * Hands back a permit once its operation has completed, successfully or not, and adapts the limit to
+     * how long the operation took. Permits freed up are given to the oldest waiters, whose operations then
+     * continue on the calling thread.
+     */
+    public void release(long latencyNanos) {
+        var granted = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            adapt(latencyNanos);
+            inFlight--;
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                granted.add(waiting.poll());
+                inFlight++;
+            }
+        }
+        granted.forEach(waiter -> waiter.complete(null));
+    }
+
+    private void adapt(long latencyNanos) {
+        if (Double.isNaN(shortLatency)) {
+            shortLatency = latencyNanos;
+            longLatency = latencyNanos;
+            return;
+        }
+
+        shortLatency += (latencyNanos - shortLatency) * SHORT_SMOOTHING;
+        longLatency += (latencyNanos - longLatency) * LONG_SMOOTHING;
+
+        // Once a slowdown is over, the long term latency catches up quickly instead of limiting growth for long
+        if (longLatency > 2 * shortLatency) {
+            longLatency *= 0.95;
+        }
+
+        var gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+
+        // A limit that is far from used tells nothing about whether the backend could take more
+        var headroom = inFlight * 2 >= limit ? Math.sqrt(limit) : 0;
+
+        var target = limit * gradient + (gradient < 1.0 ? 0 : headroom);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * 0.8 + target * 0.2));
+    }
+
+    private DatastoreOverloadedException overloaded() {
+        return new DatastoreOverloadedException(name, retryAfter);
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int queued() {
+        return waiting.size();
+    }
+
+    public synchronized long rejected() {
+        return rejected;
+    }
+}
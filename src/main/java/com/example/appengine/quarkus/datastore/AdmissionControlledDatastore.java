@@ -0,0 +1,221 @@
+package com.example.appengine.quarkus.datastore;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Datastore decorator that bounds how many operations are in flight against the decorated datastore, so a
+ * backend that slows down can not tie up every request thread of the instance. Reads and writes have their
+ * own {@link AdaptiveLimiter}, so a burst of writes does not hold up reads, and the other way around.
+ * Operations over many objects, batches and queries, have a limiter of their own too. They take one permit
+ * each but far longer than a single read or write, so their latency would shrink the other limits.
+ * <p>
+ * An operation over the limit waits for a permit in a bounded queue. When the queue is full, or no permit
+ * is given in time, the operation fails with {@link DatastoreOverloadedException} without being run.
+ * Asynchronous operations wait without holding a thread.
+ */
+public class AdmissionControlledDatastore implements Datastore {
+
+    private final Datastore delegate;
+
+    private final AdaptiveLimiter reads;
+
+    private final AdaptiveLimiter writes;
+
+    private final AdaptiveLimiter bulk;
+
+    public AdmissionControlledDatastore(Datastore delegate, AdaptiveLimiter reads, AdaptiveLimiter writes, AdaptiveLimiter bulk) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate is missing");
+        }
+
+        if (reads == null || writes == null || bulk == null) {
+            throw new IllegalArgumentException("Limiters are missing");
+        }
+
+        this.delegate = delegate;
+        this.reads = reads;
+        this.writes = writes;
+        this.bulk = bulk;
+    }
+
+    public AdaptiveLimiter reads() {
+        return reads;
+    }
+
+    public AdaptiveLimiter writes() {
+        return writes;
+    }
+
+    public AdaptiveLimiter bulk() {
+        return bulk;
+    }
+
+    @Override
+    public <T> T get(String id, Class<T> objectClass) {
+        return admit(reads, () -> delegate.get(id, objectClass));
+    }
+
+    @Override
+    public void put(String id, Object object) {
+        admit(writes, () -> {
+            delegate.put(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public String put(Object object) {
+        return admit(writes, () -> delegate.put(object));
+    }
+
+    @Override
+    public void delete(String id) {
+        admit(writes, () -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(Collection<String> ids, Class<T> objectClass) {
+        return admit(bulk, () -> delegate.getAll(ids, objectClass));
+    }
+
+    @Override
+    public void putAll(Map<String, ?> objects) {
+        admit(bulk, () -> {
+            delegate.putAll(objects);
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> putAll(List<?> objects) {
+        return admit(bulk, () -> delegate.putAll(objects));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        admit(bulk, () -> {
+            delegate.deleteAll(ids);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        return admit(bulk, () -> delegate.query(query, objectClass));
+    }
+
+    @Override
+    public String version(String id) {
+        return admit(reads, () -> delegate.version(id));
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        return admit(reads, () -> delegate.getVersioned(id, objectClass));
+    }
+
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        admit(writes, () -> {
+            delegate.put(id, object, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        admit(writes, () -> {
+            delegate.delete(id, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+        return admitAsync(reads, () -> delegate.getAsync(id, objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object) {
+        return admitAsync(writes, () -> delegate.putAsync(id, object));
+    }
+
+    @Override
+    public CompletionStage<String> putAsync(Object object) {
+        return admitAsync(writes, () -> delegate.putAsync(object));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id) {
+        return admitAsync(writes, () -> delegate.deleteAsync(id));
+    }
+
+    @Override
+    public CompletionStage<String> versionAsync(String id) {
+        return admitAsync(reads, () -> delegate.versionAsync(id));
+    }
+
+    @Override
+    public <T> CompletionStage<Versioned<T>> getVersionedAsync(String id, Class<T> objectClass) {
+        return admitAsync(reads, () -> delegate.getVersionedAsync(id, objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        return admitAsync(writes, () -> delegate.putAsync(id, object, expectedVersion));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        return admitAsync(writes, () -> delegate.deleteAsync(id, expectedVersion));
+    }
+
+    /**
+     * Watching holds no permit, a subscription is not an operation in flight.
+     */
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        return delegate.watch(id, objectClass, onChange, onError);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private <T> T admit(AdaptiveLimiter limiter, Supplier<T> call) {
+        try {
+            limiter.acquire().join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+
+        var start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            limiter.release(System.nanoTime() - start);
+        }
+    }
+
+    private <T> CompletionStage<T> admitAsync(AdaptiveLimiter limiter, Supplier<CompletionStage<T>> call) {
+        return limiter.acquire().thenCompose(ignored -> {
+            var start = System.nanoTime();
+            try {
+                return call.get().whenComplete((result, error) -> limiter.release(System.nanoTime() - start));
+            } catch (RuntimeException e) {
+                limiter.release(System.nanoTime() - start);
+                throw e;
+            }
+        });
+    }
+}
@@ -0,0 +1,624 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheBuilder;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Datastore decorator with a bounded read-through cache whose entries expire after a fixed time.
+ * <p>
+ * In write-behind mode puts and deletes are acknowledged as soon as they are queued, and are
+ * written to the underlying datastore in the background. Queued writes are visible to reads on
+ * this instance right away. {@link #flush()} writes everything queued so far, and is called by
+ * {@link #close()}.
+ * <p>
+ * Versions are cached with the objects read along with them. As the underlying datastore only assigns a
+ * version once a write is stored, versioned reads and writes first flush any write queued for the id.
+ * Watchers are told about changes by the underlying datastore, so queued writes reach them once flushed.
+ * <p>
+ * A read only fills the cache if the id has not been written on this instance since the read began, so a
+ * slow read can not replace a newer write with what it read before.
+ */
+public class CachingDatastore implements Datastore {
+
+    private static final Logger LOG = Logger.getLogger(CachingDatastore.class);
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final Datastore delegate;
+
+    private final ObjectMapper mapper;
+
+    private final long ttlNanos;
+
+    /** Evicts the least recently used entries beyond the max size, reads do not lock the whole cache */
+    private final ConcurrentMap<String, CacheEntry> cache;
+
+    /** Counts the writes to the ids in each stripe, ids share a stripe by hash so that the counts stay bounded */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private final boolean writeBehind;
+
+    private final int maxPendingWrites;
+
+    private final Object pendingLock = new Object();
+
+    private final Object flushLock = new Object();
+
+    /** Queued writes by id, an empty value is a delete. Guarded by pendingLock */
+    private Map<String, Optional<Object>> pending = new LinkedHashMap<>();
+
+    /** Writes taken off the queue by the flush in progress. Guarded by pendingLock */
+    private Map<String, Optional<Object>> flushing = Map.of();
+
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public CachingDatastore(Datastore delegate, int maxSize, Duration ttl) {
+        this(delegate, maxSize, ttl, false, 0, null);
+    }
+
+    public CachingDatastore(Datastore delegate, int maxSize, Duration ttl, boolean writeBehind, int maxPendingWrites, Duration flushInterval) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate is missing");
+        }
+
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Max size can not be negative, was " + maxSize);
+        }
+
+        if (ttl == null || ttl.isNegative()) {
+            throw new IllegalArgumentException("Ttl must be a positive duration, was " + ttl);
+        }
+
+        this.delegate = delegate;
+        this.mapper = new ObjectMapper();
+        this.ttlNanos = ttl.toNanos();
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).<String, CacheEntry>build().asMap();
+        this.writeBehind = writeBehind;
+        this.maxPendingWrites = maxPendingWrites;
+
+        if (writeBehind) {
+            if (maxPendingWrites < 1) {
+                throw new IllegalArgumentException("Max pending writes must be positive, was " + maxPendingWrites);
+            }
+
+            if (flushInterval == null || flushInterval.isNegative() || flushInterval.isZero()) {
+                throw new IllegalArgumentException("Flush interval must be a positive duration, was " + flushInterval);
+            }
+
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "datastore-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(this::backgroundFlush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    @Override
+    public <T> T get(String id, Class<T> objectClass) {
+        var local = getLocal(id, objectClass);
+        if (local != null) {
+            return local.orElse(null);
+        }
+
+        var generation = generation(id);
+        return cacheRead(id, generation, delegate.get(id, objectClass));
+    }
+
+    @Override
+    public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+        var local = getLocal(id, objectClass);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local.orElse(null));
+        }
+
+        var generation = generation(id);
+        return delegate.getAsync(id, objectClass).thenApply(object -> cacheRead(id, generation, object));
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(Collection<String> ids, Class<T> objectClass) {
+        var objects = new LinkedHashMap<String, T>();
+        var remaining = new ArrayList<String>();
+        for (var id : ids) {
+            var local = getLocal(id, objectClass);
+            if (local == null) {
+                remaining.add(id);
+            } else {
+                local.ifPresent(object -> objects.put(id, object));
+            }
+        }
+
+        if (!remaining.isEmpty()) {
+            var generations = remaining.stream().map(this::generation).collect(Collectors.toList());
+            var fetched = delegate.getAll(remaining, objectClass);
+            for (int i = 0; i < remaining.size(); i++) {
+                cacheRead(remaining.get(i), generations.get(i), fetched.get(remaining.get(i)));
+            }
+            objects.putAll(fetched);
+        }
+
+        // Keep the order asked for
+        var ordered = new LinkedHashMap<String, T>();
+        ids.stream().filter(objects::containsKey).forEach(id -> ordered.put(id, objects.get(id)));
+        return ordered;
+    }
+
+    /**
+     * Queries go straight to the underlying datastore, so writes still queued in write-behind mode are not seen.
+     */
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        return delegate.query(query, objectClass);
+    }
+
+    /**
+     * Looks up the object among queued writes and unexpired cache entries.
+     * Returns null if the underlying datastore has to be asked.
+     */
+    private <T> Optional<T> getLocal(String id, Class<T> objectClass) {
+        if (writeBehind) {
+            Optional<Object> queued;
+            synchronized (pendingLock) {
+                queued = pending.containsKey(id) ? pending.get(id) : flushing.get(id);
+            }
+
+            if (queued != null) {
+                hits.increment();
+                return queued.map(object -> mapper.convertValue(object, objectClass));
+            }
+        }
+
+        var entry = cache.get(id);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.increment();
+            return Optional.of(mapper.convertValue(entry.value, objectClass));
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    @Override
+    public String version(String id) {
+        var entry = getVersionedLocal(id);
+        return entry != null ? entry.version : delegate.version(id);
+    }
+
+    @Override
+    public CompletionStage<String> versionAsync(String id) {
+        var entry = getVersionedLocal(id);
+        return entry != null ? CompletableFuture.completedFuture(entry.version) : delegate.versionAsync(id);
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        var entry = getVersionedLocal(id);
+        if (entry != null) {
+            return new Versioned<>(mapper.convertValue(entry.value, objectClass), entry.version);
+        }
+
+        var generation = generation(id);
+        return cacheVersioned(id, generation, delegate.getVersioned(id, objectClass));
+    }
+
+    @Override
+    public <T> CompletionStage<Versioned<T>> getVersionedAsync(String id, Class<T> objectClass) {
+        var entry = getVersionedLocal(id);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(new Versioned<>(mapper.convertValue(entry.value, objectClass), entry.version));
+        }
+
+        var generation = generation(id);
+        return delegate.getVersionedAsync(id, objectClass).thenApply(versioned -> cacheVersioned(id, generation, versioned));
+    }
+
+    /**
+     * Looks up an unexpired cache entry whose version is known, after storing any write queued for the id.
+     * Returns null if the underlying datastore has to be asked.
+     */
+    private CacheEntry getVersionedLocal(String id) {
+        flushQueued(id);
+
+        var entry = cache.get(id);
+        if (entry != null && entry.version != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    private <T> Versioned<T> cacheVersioned(String id, long generation, Versioned<T> versioned) {
+        fill(id, generation, versioned == null
+                ? null
+                : new CacheEntry(mapper.valueToTree(versioned.getObject()), versioned.getVersion(), System.nanoTime() + ttlNanos));
+        return versioned;
+    }
+
+    private <T> T cacheRead(String id, long generation, T object) {
+        fill(id, generation, object == null ? null : new CacheEntry(mapper.valueToTree(object), System.nanoTime() + ttlNanos));
+        return object;
+    }
+
+    /**
+     * Caches what was read, or drops the entry if nothing was, unless the id was written since the read began.
+     *
+     * @param generation the generation of the id when the read began
+     */
+    private void fill(String id, long generation, CacheEntry entry) {
+        cache.compute(id, (key, current) -> generation(id) == generation ? entry : current);
+    }
+
+    private long generation(String id) {
+        return generations.get(stripe(id));
+    }
+
+    /**
+     * Caches a written object, after moving on the generation of its id so that reads begun before the write
+     * do not replace it.
+     */
+    private void cacheWrite(String id, Object object) {
+        cacheWrite(id, (JsonNode) mapper.valueToTree(object));
+    }
+
+    private void cacheWrite(String id, JsonNode value) {
+        generations.incrementAndGet(stripe(id));
+        cache.put(id, new CacheEntry(value, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Drops a written id from the cache, after moving on its generation so that reads begun before the write
+     * do not cache it again.
+     */
+    private void uncache(String id) {
+        generations.incrementAndGet(stripe(id));
+        cache.remove(id);
+    }
+
+    private static int stripe(String id) {
+        return Math.floorMod(id.hashCode(), GENERATION_STRIPES);
+    }
+
+    @Override
+    public void put(String id, Object object) {
+        JsonNode value = mapper.valueToTree(object);
+
+        if (writeBehind) {
+            enqueue(id, Optional.of(mapper.convertValue(value, object.getClass())));
+        } else {
+            delegate.put(id, object);
+        }
+
+        cacheWrite(id, value);
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object) {
+        if (writeBehind) {
+            return Datastore.super.putAsync(id, object);
+        }
+
+        JsonNode value = mapper.valueToTree(object);
+        return delegate.putAsync(id, object).thenRun(() -> cacheWrite(id, value));
+    }
+
+    /**
+     * The object stays cached after a conditional put, but its new version is only known once it is read again.
+     */
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        flushQueued(id);
+
+        JsonNode value = mapper.valueToTree(object);
+        try {
+            delegate.put(id, object, expectedVersion);
+        } catch (RuntimeException e) {
+            uncache(id);
+            throw e;
+        }
+
+        cacheWrite(id, value);
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        flushQueued(id);
+
+        JsonNode value = mapper.valueToTree(object);
+        return delegate.putAsync(id, object, expectedVersion).whenComplete((ignored, error) -> {
+            if (error == null) {
+                cacheWrite(id, value);
+            } else {
+                uncache(id);
+            }
+        });
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        flushQueued(id);
+
+        uncache(id);
+        try {
+            delegate.delete(id, expectedVersion);
+        } finally {
+            uncache(id);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        flushQueued(id);
+
+        uncache(id);
+        return delegate.deleteAsync(id, expectedVersion).whenComplete((ignored, error) -> uncache(id));
+    }
+
+    @Override
+    public String put(Object object) {
+        if (writeBehind) {
+            var id = UUID.randomUUID().toString();
+            put(id, object);
+            return id;
+        }
+
+        var id = delegate.put(object);
+        cacheWrite(id, object);
+        return id;
+    }
+
+    @Override
+    public CompletionStage<String> putAsync(Object object) {
+        if (writeBehind) {
+            return Datastore.super.putAsync(object);
+        }
+
+        JsonNode value = mapper.valueToTree(object);
+        return delegate.putAsync(object).thenApply(id -> {
+            cacheWrite(id, value);
+            return id;
+        });
+    }
+
+    @Override
+    public void delete(String id) {
+        uncache(id);
+
+        if (writeBehind) {
+            enqueue(id, Optional.empty());
+        } else {
+            delegate.delete(id);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, ?> objects) {
+        if (writeBehind) {
+            objects.forEach(this::put);
+            return;
+        }
+
+        delegate.putAll(objects);
+        objects.forEach(this::cacheWrite);
+    }
+
+    @Override
+    public List<String> putAll(List<?> objects) {
+        if (writeBehind) {
+            return objects.stream().map(this::put).collect(Collectors.toList());
+        }
+
+        var ids = delegate.putAll(objects);
+        for (int i = 0; i < ids.size(); i++) {
+            cacheWrite(ids.get(i), objects.get(i));
+        }
+        return ids;
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        if (writeBehind) {
+            ids.forEach(this::delete);
+            return;
+        }
+
+        ids.forEach(this::uncache);
+        delegate.deleteAll(ids);
+        ids.forEach(this::uncache);
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id) {
+        if (writeBehind) {
+            return Datastore.super.deleteAsync(id);
+        }
+
+        uncache(id);
+        return delegate.deleteAsync(id).thenRun(() -> uncache(id));
+    }
+
+    private void enqueue(String id, Optional<Object> write) {
+        int queued;
+        synchronized (pendingLock) {
+            pending.remove(id);
+            pending.put(id, write);
+            queued = pending.size();
+        }
+
+        if (queued >= maxPendingWrites) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes everything queued so far if a put or delete of the id is queued or being flushed.
+     */
+    private void flushQueued(String id) {
+        if (!writeBehind) {
+            return;
+        }
+
+        boolean queued;
+        synchronized (pendingLock) {
+            queued = pending.containsKey(id) || flushing.containsKey(id);
+        }
+
+        if (queued) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all queued puts and deletes to the underlying datastore.
+     */
+    public void flush() {
+        if (!writeBehind) {
+            return;
+        }
+
+        synchronized (flushLock) {
+            Map<String, Optional<Object>> batch;
+            synchronized (pendingLock) {
+                batch = pending;
+                flushing = batch;
+                pending = new LinkedHashMap<>();
+            }
+
+            var puts = new LinkedHashMap<String, Object>();
+            var deletes = new ArrayList<String>();
+            batch.forEach((id, write) -> {
+                if (write.isPresent()) {
+                    puts.put(id, write.get());
+                } else {
+                    deletes.add(id);
+                }
+            });
+
+            RuntimeException failure = null;
+            try {
+                delegate.putAll(puts);
+            } catch (RuntimeException e) {
+                requeue(puts.keySet(), batch);
+                failure = e;
+            }
+
+            try {
+                delegate.deleteAll(deletes);
+            } catch (RuntimeException e) {
+                requeue(deletes, batch);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+
+            synchronized (pendingLock) {
+                flushing = Map.of();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Puts failed writes back in the queue, unless they have been superseded by newer ones.
+     */
+    private void requeue(Collection<String> ids, Map<String, Optional<Object>> batch) {
+        synchronized (pendingLock) {
+            ids.forEach(id -> pending.putIfAbsent(id, batch.get(id)));
+        }
+    }
+
+    private void backgroundFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.warn("Write-behind flush failed, writes are kept queued", e);
+        }
+    }
+
+    /**
+     * The number of reads answered without going to the underlying datastore.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        return delegate.watch(id, objectClass, onChange, onError);
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            flush();
+        } finally {
+            delegate.close();
+        }
+    }
+
+    private static class CacheEntry {
+        final JsonNode value;
+        /** The version of the value, null if it is not known */
+        final String version;
+        final long expiresAt;
+
+        CacheEntry(JsonNode value, long expiresAt) {
+            this(value, null, expiresAt);
+        }
+
+        CacheEntry(JsonNode value, String version, long expiresAt) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.appengine.quarkus.datastore;
+
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Tells listeners in this process that the object stored under an id has changed, for datastores that see
+ * every write themselves. Listeners are called on the thread that publishes the change once the change can
+ * be read, so they must not block, and the datastore must not publish from a thread other writes wait on.
+ */
+public class ChangeBus {
+
+    private static final Logger LOG = Logger.getLogger(ChangeBus.class);
+
+    private final Map<String, Set<Runnable>> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * Implements {@link Datastore#watch} by reading the object with the given read, right away and after
+     * every change to it.
+     */
+    public <T> Subscription watch(String id, Supplier<T> read, Consumer<T> onChange, Consumer<Throwable> onError) {
+        var lock = new Object();
+        Runnable changed = () -> {
+            // Reading under the lock makes the last call see the last change, even when changes race
+            synchronized (lock) {
+                T object;
+                try {
+                    object = read.get();
+                } catch (RuntimeException e) {
+                    onError.accept(e);
+                    return;
+                }
+                onChange.accept(object);
+            }
+        };
+
+        var subscription = subscribe(id, changed);
+        changed.run();
+        return subscription;
+    }
+
+    private Subscription subscribe(String id, Runnable listener) {
+        listeners.compute(id, (key, subscribed) -> {
+            var updated = subscribed == null ? ConcurrentHashMap.<Runnable>newKeySet() : subscribed;
+            updated.add(listener);
+            return updated;
+        });
+
+        return () -> listeners.computeIfPresent(id, (key, subscribed) -> {
+            subscribed.remove(listener);
+            return subscribed.isEmpty() ? null : subscribed;
+        });
+    }
+
+    public void publish(String id) {
+        var subscribed = listeners.get(id);
+        if (subscribed == null) {
+            return;
+        }
+
+        for (var listener : subscribed) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LOG.warnf(e, "change listener failed id=%s", id);
+            }
+        }
+    }
+}
@@ -1,8 +1,178 @@
 package com.example.appengine.quarkus.datastore;
 
-public interface Datastore {
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+public interface Datastore extends AutoCloseable {
     <T> T get(String id, Class<T> objectClass);
     void put(String id, Object object);
     String put(Object object);
     void delete(String id);
+
+    /*
+     * Bulk variants. The defaults handle one object at a time, implementations backed by a
+     * remote service group the operations into as few round trips as possible.
+     */
+
+    /**
+     * Returns the objects found for the given ids, in the order asked for. Ids that are not found are left out.
+     */
+    default <T> Map<String, T> getAll(Collection<String> ids, Class<T> objectClass) {
+        var objects = new LinkedHashMap<String, T>();
+        for (var id : ids) {
+            var object = get(id, objectClass);
+            if (object != null) {
+                objects.put(id, object);
+            }
+        }
+        return objects;
+    }
+
+    default void putAll(Map<String, ?> objects) {
+        objects.forEach(this::put);
+    }
+
+    default List<String> putAll(List<?> objects) {
+        return objects.stream().map(this::put).collect(Collectors.toList());
+    }
+
+    default void deleteAll(Collection<String> ids) {
+        ids.forEach(this::delete);
+    }
+
+    /**
+     * Lists one page of the objects matching the query.
+     *
+     * @throws IllegalArgumentException if the store can not answer the query, such as when the field is not indexed
+     */
+    default <T> Page<T> query(Query query, Class<T> objectClass) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support queries");
+    }
+
+    /*
+     * Versions. A version identifies what is stored under an id and changes whenever the object does, so
+     * it can be compared without reading the object itself. Versions are opaque strings, only
+     * comparable within one datastore.
+     */
+
+    /**
+     * The version of the object stored under the id, null if there is none.
+     */
+    default String version(String id) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support versions");
+    }
+
+    /**
+     * The object stored under the id together with its version, null if there is none.
+     */
+    default <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support versions");
+    }
+
+    /**
+     * Replaces the object stored under the id, but only if it is still at the expected version. With a null
+     * expected version the object is only stored if nothing is stored under the id yet.
+     *
+     * @throws VersionConflictException if another version, or nothing, is stored under the id
+     */
+    default void put(String id, Object object, String expectedVersion) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support versions");
+    }
+
+    /**
+     * Deletes the object stored under the id, but only if it is still at the expected version.
+     *
+     * @throws VersionConflictException if another version, or nothing, is stored under the id
+     */
+    default void delete(String id, String expectedVersion) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support versions");
+    }
+
+    /*
+     * Changes. A datastore that can tell when an object changes pushes it to the listeners watching it,
+     * so they do not have to read it again and again to find out.
+     */
+
+    /**
+     * Calls the listener with the object stored under the id, or null if there is none, and again every
+     * time it is stored or deleted, until the subscription is closed. Each call has the object as it was
+     * at the change or later, so a quick succession of changes may be seen more than once or only once.
+     * Calls for one subscription do not overlap, and must not block.
+     *
+     * @param onError called if the object can not be read, or the datastore stops telling about changes
+     */
+    default <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support watching");
+    }
+
+    /*
+     * Asynchronous variants. The defaults run the blocking operation on the calling thread,
+     * implementations backed by a remote service complete the stage without blocking.
+     */
+
+    default <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+        return completed(() -> get(id, objectClass));
+    }
+
+    default CompletionStage<Void> putAsync(String id, Object object) {
+        return completed(() -> {
+            put(id, object);
+            return null;
+        });
+    }
+
+    default CompletionStage<String> putAsync(Object object) {
+        return completed(() -> put(object));
+    }
+
+    default CompletionStage<Void> deleteAsync(String id) {
+        return completed(() -> {
+            delete(id);
+            return null;
+        });
+    }
+
+    default CompletionStage<String> versionAsync(String id) {
+        return completed(() -> version(id));
+    }
+
+    default <T> CompletionStage<Versioned<T>> getVersionedAsync(String id, Class<T> objectClass) {
+        return completed(() -> getVersioned(id, objectClass));
+    }
+
+    default CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        return completed(() -> {
+            put(id, object, expectedVersion);
+            return null;
+        });
+    }
+
+    default CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        return completed(() -> {
+            delete(id, expectedVersion);
+            return null;
+        });
+    }
+
+    /**
+     * Releases resources held by the datastore, making sure any buffered writes are stored first.
+     */
+    @Override
+    default void close() {
+    }
+
+    private static <T> CompletionStage<T> completed(Supplier<T> operation) {
+        try {
+            return CompletableFuture.completedFuture(operation.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
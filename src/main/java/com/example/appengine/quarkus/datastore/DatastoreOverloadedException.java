@@ -0,0 +1,21 @@
+package com.example.appengine.quarkus.datastore;
+
+import java.time.Duration;
+
+/**
+ * Thrown when an operation is shed instead of waiting for a datastore that is already as busy as it is
+ * allowed to be. The operation was not run, and can be retried once the given time has passed.
+ */
+public class DatastoreOverloadedException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public DatastoreOverloadedException(String budget, Duration retryAfter) {
+        super("Datastore is overloaded, no " + budget + " permit available");
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -1,14 +1,44 @@
 package com.example.appengine.quarkus.datastore;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 public class FirestoreDatastoreImpl implements Datastore {
 
+    /** Firestore rejects batches with more writes than this */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private static final int MAX_PARALLEL_COMMITS = 16;
+
+    /** Separates the range value from the id in the cursor of a query with a range filter */
+    private static final char CURSOR_SEPARATOR = ':';
+
     private final String collection;
 
     private final Firestore firestore;
@@ -69,4 +99,313 @@ public class FirestoreDatastoreImpl implements Datastore {
             throw new IllegalStateException(e);
         }
     }
+
+    @Override
+    public String version(String id) {
+        try {
+            return versionAsync(id).toCompletableFuture().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        try {
+            return getVersionedAsync(id, objectClass).toCompletableFuture().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        try {
+            putAsync(id, object, expectedVersion).toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VersionConflictException) {
+                throw (VersionConflictException) e.getCause();
+            }
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        try {
+            deleteAsync(id, expectedVersion).toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VersionConflictException) {
+                throw (VersionConflictException) e.getCause();
+            }
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(Collection<String> ids, Class<T> objectClass) {
+        var objects = new LinkedHashMap<String, T>();
+        if (ids.isEmpty()) {
+            return objects;
+        }
+
+        var references = ids.stream()
+                .map(id -> firestore.collection(collection).document(id))
+                .toArray(DocumentReference[]::new);
+
+        try {
+            for (var snapshot : firestore.getAll(references).get()) {
+                if (snapshot.exists()) {
+                    objects.put(snapshot.getId(), snapshot.toObject(objectClass));
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return objects;
+    }
+
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        try {
+            var reference = firestore.collection(collection);
+            var firestoreQuery = reference.whereEqualTo(query.getField(), query.getValue());
+            for (var filter : query.getEqualTo().entrySet()) {
+                firestoreQuery = firestoreQuery.whereEqualTo(filter.getKey(), filter.getValue());
+            }
+
+            // Firestore requires the first ordering to be on the field with a range filter
+            if (query.getRangeField() != null) {
+                if (query.getRangeFrom() != null) {
+                    firestoreQuery = firestoreQuery.whereGreaterThanOrEqualTo(query.getRangeField(), query.getRangeFrom());
+                }
+                if (query.getRangeTo() != null) {
+                    firestoreQuery = firestoreQuery.whereLessThanOrEqualTo(query.getRangeField(), query.getRangeTo());
+                }
+                firestoreQuery = firestoreQuery.orderBy(query.getRangeField());
+            }
+            firestoreQuery = firestoreQuery.orderBy(FieldPath.documentId());
+
+            // The cursor holds the values ordered on, so paging goes on where it was even if that document changed
+            if (query.getCursor() != null) {
+                firestoreQuery = query.getRangeField() == null
+                        ? firestoreQuery.startAfter(query.getCursor())
+                        : firestoreQuery.startAfter(cursorValue(query.getCursor()), cursorId(query.getCursor()));
+            }
+
+            var objects = new LinkedHashMap<String, T>();
+            QueryDocumentSnapshot last = null;
+            for (var snapshot : firestoreQuery.limit(query.getLimit()).get().get().getDocuments()) {
+                objects.put(snapshot.getId(), snapshot.toObject(objectClass));
+                last = snapshot;
+            }
+
+            if (objects.size() < query.getLimit()) {
+                return new Page<>(objects, null);
+            }
+            return new Page<>(objects, query.getRangeField() == null
+                    ? last.getId()
+                    : String.valueOf(last.get(query.getRangeField())) + CURSOR_SEPARATOR + last.getId());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The range value of a cursor, read back as the kind of number it was written from.
+     */
+    private static Number cursorValue(String cursor) {
+        var separator = cursor.indexOf(CURSOR_SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Cursor '" + cursor + "' is not valid for a query with a range");
+        }
+
+        var value = cursor.substring(0, separator);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException notWhole) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Cursor '" + cursor + "' is not valid for a query with a range");
+            }
+        }
+    }
+
+    private static String cursorId(String cursor) {
+        return cursor.substring(cursor.indexOf(CURSOR_SEPARATOR) + 1);
+    }
+
+    @Override
+    public void putAll(Map<String, ?> objects) {
+        var writes = new ArrayList<Consumer<WriteBatch>>(objects.size());
+        objects.forEach((id, object) -> writes.add(batch -> batch.set(firestore.collection(collection).document(id), object)));
+        commitInBatches(writes);
+    }
+
+    @Override
+    public List<String> putAll(List<?> objects) {
+        var ids = new ArrayList<String>(objects.size());
+        var writes = new ArrayList<Consumer<WriteBatch>>(objects.size());
+        for (var object : objects) {
+            var document = firestore.collection(collection).document();
+            ids.add(document.getId());
+            writes.add(batch -> batch.set(document, object));
+        }
+        commitInBatches(writes);
+        return ids;
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        var writes = new ArrayList<Consumer<WriteBatch>>(ids.size());
+        ids.forEach(id -> writes.add(batch -> batch.delete(firestore.collection(collection).document(id))));
+        commitInBatches(writes);
+    }
+
+    /**
+     * Commits the writes in batches of at most {@link #MAX_BATCH_SIZE}, keeping up to
+     * {@link #MAX_PARALLEL_COMMITS} batches in flight. Batches are atomic on their own, but
+     * a failure may leave earlier batches committed.
+     */
+    private void commitInBatches(List<Consumer<WriteBatch>> writes) {
+        Deque<ApiFuture<List<WriteResult>>> commits = new ArrayDeque<>();
+        try {
+            for (int start = 0; start < writes.size(); start += MAX_BATCH_SIZE) {
+                var batch = firestore.batch();
+                writes.subList(start, Math.min(start + MAX_BATCH_SIZE, writes.size())).forEach(write -> write.accept(batch));
+                commits.addLast(batch.commit());
+
+                if (commits.size() >= MAX_PARALLEL_COMMITS) {
+                    commits.removeFirst().get();
+                }
+            }
+
+            while (!commits.isEmpty()) {
+                commits.removeFirst().get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+        return toCompletionStage(firestore.collection(collection).document(id).get())
+                .thenApply(snapshot -> snapshot.toObject(objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object) {
+        return toCompletionStage(firestore.collection(collection).document(id).set(object))
+                .thenApply(result -> null);
+    }
+
+    @Override
+    public CompletionStage<String> putAsync(Object object) {
+        return toCompletionStage(firestore.collection(collection).add(object))
+                .thenApply(reference -> reference.getId());
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id) {
+        return toCompletionStage(firestore.collection(collection).document(id).delete())
+                .thenApply(result -> null);
+    }
+
+    @Override
+    public CompletionStage<String> versionAsync(String id) {
+        return toCompletionStage(firestore.collection(collection).document(id).get())
+                .thenApply(FirestoreDatastoreImpl::version);
+    }
+
+    @Override
+    public <T> CompletionStage<Versioned<T>> getVersionedAsync(String id, Class<T> objectClass) {
+        return toCompletionStage(firestore.collection(collection).document(id).get())
+                .thenApply(snapshot -> snapshot.exists() ? new Versioned<>(snapshot.toObject(objectClass), version(snapshot)) : null);
+    }
+
+    /**
+     * Reads the version and writes the object in one transaction, which Firestore retries if the
+     * document changes in between.
+     */
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        var reference = firestore.collection(collection).document(id);
+        return toCompletionStage(firestore.runAsyncTransaction(transaction ->
+                ApiFutures.transform(transaction.get(reference), snapshot -> {
+                    if (!Objects.equals(expectedVersion, version(snapshot))) {
+                        throw new VersionConflictException(id, expectedVersion);
+                    }
+
+                    transaction.set(reference, object);
+                    return null;
+                }, MoreExecutors.directExecutor())));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        var reference = firestore.collection(collection).document(id);
+        return toCompletionStage(firestore.runAsyncTransaction(transaction ->
+                ApiFutures.transform(transaction.get(reference), snapshot -> {
+                    if (!snapshot.exists() || !version(snapshot).equals(expectedVersion)) {
+                        throw new VersionConflictException(id, expectedVersion);
+                    }
+
+                    transaction.delete(reference);
+                    return null;
+                }, MoreExecutors.directExecutor())));
+    }
+
+    /**
+     * Driven by a snapshot listener on the document, which is first called with the document as it is.
+     */
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        var registration = firestore.collection(collection).document(id).addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                onError.accept(error);
+            } else {
+                onChange.accept(snapshot != null && snapshot.exists() ? snapshot.toObject(objectClass) : null);
+            }
+        });
+        return registration::remove;
+    }
+
+    /**
+     * The time the document was last written, null if it does not exist.
+     */
+    private static String version(DocumentSnapshot snapshot) {
+        return snapshot.exists() ? snapshot.getUpdateTime().toString() : null;
+    }
+
+    private static <T> CompletableFuture<T> toCompletionStage(ApiFuture<T> future) {
+        var result = new CompletableFuture<T>();
+        ApiFutures.addCallback(future, new ApiFutureCallback<>() {
+            @Override
+            public void onFailure(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    @Override
+    public void close() {
+        try {
+            firestore.close();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -1,45 +1,86 @@
 package com.example.appengine.quarkus.datastore;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
+/**
+ * Datastore kept in memory. Objects are stored encoded by a {@link ValueCodec}, by default
+ * {@link HouseValueCodec}, and decoded into new objects on every read. The version of an object is a
+ * checksum of its encoded form. Changes are pushed to watchers through a {@link ChangeBus}.
+ */
 public class HashMapDatastoreImpl implements Datastore {
 
+    private static final int DEFAULT_CAPACITY = 1024;
+
     private final ObjectMapper mapper;
 
-    private final Map<String, String> map;
+    private final ValueCodec codec;
+
+    private final Map<String, byte[]> map;
+
+    private final SecondaryIndex index;
+
+    private final ChangeBus changes = new ChangeBus();
 
     public HashMapDatastoreImpl() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity      the number of objects the store is sized for up front
+     * @param indexedFields the fields that can be queried on
+     */
+    public HashMapDatastoreImpl(int capacity, String... indexedFields) {
+        this(capacity, new HouseValueCodec(new ObjectMapper()), indexedFields);
+    }
+
+    /**
+     * @param capacity      the number of objects the store is sized for up front
+     * @param codec         how objects are stored
+     * @param indexedFields the fields that can be queried on
+     */
+    public HashMapDatastoreImpl(int capacity, ValueCodec codec, String... indexedFields) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity can not be negative, was " + capacity);
+        }
+
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec is missing");
+        }
+
         this.mapper = new ObjectMapper();
-        this.map = new HashMap<>();
+        this.codec = codec;
+        this.map = new ConcurrentHashMap<>(capacity);
+        this.index = new SecondaryIndex(List.of(indexedFields));
     }
 
     @Override
     public <T> T get(String id, Class<T> objectClass) {
-        return Optional.ofNullable(map.get(id)).map(json -> {
-            try {
-                System.out.println("Got " + id + ":" + json + " from datastore");
-                return mapper.readValue(json, objectClass);
-            } catch (JsonProcessingException e) {
-                throw new IllegalStateException(e);
-            }
-        }).orElse(null);
+        var value = map.get(id);
+        return value == null ? null : codec.decode(value, objectClass);
     }
 
     @Override
     public void put(String id, Object object) {
-        try {
-            String json = mapper.writeValueAsString(object);
-            map.put(id, json);
-            System.out.println("Added " + id + ":" + json + " to datastore");
-        } catch (JsonProcessingException e) {
-            throw new IllegalStateException(e);
-        }
+        JsonNode tree = index.isEmpty() ? null : mapper.valueToTree(object);
+        var encoded = codec.encode(object);
+        // Indexed under the lock of the id, so that the index holds the value of the write that is stored
+        map.compute(id, (key, current) -> {
+            if (tree != null) {
+                index.update(id, tree);
+            }
+            return encoded;
+        });
+        changes.publish(id);
     }
 
     @Override
@@ -51,7 +92,92 @@ public class HashMapDatastoreImpl implements Datastore {
 
     @Override
     public void delete(String id) {
-        map.remove(id);
-        System.out.println("Deleted " + id + " from datastore");
+        map.compute(id, (key, current) -> {
+            index.remove(id);
+            return null;
+        });
+        changes.publish(id);
+    }
+
+    @Override
+    public String version(String id) {
+        var value = map.get(id);
+        return value == null ? null : version(value);
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        var value = map.get(id);
+        return value == null ? null : new Versioned<>(codec.decode(value, objectClass), version(value));
+    }
+
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        JsonNode tree = index.isEmpty() ? null : mapper.valueToTree(object);
+        var encoded = codec.encode(object);
+        map.compute(id, (key, current) -> {
+            if (!Objects.equals(current == null ? null : version(current), expectedVersion)) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+
+            if (tree != null) {
+                index.update(id, tree);
+            }
+            return encoded;
+        });
+        changes.publish(id);
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        map.compute(id, (key, current) -> {
+            if (current == null || !version(current).equals(expectedVersion)) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+
+            index.remove(id);
+            return null;
+        });
+        changes.publish(id);
+    }
+
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        return changes.watch(id, () -> get(id, objectClass), onChange, onError);
+    }
+
+    private static String version(byte[] value) {
+        var checksum = new CRC32();
+        checksum.update(value);
+        return Long.toHexString(checksum.getValue());
+    }
+
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        if (!index.covers(query.getField())) {
+            throw new IllegalArgumentException("Field '" + query.getField() + "' is not indexed");
+        }
+
+        var ids = index.ids(query.getField(), String.valueOf(query.getValue()));
+        if (query.getCursor() != null) {
+            ids = ids.tailSet(query.getCursor(), false);
+        }
+
+        var objects = new LinkedHashMap<String, T>();
+        for (var id : ids) {
+            var value = map.get(id);
+            if (value == null) {
+                continue;
+            }
+
+            if (query.matches(codec.decode(value, JsonNode.class))) {
+                objects.put(id, codec.decode(value, objectClass));
+                if (objects.size() == query.getLimit()) {
+                    return new Page<>(objects, id);
+                }
+            }
+        }
+
+        return new Page<>(objects, null);
     }
 }
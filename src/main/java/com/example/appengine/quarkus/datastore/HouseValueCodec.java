@@ -0,0 +1,299 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact binary encoding of {@link House}, other objects are stored as JSON.
+ * <p>
+ * A house is written as a bit set of the fields that are set, followed by those fields: numbers at
+ * fixed width, improvements as a bit set of their ordinals, and the municipality number and energy
+ * grade as codes into dictionaries shared by all houses. The first byte tells the two formats apart.
+ * <p>
+ * Improvements come back in ordinal order without duplicates or nulls.
+ */
+public class HouseValueCodec implements ValueCodec {
+
+    private static final byte JSON = 0;
+    private static final byte HOUSE = 1;
+
+    private static final int AREA = 1;
+    private static final int FLOORS = 1 << 1;
+    private static final int CONSTRUCTION_YEAR = 1 << 2;
+    private static final int ENERGY_GRADE = 1 << 3;
+    private static final int MUNICIPALITY_NUMBER = 1 << 4;
+    private static final int IS_APARTMENT = 1 << 5;
+    private static final int APARTMENT = 1 << 6;
+    private static final int IMPROVEMENTS = 1 << 7;
+    private static final int DATA = 1 << 8;
+
+    private static final Improvement[] IMPROVEMENT_VALUES = Improvement.values();
+
+    static {
+        if (IMPROVEMENT_VALUES.length > Short.SIZE) {
+            throw new IllegalStateException("Too many improvements for a 16 bit set");
+        }
+    }
+
+    /** Most distinct values kept per dictionary, further values are stored inline */
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private final ObjectMapper mapper;
+
+    private final JsonValueCodec json;
+
+    private final Dictionary municipalities = new Dictionary();
+
+    private final Dictionary energyGrades = new Dictionary();
+
+    public HouseValueCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.json = new JsonValueCodec(mapper);
+    }
+
+    @Override
+    public byte[] encode(Object object) {
+        if (object == null || object.getClass() != House.class) {
+            var value = json.encode(object);
+            var tagged = new byte[value.length + 1];
+            tagged[0] = JSON;
+            System.arraycopy(value, 0, tagged, 1, value.length);
+            return tagged;
+        }
+
+        var house = (House) object;
+        var municipality = reference(municipalities, house.municipalityNumber);
+        var energyGrade = reference(energyGrades, house.energyGrade);
+        var data = house.data == null ? null : house.data.getBytes(UTF_8);
+
+        var fields = 0;
+        var size = 1 + Short.BYTES;
+        if (house.area != null) {
+            fields |= AREA;
+            size += Double.BYTES;
+        }
+        if (house.floors != null) {
+            fields |= FLOORS;
+            size += Integer.BYTES;
+        }
+        if (house.constructionYear != null) {
+            fields |= CONSTRUCTION_YEAR;
+            size += Integer.BYTES;
+        }
+        if (energyGrade != null) {
+            fields |= ENERGY_GRADE;
+            size += energyGrade.length;
+        }
+        if (municipality != null) {
+            fields |= MUNICIPALITY_NUMBER;
+            size += municipality.length;
+        }
+        if (house.isApartment != null) {
+            fields |= house.isApartment ? IS_APARTMENT | APARTMENT : IS_APARTMENT;
+        }
+        if (house.improvements != null) {
+            fields |= IMPROVEMENTS;
+            size += Short.BYTES;
+        }
+        if (data != null) {
+            fields |= DATA;
+            size += varIntSize(data.length) + data.length;
+        }
+
+        var buffer = ByteBuffer.allocate(size)
+                .put(HOUSE)
+                .putShort((short) fields);
+        if (house.area != null) {
+            buffer.putDouble(house.area);
+        }
+        if (house.floors != null) {
+            buffer.putInt(house.floors);
+        }
+        if (house.constructionYear != null) {
+            buffer.putInt(house.constructionYear);
+        }
+        if (energyGrade != null) {
+            buffer.put(energyGrade);
+        }
+        if (municipality != null) {
+            buffer.put(municipality);
+        }
+        if (house.improvements != null) {
+            var improvements = 0;
+            for (var improvement : house.improvements) {
+                if (improvement != null) {
+                    improvements |= 1 << improvement.ordinal();
+                }
+            }
+            buffer.putShort((short) improvements);
+        }
+        if (data != null) {
+            putVarInt(buffer, data.length);
+            buffer.put(data);
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public <T> T decode(byte[] value, Class<T> objectClass) {
+        if (value[0] == JSON) {
+            return json.decode(value, 1, value.length - 1, objectClass);
+        }
+
+        var house = decodeHouse(ByteBuffer.wrap(value, 1, value.length - 1));
+        return objectClass == House.class ? objectClass.cast(house) : mapper.convertValue(house, objectClass);
+    }
+
+    private House decodeHouse(ByteBuffer buffer) {
+        var house = new House();
+        var fields = Short.toUnsignedInt(buffer.getShort());
+        if ((fields & AREA) != 0) {
+            house.area = buffer.getDouble();
+        }
+        if ((fields & FLOORS) != 0) {
+            house.floors = buffer.getInt();
+        }
+        if ((fields & CONSTRUCTION_YEAR) != 0) {
+            house.constructionYear = buffer.getInt();
+        }
+        if ((fields & ENERGY_GRADE) != 0) {
+            house.energyGrade = dereference(energyGrades, buffer);
+        }
+        if ((fields & MUNICIPALITY_NUMBER) != 0) {
+            house.municipalityNumber = dereference(municipalities, buffer);
+        }
+        if ((fields & IS_APARTMENT) != 0) {
+            house.isApartment = (fields & APARTMENT) != 0;
+        }
+        if ((fields & IMPROVEMENTS) != 0) {
+            var improvements = Short.toUnsignedInt(buffer.getShort());
+            house.improvements = new ArrayList<>(Integer.bitCount(improvements));
+            for (var improvement : IMPROVEMENT_VALUES) {
+                if ((improvements & (1 << improvement.ordinal())) != 0) {
+                    house.improvements.add(improvement);
+                }
+            }
+        }
+        if ((fields & DATA) != 0) {
+            var data = new byte[getVarInt(buffer)];
+            buffer.get(data);
+            house.data = new String(data, UTF_8);
+        }
+        return house;
+    }
+
+    /**
+     * The dictionary code plus one, or zero followed by the string itself once the dictionary is full.
+     */
+    private static byte[] reference(Dictionary dictionary, String value) {
+        if (value == null) {
+            return null;
+        }
+
+        var code = dictionary.code(value);
+        if (code >= 0) {
+            var buffer = ByteBuffer.allocate(varIntSize(code + 1));
+            putVarInt(buffer, code + 1);
+            return buffer.array();
+        }
+
+        var bytes = value.getBytes(UTF_8);
+        var buffer = ByteBuffer.allocate(1 + varIntSize(bytes.length) + bytes.length);
+        putVarInt(buffer, 0);
+        putVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+        return buffer.array();
+    }
+
+    private static String dereference(Dictionary dictionary, ByteBuffer buffer) {
+        var code = getVarInt(buffer);
+        if (code > 0) {
+            return dictionary.value(code - 1);
+        }
+
+        var bytes = new byte[getVarInt(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int varIntSize(int value) {
+        var size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        var value = 0;
+        for (int shift = 0; ; shift += 7) {
+            var b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Strings by code, only growing. Codes are looked up without locking, new strings are added under the
+     * dictionary's lock.
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[16];
+        private int size;
+
+        /**
+         * The code of the value, or -1 if the dictionary is full.
+         */
+        int code(String value) {
+            var code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+
+            synchronized (this) {
+                code = codes.get(value);
+                if (code != null) {
+                    return code;
+                }
+
+                if (size == MAX_DICTIONARY_SIZE) {
+                    return -1;
+                }
+
+                if (size == values.length) {
+                    var grown = new String[size * 2];
+                    System.arraycopy(values, 0, grown, 0, size);
+                    values = grown;
+                }
+
+                // The value is in place before the code is handed out
+                values[size] = value;
+                codes.put(value, size);
+                return size++;
+            }
+        }
+
+        String value(int code) {
+            return values[code];
+        }
+    }
+}
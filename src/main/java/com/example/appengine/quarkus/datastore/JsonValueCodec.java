@@ -0,0 +1,39 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Stores any object as UTF-8 JSON.
+ */
+public class JsonValueCodec implements ValueCodec {
+
+    private final ObjectMapper mapper;
+
+    public JsonValueCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public byte[] encode(Object object) {
+        try {
+            return mapper.writeValueAsBytes(object);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] value, Class<T> objectClass) {
+        return decode(value, 0, value.length, objectClass);
+    }
+
+    <T> T decode(byte[] value, int offset, int length, Class<T> objectClass) {
+        try {
+            return mapper.readValue(value, offset, length, objectClass);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
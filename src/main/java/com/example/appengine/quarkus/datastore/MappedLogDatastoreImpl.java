@@ -0,0 +1,800 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Durable datastore kept in a directory on local disk. Objects are appended as JSON to memory-mapped
+ * segment files, and an in-memory index points each id at its latest record.
+ * <p>
+ * Every record is laid out as {@code [length][crc32][type][id length][id][value]}. On startup the
+ * segments are scanned in order to rebuild the index, stopping at the first record that is empty or
+ * fails its checksum, which is where a crash interrupted the last write. The checksum of an object's
+ * latest record doubles as its version.
+ * <p>
+ * Writes are acknowledged once they are synced to disk. A single sync thread forces all segments
+ * written since its last sync in one go, so writes arriving during a sync share the next one.
+ * Segments where at least {@code compactionThreshold} of the bytes are overwritten or deleted are
+ * compacted in the background by copying their live records to the active segment.
+ * <p>
+ * Changes are pushed to watchers through a {@link ChangeBus} once they are synced.
+ */
+public class MappedLogDatastoreImpl implements Datastore {
+
+    private static final Logger LOG = Logger.getLogger(MappedLogDatastoreImpl.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** Length and checksum of a record */
+    private static final int HEADER_SIZE = 8;
+
+    /** Type and id length of a record */
+    private static final int PREFIX_SIZE = 3;
+
+    private static final byte PUT = 1;
+
+    private static final byte DELETE = 2;
+
+    private final ObjectMapper mapper;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final double compactionThreshold;
+
+    private final SecondaryIndex secondaryIndex;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    /** Segments by number, oldest first */
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final ChangeBus changes = new ChangeBus();
+
+    /** Guards appending to the active segment, updating the index and queueing syncs */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Condition syncRequested = writeLock.newCondition();
+
+    private volatile Segment active;
+
+    /** Writes waiting for the next sync. Guarded by writeLock */
+    private List<CompletableFuture<Void>> unsynced = new ArrayList<>();
+
+    /** Segments written since the last sync. Guarded by writeLock */
+    private Set<Segment> dirty = new HashSet<>();
+
+    /** Guarded by writeLock */
+    private boolean closed;
+
+    private final Thread syncer;
+
+    private final ScheduledExecutorService compactor;
+
+    /** Calls watchers once a write is synced, so that they do not hold up the syncs of other writes */
+    private final ExecutorService notifier;
+
+    /**
+     * @param directory           the directory holding the segment files, created if missing
+     * @param segmentSize         the size in bytes of each segment file, which is also the largest object that can be stored
+     * @param compactionInterval  how often to look for segments to compact
+     * @param compactionThreshold the fraction of dead bytes at which a segment is compacted
+     * @param indexedFields       the fields that can be queried on
+     */
+    public MappedLogDatastoreImpl(Path directory, int segmentSize, Duration compactionInterval, double compactionThreshold,
+                                  String... indexedFields) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory is missing");
+        }
+
+        if (segmentSize < HEADER_SIZE + PREFIX_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small, was " + segmentSize);
+        }
+
+        if (compactionInterval == null || compactionInterval.isNegative() || compactionInterval.isZero()) {
+            throw new IllegalArgumentException("Compaction interval must be a positive duration, was " + compactionInterval);
+        }
+
+        if (!(compactionThreshold > 0 && compactionThreshold <= 1)) {
+            throw new IllegalArgumentException("Compaction threshold must be between 0 and 1, was " + compactionThreshold);
+        }
+
+        this.mapper = new ObjectMapper();
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.secondaryIndex = new SecondaryIndex(List.of(indexedFields));
+
+        Files.createDirectories(directory);
+        recover();
+
+        this.syncer = new Thread(this::syncLoop, "datastore-log-sync");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "datastore-log-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactor.scheduleWithFixedDelay(this::backgroundCompact, compactionInterval.toMillis(), compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+        this.notifier = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "datastore-log-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public <T> T get(String id, Class<T> objectClass) {
+        var location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            return mapper.readValue(location.value(), objectClass);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void put(String id, Object object) {
+        await(putAsync(id, object));
+    }
+
+    @Override
+    public String version(String id) {
+        var location = index.get(id);
+        return location == null ? null : location.version();
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        var location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            return new Versioned<>(mapper.readValue(location.value(), objectClass), location.version());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        await(putAsync(id, object, expectedVersion));
+    }
+
+    @Override
+    public String put(Object object) {
+        String id = UUID.randomUUID().toString();
+        put(id, object);
+        return id;
+    }
+
+    @Override
+    public void delete(String id) {
+        await(deleteAsync(id));
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        await(deleteAsync(id, expectedVersion));
+    }
+
+    @Override
+    public void putAll(Map<String, ?> objects) {
+        var trees = new LinkedHashMap<String, JsonNode>();
+        var records = new ArrayList<byte[]>(objects.size());
+        objects.forEach((id, object) -> {
+            JsonNode tree = mapper.valueToTree(object);
+            trees.put(id, tree);
+            records.add(record(PUT, id, tree));
+        });
+
+        CompletableFuture<Void> synced;
+        writeLock.lock();
+        try {
+            var i = 0;
+            for (var entry : trees.entrySet()) {
+                append(records.get(i++), entry.getKey());
+                secondaryIndex.update(entry.getKey(), entry.getValue());
+            }
+            synced = requestSync();
+        } finally {
+            writeLock.unlock();
+        }
+        await(synced);
+        trees.keySet().forEach(changes::publish);
+    }
+
+    @Override
+    public List<String> putAll(List<?> objects) {
+        var ids = objects.stream().map(object -> UUID.randomUUID().toString()).collect(Collectors.toList());
+        var byId = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < ids.size(); i++) {
+            byId.put(ids.get(i), objects.get(i));
+        }
+        putAll(byId);
+        return ids;
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        CompletableFuture<Void> synced;
+        writeLock.lock();
+        try {
+            for (var id : ids) {
+                if (index.containsKey(id)) {
+                    append(record(DELETE, id, null), id);
+                    secondaryIndex.remove(id);
+                }
+            }
+            synced = requestSync();
+        } finally {
+            writeLock.unlock();
+        }
+        await(synced);
+        ids.forEach(changes::publish);
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object) {
+        try {
+            JsonNode tree = mapper.valueToTree(object);
+            var record = record(PUT, id, tree);
+
+            writeLock.lock();
+            try {
+                append(record, id);
+                secondaryIndex.update(id, tree);
+                return requestSync().thenRunAsync(() -> changes.publish(id), notifier);
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        try {
+            JsonNode tree = mapper.valueToTree(object);
+            var record = record(PUT, id, tree);
+
+            writeLock.lock();
+            try {
+                var current = index.get(id);
+                if (!Objects.equals(current == null ? null : current.version(), expectedVersion)) {
+                    throw new VersionConflictException(id, expectedVersion);
+                }
+
+                append(record, id);
+                secondaryIndex.update(id, tree);
+                return requestSync().thenRunAsync(() -> changes.publish(id), notifier);
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<String> putAsync(Object object) {
+        String id = UUID.randomUUID().toString();
+        return putAsync(id, object).thenApply(ignored -> id);
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id) {
+        try {
+            var record = record(DELETE, id, null);
+
+            writeLock.lock();
+            try {
+                if (index.containsKey(id)) {
+                    append(record, id);
+                    secondaryIndex.remove(id);
+                }
+                return requestSync().thenRunAsync(() -> changes.publish(id), notifier);
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        try {
+            var record = record(DELETE, id, null);
+
+            writeLock.lock();
+            try {
+                var current = index.get(id);
+                if (current == null || !current.version().equals(expectedVersion)) {
+                    throw new VersionConflictException(id, expectedVersion);
+                }
+
+                append(record, id);
+                secondaryIndex.remove(id);
+                return requestSync().thenRunAsync(() -> changes.publish(id), notifier);
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        return changes.watch(id, () -> get(id, objectClass), onChange, onError);
+    }
+
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        if (!secondaryIndex.covers(query.getField())) {
+            throw new IllegalArgumentException("Field '" + query.getField() + "' is not indexed");
+        }
+
+        var ids = secondaryIndex.ids(query.getField(), String.valueOf(query.getValue()));
+        if (query.getCursor() != null) {
+            ids = ids.tailSet(query.getCursor(), false);
+        }
+
+        var objects = new LinkedHashMap<String, T>();
+        for (var id : ids) {
+            var location = index.get(id);
+            if (location == null) {
+                continue;
+            }
+
+            try {
+                var tree = mapper.readTree(location.value());
+                if (query.matches(tree)) {
+                    objects.put(id, mapper.treeToValue(tree, objectClass));
+                    if (objects.size() == query.getLimit()) {
+                        return new Page<>(objects, id);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return new Page<>(objects, null);
+    }
+
+    /**
+     * Copies the live records of every sealed segment with enough dead bytes into the active segment,
+     * and removes the segment once the copies are synced.
+     */
+    public void compact() {
+        for (var segment : segments.values()) {
+            if (segment != active && segment.dead.get() >= compactionThreshold * segment.position) {
+                compact(segment);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        writeLock.lock();
+        try {
+            closed = true;
+            syncRequested.signal();
+        } finally {
+            writeLock.unlock();
+        }
+
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        notifier.shutdown();
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (var list = Files.list(directory)) {
+            files = list.filter(path -> segmentNumber(path) > 0)
+                    .sorted((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)))
+                    .collect(Collectors.toList());
+        }
+
+        for (var file : files) {
+            var segment = Segment.open(segmentNumber(file), file, segmentSize);
+            segments.put(segment.number, segment);
+            scan(segment, (type, id, location) -> apply(type, id, location));
+        }
+
+        active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+
+        if (!secondaryIndex.isEmpty()) {
+            for (var entry : index.entrySet()) {
+                secondaryIndex.update(entry.getKey(), mapper.readTree(entry.getValue().value()));
+            }
+        }
+
+        LOG.infof("Recovered %d objects from %d segments in %s", index.size(), segments.size(), directory);
+    }
+
+    /**
+     * Calls the visitor for every intact record in the segment, and leaves the segment positioned after the last one.
+     */
+    private static void scan(Segment segment, RecordVisitor visitor) {
+        var buffer = segment.buffer.duplicate();
+        var offset = 0;
+        while (offset + HEADER_SIZE + PREFIX_SIZE <= buffer.capacity()) {
+            var length = buffer.getInt(offset);
+            if (length < PREFIX_SIZE || offset + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+
+            var checksum = new CRC32();
+            checksum.update(buffer.duplicate().position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length));
+            if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+
+            var type = buffer.get(offset + HEADER_SIZE);
+            var idLength = Short.toUnsignedInt(buffer.getShort(offset + HEADER_SIZE + 1));
+            var id = new byte[idLength];
+            buffer.duplicate().position(offset + HEADER_SIZE + PREFIX_SIZE).get(id);
+
+            visitor.visit(type, new String(id, UTF_8), new Location(segment, offset, HEADER_SIZE + length, idLength));
+            offset += HEADER_SIZE + length;
+        }
+        segment.position = offset;
+    }
+
+    private byte[] record(byte type, String id, JsonNode value) {
+        var idBytes = id.getBytes(UTF_8);
+        if (idBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Id is too long");
+        }
+
+        byte[] valueBytes;
+        try {
+            valueBytes = value == null ? new byte[0] : mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        var length = PREFIX_SIZE + idBytes.length + valueBytes.length;
+        if (HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("Object is larger than the segment size of " + segmentSize + " bytes");
+        }
+
+        var record = ByteBuffer.allocate(HEADER_SIZE + length)
+                .putInt(length)
+                .putInt(0)
+                .put(type)
+                .putShort((short) idBytes.length)
+                .put(idBytes)
+                .put(valueBytes);
+
+        var checksum = new CRC32();
+        checksum.update(record.array(), HEADER_SIZE, length);
+        record.putInt(4, (int) checksum.getValue());
+        return record.array();
+    }
+
+    /**
+     * Writes the record at the end of the active segment and points the index at it. Must hold writeLock.
+     */
+    private Location append(byte[] record, String id) {
+        if (closed) {
+            throw new IllegalStateException("Datastore is closed");
+        }
+
+        if (active.position + record.length > active.buffer.capacity()) {
+            active = createSegment(active.number + 1);
+        }
+
+        var offset = active.position;
+        active.write(offset, record);
+        dirty.add(active);
+
+        var idLength = Short.toUnsignedInt(ByteBuffer.wrap(record).getShort(HEADER_SIZE + 1));
+        var location = new Location(active, offset, record.length, idLength);
+        apply(record[HEADER_SIZE], id, location);
+        return location;
+    }
+
+    /**
+     * Updates the index with a record, counting what it replaces as dead. Deletes are dead from the start,
+     * they are only kept until older segments can no longer hold the object they delete.
+     */
+    private void apply(byte type, String id, Location location) {
+        var previous = type == PUT ? index.put(id, location) : index.remove(id);
+        if (previous != null) {
+            previous.segment.dead.addAndGet(previous.length);
+        }
+
+        if (type == DELETE) {
+            location.segment.dead.addAndGet(location.length);
+        }
+    }
+
+    /**
+     * Must hold writeLock.
+     */
+    private CompletableFuture<Void> requestSync() {
+        if (closed) {
+            throw new IllegalStateException("Datastore is closed");
+        }
+
+        var synced = new CompletableFuture<Void>();
+        unsynced.add(synced);
+        syncRequested.signal();
+        return synced;
+    }
+
+    private void syncLoop() {
+        while (true) {
+            List<CompletableFuture<Void>> batch;
+            Set<Segment> segmentsToSync;
+
+            writeLock.lock();
+            try {
+                while (unsynced.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    syncRequested.awaitUninterruptibly();
+                }
+
+                batch = unsynced;
+                unsynced = new ArrayList<>();
+                segmentsToSync = dirty;
+                dirty = new HashSet<>();
+            } finally {
+                writeLock.unlock();
+            }
+
+            try {
+                for (var segment : segmentsToSync) {
+                    segment.buffer.force();
+                }
+                batch.forEach(synced -> synced.complete(null));
+            } catch (RuntimeException e) {
+                LOG.error("Failed to sync segments", e);
+                batch.forEach(synced -> synced.completeExceptionally(e));
+            }
+        }
+    }
+
+    private void backgroundCompact() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            LOG.error("Failed to compact segments", e);
+        }
+    }
+
+    private void compact(Segment segment) {
+        var oldest = segments.firstKey() == segment.number;
+        var copied = new AtomicLong();
+
+        scan(segment, (type, id, location) -> {
+            writeLock.lock();
+            try {
+                var live = type == PUT ? location.isAt(index.get(id)) : !oldest && !index.containsKey(id);
+                if (live) {
+                    append(location.record(), id);
+                    copied.incrementAndGet();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        });
+
+        CompletableFuture<Void> synced;
+        writeLock.lock();
+        try {
+            synced = requestSync();
+        } finally {
+            writeLock.unlock();
+        }
+        await(synced);
+
+        segments.remove(segment.number);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOG.warnf(e, "Failed to delete compacted segment %s", segment.path);
+        }
+
+        LOG.debugf("Compacted %s, copying %d records", segment.path, copied.get());
+    }
+
+    private Segment createSegment(int number) {
+        try {
+            var segment = Segment.open(number, directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)), segmentSize);
+            // Syncing the records of a new segment does not sync its entry in the directory
+            try (var channel = FileChannel.open(directory, READ)) {
+                channel.force(true);
+            }
+            segments.put(number, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int segmentNumber(Path path) {
+        var name = path.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void await(CompletionStage<Void> stage) {
+        try {
+            stage.toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, String id, Location location);
+    }
+
+    private static class Segment {
+        final int number;
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        /** Offset of the next record. Only changed under writeLock once the segment is recovered */
+        volatile int position;
+
+        /** Bytes of records that have been overwritten or deleted */
+        final AtomicLong dead = new AtomicLong();
+
+        private Segment(int number, Path path, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps an existing segment at its current size, or creates a new one of the given size.
+         */
+        static Segment open(int number, Path path, int size) throws IOException {
+            try (var channel = FileChannel.open(path, CREATE, READ, WRITE)) {
+                var capacity = channel.size() == 0 ? size : channel.size();
+                return new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            }
+        }
+
+        /**
+         * Writes the record, followed by an empty length if there is room, so that leftovers of a record
+         * torn by a crash are not mistaken for a record on the next recovery.
+         */
+        void write(int offset, byte[] record) {
+            var view = buffer.duplicate();
+            view.position(offset);
+            view.put(record);
+            if (view.remaining() >= 4) {
+                view.putInt(0);
+            }
+            position = offset + record.length;
+        }
+    }
+
+    /**
+     * Where a record is stored. Records are never moved, so a location can be read without locking
+     * even while its segment is being compacted.
+     */
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final int idLength;
+
+        Location(Segment segment, int offset, int length, int idLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.idLength = idLength;
+        }
+
+        boolean isAt(Location other) {
+            return other != null && other.segment == segment && other.offset == offset;
+        }
+
+        byte[] record() {
+            var record = new byte[length];
+            segment.buffer.duplicate().position(offset).get(record);
+            return record;
+        }
+
+        byte[] value() {
+            var start = HEADER_SIZE + PREFIX_SIZE + idLength;
+            var value = new byte[length - start];
+            segment.buffer.duplicate().position(offset + start).get(value);
+            return value;
+        }
+
+        /**
+         * The checksum of the record, read from its header.
+         */
+        String version() {
+            return Integer.toHexString(segment.buffer.getInt(offset + 4));
+        }
+    }
+}
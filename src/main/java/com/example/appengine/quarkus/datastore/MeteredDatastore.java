@@ -0,0 +1,258 @@
+package com.example.appengine.quarkus.datastore;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.jboss.logging.Logger;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Datastore decorator that times every operation and counts failures, tagged with the implementation
+ * and collection of the decorated datastore. Asynchronous operations are timed until they complete.
+ * <p>
+ * Failures are always logged. Successful operations are logged for a random sample of calls, so the
+ * log shows typical timings without one line per request.
+ */
+public class MeteredDatastore implements Datastore {
+
+    private static final Logger LOG = Logger.getLogger(MeteredDatastore.class);
+
+    private final Datastore delegate;
+
+    private final MeterRegistry registry;
+
+    private final String implementation;
+
+    private final String collection;
+
+    private final double logSampleRate;
+
+    /** Timers by operation and outcome */
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * @param logSampleRate the fraction of successful operations to log, between 0 and 1
+     */
+    public MeteredDatastore(Datastore delegate, MeterRegistry registry, String collection, double logSampleRate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate is missing");
+        }
+
+        if (registry == null) {
+            throw new IllegalArgumentException("Registry is missing");
+        }
+
+        if (!(logSampleRate >= 0 && logSampleRate <= 1)) {
+            throw new IllegalArgumentException("Log sample rate must be between 0 and 1, was " + logSampleRate);
+        }
+
+        this.delegate = delegate;
+        this.registry = registry;
+        this.implementation = delegate.getClass().getSimpleName();
+        this.collection = collection;
+        this.logSampleRate = logSampleRate;
+    }
+
+    @Override
+    public <T> T get(String id, Class<T> objectClass) {
+        return record("get", () -> delegate.get(id, objectClass));
+    }
+
+    @Override
+    public void put(String id, Object object) {
+        record("put", () -> {
+            delegate.put(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public String put(Object object) {
+        return record("put", () -> delegate.put(object));
+    }
+
+    @Override
+    public void delete(String id) {
+        record("delete", () -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(Collection<String> ids, Class<T> objectClass) {
+        return record("getAll", () -> delegate.getAll(ids, objectClass));
+    }
+
+    @Override
+    public void putAll(Map<String, ?> objects) {
+        record("putAll", () -> {
+            delegate.putAll(objects);
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> putAll(List<?> objects) {
+        return record("putAll", () -> delegate.putAll(objects));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        record("deleteAll", () -> {
+            delegate.deleteAll(ids);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        return record("query", () -> delegate.query(query, objectClass));
+    }
+
+    @Override
+    public String version(String id) {
+        return record("version", () -> delegate.version(id));
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        return record("get", () -> delegate.getVersioned(id, objectClass));
+    }
+
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        record("put", () -> {
+            delegate.put(id, object, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        record("delete", () -> {
+            delegate.delete(id, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+        return recordAsync("get", () -> delegate.getAsync(id, objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object) {
+        return recordAsync("put", () -> delegate.putAsync(id, object));
+    }
+
+    @Override
+    public CompletionStage<String> putAsync(Object object) {
+        return recordAsync("put", () -> delegate.putAsync(object));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id) {
+        return recordAsync("delete", () -> delegate.deleteAsync(id));
+    }
+
+    @Override
+    public CompletionStage<String> versionAsync(String id) {
+        return recordAsync("version", () -> delegate.versionAsync(id));
+    }
+
+    @Override
+    public <T> CompletionStage<Versioned<T>> getVersionedAsync(String id, Class<T> objectClass) {
+        return recordAsync("get", () -> delegate.getVersionedAsync(id, objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        return recordAsync("put", () -> delegate.putAsync(id, object, expectedVersion));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        return recordAsync("delete", () -> delegate.deleteAsync(id, expectedVersion));
+    }
+
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        return record("watch", () -> delegate.watch(id, objectClass, onChange, onError));
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private <T> T record(String operation, Supplier<T> call) {
+        var start = System.nanoTime();
+        try {
+            var result = call.get();
+            succeeded(operation, start);
+            return result;
+        } catch (RuntimeException e) {
+            failed(operation, start, e);
+            throw e;
+        }
+    }
+
+    private <T> CompletionStage<T> recordAsync(String operation, Supplier<CompletionStage<T>> call) {
+        var start = System.nanoTime();
+        try {
+            return call.get().whenComplete((result, error) -> {
+                if (error == null) {
+                    succeeded(operation, start);
+                } else {
+                    failed(operation, start, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+            });
+        } catch (RuntimeException e) {
+            failed(operation, start, e);
+            throw e;
+        }
+    }
+
+    private void succeeded(String operation, long start) {
+        var duration = System.nanoTime() - start;
+        timer(operation, "success").record(duration, TimeUnit.NANOSECONDS);
+
+        if (logSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < logSampleRate) {
+            LOG.infof("datastore operation=%s implementation=%s collection=%s outcome=success durationMs=%.3f",
+                    operation, implementation, collection, duration / 1e6);
+        }
+    }
+
+    private void failed(String operation, long start, Throwable error) {
+        var duration = System.nanoTime() - start;
+        timer(operation, "error").record(duration, TimeUnit.NANOSECONDS);
+        registry.counter("datastore.errors",
+                "implementation", implementation,
+                "collection", collection,
+                "operation", operation,
+                "exception", error.getClass().getSimpleName()
+        ).increment();
+
+        LOG.warnf("datastore operation=%s implementation=%s collection=%s outcome=error durationMs=%.3f exception=%s message=\"%s\"",
+                operation, implementation, collection, duration / 1e6, error.getClass().getName(), error.getMessage());
+    }
+
+    private Timer timer(String operation, String outcome) {
+        return timers.computeIfAbsent(operation + ':' + outcome, key -> registry.timer("datastore.operation",
+                "implementation", implementation,
+                "collection", collection,
+                "operation", operation,
+                "outcome", outcome
+        ));
+    }
+}
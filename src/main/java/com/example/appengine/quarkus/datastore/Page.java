@@ -0,0 +1,32 @@
+package com.example.appengine.quarkus.datastore;
+
+import java.util.Map;
+
+/**
+ * One page of a {@link Query} result.
+ */
+public class Page<T> {
+
+    private final Map<String, T> objects;
+
+    private final String cursor;
+
+    public Page(Map<String, T> objects, String cursor) {
+        this.objects = objects;
+        this.cursor = cursor;
+    }
+
+    /**
+     * The objects on this page by id, in id order.
+     */
+    public Map<String, T> getObjects() {
+        return objects;
+    }
+
+    /**
+     * The cursor to fetch the next page with, null if this is the last page.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A listing of the objects whose indexed field equals a value, ordered by id and fetched one page at a time.
+ * Further equality filters and one inclusive numeric range can narrow the result.
+ */
+public class Query {
+
+    private final String field;
+
+    private final Object value;
+
+    private final Map<String, Object> equalTo = new LinkedHashMap<>();
+
+    private String rangeField;
+
+    private Number rangeFrom;
+
+    private Number rangeTo;
+
+    private String cursor;
+
+    private int limit = 100;
+
+    public Query(String field, Object value) {
+        if (field == null) {
+            throw new IllegalArgumentException("Field is missing");
+        }
+
+        if (value == null) {
+            throw new IllegalArgumentException("Value is missing");
+        }
+
+        this.field = field;
+        this.value = value;
+    }
+
+    public Query whereEqualTo(String field, Object value) {
+        equalTo.put(field, value);
+        return this;
+    }
+
+    /**
+     * Only objects with a value of the field between from and to, both inclusive. Either bound may be null.
+     */
+    public Query whereBetween(String field, Number from, Number to) {
+        if (rangeField != null && !rangeField.equals(field)) {
+            throw new IllegalArgumentException("Only one range filter is supported, already have one on " + rangeField);
+        }
+
+        this.rangeField = field;
+        this.rangeFrom = from;
+        this.rangeTo = to;
+        return this;
+    }
+
+    /**
+     * Continue after the page that returned this cursor. A cursor is opaque to callers, and only valid for
+     * the same query it was returned for.
+     */
+    public Query startAfter(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public Query limit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive, was " + limit);
+        }
+
+        this.limit = limit;
+        return this;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public Map<String, Object> getEqualTo() {
+        return Collections.unmodifiableMap(equalTo);
+    }
+
+    public String getRangeField() {
+        return rangeField;
+    }
+
+    public Number getRangeFrom() {
+        return rangeFrom;
+    }
+
+    public Number getRangeTo() {
+        return rangeTo;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Whether the object, as JSON, passes all filters of the query.
+     */
+    boolean matches(JsonNode object) {
+        if (!isEqual(object.get(field), value)) {
+            return false;
+        }
+
+        for (var filter : equalTo.entrySet()) {
+            if (!isEqual(object.get(filter.getKey()), filter.getValue())) {
+                return false;
+            }
+        }
+
+        if (rangeField != null) {
+            var node = object.get(rangeField);
+            if (node == null || !node.isNumber()) {
+                return false;
+            }
+
+            var number = node.asDouble();
+            if (rangeFrom != null && number < rangeFrom.doubleValue()) {
+                return false;
+            }
+
+            if (rangeTo != null && number > rangeTo.doubleValue()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isEqual(JsonNode node, Object value) {
+        return node != null && !node.isNull() && node.asText().equals(String.valueOf(value));
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted sets of ids per value of the indexed fields, for stores that keep their objects as JSON.
+ * Values are compared by their text form. Lookups may briefly include ids whose value just changed,
+ * so callers check the stored object again.
+ */
+class SecondaryIndex {
+
+    private final Set<String> fields;
+
+    /** Field, then value, then the ids having that value */
+    private final Map<String, Map<String, NavigableSet<String>>> index = new ConcurrentHashMap<>();
+
+    /** The indexed values of each id */
+    private final Map<String, Map<String, String>> values = new ConcurrentHashMap<>();
+
+    SecondaryIndex(Collection<String> fields) {
+        this.fields = Set.copyOf(fields);
+        this.fields.forEach(field -> index.put(field, new ConcurrentHashMap<>()));
+    }
+
+    boolean covers(String field) {
+        return fields.contains(field);
+    }
+
+    boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    void update(String id, JsonNode object) {
+        var updated = new HashMap<String, String>();
+        for (var field : fields) {
+            var value = object.get(field);
+            if (value != null && !value.isNull()) {
+                updated.put(field, value.asText());
+            }
+        }
+
+        values.compute(id, (key, old) -> {
+            if (old != null) {
+                old.forEach((field, value) -> {
+                    if (!value.equals(updated.get(field))) {
+                        ids(field, value).remove(id);
+                    }
+                });
+            }
+            updated.forEach((field, value) -> index.get(field).computeIfAbsent(value, v -> new ConcurrentSkipListSet<>()).add(id));
+            return updated.isEmpty() ? null : updated;
+        });
+    }
+
+    void remove(String id) {
+        values.computeIfPresent(id, (key, old) -> {
+            old.forEach((field, value) -> ids(field, value).remove(id));
+            return null;
+        });
+    }
+
+    /**
+     * The ids having the given value of the field, in id order.
+     */
+    NavigableSet<String> ids(String field, String value) {
+        return index.get(field).getOrDefault(value, Collections.emptyNavigableSet());
+    }
+}
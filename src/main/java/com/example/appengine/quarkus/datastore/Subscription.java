@@ -0,0 +1,10 @@
+package com.example.appengine.quarkus.datastore;
+
+/**
+ * A listener registered with {@link Datastore#watch}, called until the subscription is closed.
+ */
+public interface Subscription extends AutoCloseable {
+
+    @Override
+    void close();
+}
@@ -0,0 +1,17 @@
+package com.example.appengine.quarkus.datastore;
+
+/**
+ * How the in-memory datastore turns objects into bytes and back. Decoding always creates new objects,
+ * so callers can not change stored state through what they read or what they stored.
+ */
+public interface ValueCodec {
+
+    byte[] encode(Object object);
+
+    /**
+     * Decodes a value into the given class, which may be a different class than the one it was encoded
+     * from, as long as the fields map onto each other. {@link com.fasterxml.jackson.databind.JsonNode}
+     * is always supported.
+     */
+    <T> T decode(byte[] value, Class<T> objectClass);
+}
@@ -0,0 +1,13 @@
+package com.example.appengine.quarkus.datastore;
+
+/**
+ * Thrown by a conditional put or delete when the object stored under the id is not the version expected.
+ */
+public class VersionConflictException extends RuntimeException {
+
+    public VersionConflictException(String id, String expectedVersion) {
+        super(expectedVersion == null
+                ? "Object with id '" + id + "' already exists"
+                : "Object with id '" + id + "' is no longer at version " + expectedVersion);
+    }
+}
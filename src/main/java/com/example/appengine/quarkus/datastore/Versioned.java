@@ -0,0 +1,27 @@
+package com.example.appengine.quarkus.datastore;
+
+/**
+ * An object together with the version it is stored as.
+ */
+public class Versioned<T> {
+
+    private final T object;
+
+    private final String version;
+
+    public Versioned(T object, String version) {
+        this.object = object;
+        this.version = version;
+    }
+
+    public T getObject() {
+        return object;
+    }
+
+    /**
+     * The version, see {@link Datastore#version(String)}.
+     */
+    public String getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+@Schema(description = "Usage statistics for a cache")
+public class CacheStatistics {
+
+    @Schema(description = "Number of lookups answered from the cache")
+    public Long hits;
+
+    @Schema(description = "Number of lookups that had to be computed")
+    public Long misses;
+
+    @Schema(description = "Number of entries currently in the cache")
+    public Integer size;
+}
@@ -0,0 +1,16 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+@Schema(description = "The energy analysis of a house as it was stored at one point in time")
+public class EnergyAnalysisVersion {
+
+    @Schema(description = "The version number of the house")
+    public Integer version;
+
+    @Schema(description = "When the version was stored, in ISO-8601 format")
+    public String recordedAt;
+
+    @Schema(description = "The energy analysis of the house in this version")
+    public EnergyAnalysis analysis;
+}
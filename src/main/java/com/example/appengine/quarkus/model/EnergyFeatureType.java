@@ -14,8 +14,6 @@ public enum EnergyFeatureType {
     CLOTHES_DRYER,
     SHOWER;
 
-    private static final Double HOURS_IN_A_YEAR = 365.24 * 24;
-
     public EnergyFeature createFeature(Double kwh, Double pricePerKwH, Double CO2KiloPerKwH) {
         var feature = new EnergyFeature();
         feature.type = this;
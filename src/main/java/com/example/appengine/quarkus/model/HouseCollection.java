@@ -0,0 +1,19 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+import java.util.Map;
+
+@Schema(description = "A set of houses retrieved together, either by id or as one page of a listing")
+public class HouseCollection {
+
+    @Schema(description = "The houses found, by id")
+    public Map<String, House> houses;
+
+    @Schema(description = "Ids that were asked for but not found")
+    public List<String> missing;
+
+    @Schema(description = "Cursor to fetch the next page of a listing with, not set on the last page")
+    public String cursor;
+}
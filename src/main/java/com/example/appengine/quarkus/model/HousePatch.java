@@ -0,0 +1,65 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Schema(description = "Changes to make to a house. Fields that are not set are left as they are")
+public class HousePatch {
+
+    @Schema(description = "The area of the house in square meters")
+    public Double area;
+
+    @Schema(description = "The number of floors in the house")
+    public Integer floors;
+
+    @Schema(description = "The year the house was constructed")
+    public Integer constructionYear;
+
+    @Schema(description = "The energy grade of the house")
+    public String energyGrade;
+
+    @Schema(description = "The municipality number of the address for the house")
+    public String municipalityNumber;
+
+    @Schema(description = "Flag to be set if the house is to be treated as an apartment")
+    public Boolean isApartment;
+
+    @Schema(description = "Improvements to add to the house, if it does not have them already")
+    public List<Improvement> addImprovements;
+
+    @Schema(description = "Improvements to remove from the house")
+    public List<Improvement> removeImprovements;
+
+    /**
+     * A copy of the house with the changes made, leaving the house itself as it is.
+     */
+    public House apply(House house) {
+        var patched = new House();
+        patched.area = area != null ? area : house.area;
+        patched.floors = floors != null ? floors : house.floors;
+        patched.constructionYear = constructionYear != null ? constructionYear : house.constructionYear;
+        patched.energyGrade = energyGrade != null ? energyGrade : house.energyGrade;
+        patched.municipalityNumber = municipalityNumber != null ? municipalityNumber : house.municipalityNumber;
+        patched.isApartment = isApartment != null ? isApartment : house.isApartment;
+        patched.data = house.data;
+
+        if (house.improvements == null && addImprovements == null) {
+            return patched;
+        }
+
+        patched.improvements = house.improvements == null ? new ArrayList<>() : new ArrayList<>(house.improvements);
+        if (removeImprovements != null) {
+            patched.improvements.removeAll(removeImprovements);
+        }
+        if (addImprovements != null) {
+            for (var improvement : addImprovements) {
+                if (improvement != null && !patched.improvements.contains(improvement)) {
+                    patched.improvements.add(improvement);
+                }
+            }
+        }
+        return patched;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+@Schema(description = "A house as it was stored at one point in time")
+public class HouseVersion {
+
+    @Schema(description = "The version number, starting at 1 for the first time the house was stored")
+    public Integer version;
+
+    @Schema(description = "When the version was stored, in ISO-8601 format")
+    public String recordedAt;
+
+    @Schema(description = "The house as stored in this version")
+    public House house;
+}
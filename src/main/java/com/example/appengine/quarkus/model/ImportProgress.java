@@ -0,0 +1,43 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "Progress of an import of houses")
+public class ImportProgress {
+
+    public enum Status {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    @Schema(description = "The id of the import")
+    public String id;
+
+    @Schema(description = "The object in the bucket the houses are read from, not set when they are read from the request")
+    public String object;
+
+    @Schema(description = "Whether the import is still running, has read all rows, or was stopped by an error reading the rows")
+    public Status status;
+
+    @Schema(description = "When the import started, as milliseconds since the epoch")
+    public Long startedAt;
+
+    @Schema(description = "How long the import has been running, or ran, in milliseconds")
+    public Long elapsed;
+
+    @Schema(description = "Number of rows read so far")
+    public Long rows;
+
+    @Schema(description = "Number of houses stored so far")
+    public Long imported;
+
+    @Schema(description = "Number of rows that were not a valid house, and were skipped")
+    public Long invalid;
+
+    @Schema(description = "Number of valid houses that could not be stored")
+    public Long failed;
+
+    @Schema(description = "The first errors, with the line they were found on")
+    public List<String> errors;
+}
@@ -0,0 +1,21 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "A combination of improvements that could be added to a house, and what it would save")
+public class ImprovementScenario {
+
+    @Schema(description = "The improvements to add, in addition to those the house already has")
+    public List<Improvement> improvements;
+
+    @Schema(description = "The energy saved in KW / year")
+    public Double energySaving;
+
+    @Schema(description = "The expenses saved in NOK/Month")
+    public Double expenseSaving;
+
+    @Schema(description = "The pollution avoided in yearly CO2 equivalents")
+    public Double pollutionSaving;
+}
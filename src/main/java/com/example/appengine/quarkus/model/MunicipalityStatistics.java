@@ -0,0 +1,21 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "Energy statistics for the houses in a municipality")
+public class MunicipalityStatistics {
+
+    @Schema(description = "The municipality number")
+    public String municipalityNumber;
+
+    @Schema(description = "The number of houses in the municipality")
+    public Integer houses;
+
+    @Schema(description = "The sum of each feature over the houses that have it")
+    public List<EnergyFeature> totals;
+
+    @Schema(description = "The mean of each feature over the houses that have it")
+    public List<EnergyFeature> means;
+}
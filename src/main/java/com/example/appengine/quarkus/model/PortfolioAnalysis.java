@@ -0,0 +1,18 @@
+package com.example.appengine.quarkus.model;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "Energy analysis aggregated over many houses")
+public class PortfolioAnalysis {
+
+    @Schema(description = "The number of houses analyzed")
+    public Integer houses;
+
+    @Schema(description = "The sum of each feature over the houses that have it")
+    public List<EnergyFeature> totals;
+
+    @Schema(description = "The mean of each feature over the houses that have it")
+    public List<EnergyFeature> means;
+}
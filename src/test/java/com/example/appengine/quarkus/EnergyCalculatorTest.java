@@ -0,0 +1,86 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.EnergyAnalysis;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EnergyCalculatorTest {
+
+    private static final Tariff TARIFF = Tariff.flat(1.5, 0.2);
+
+    @Test
+    void reanalyzeMatchesFullAnalysisForEveryImprovementChange() {
+        var improvements = Improvement.values();
+        for (var isApartment : new boolean[]{false, true}) {
+            for (int mask = 0; mask < EnergyCalculator.IMPROVEMENT_MASKS; mask++) {
+                var before = house(isApartment, mask);
+                var previous = EnergyCalculator.analyze(before, TARIFF);
+
+                for (var changed : improvements) {
+                    var after = house(isApartment, mask ^ (1 << changed.ordinal()));
+                    var expected = EnergyCalculator.analyze(after, TARIFF);
+                    var actual = EnergyCalculator.reanalyze(previous, after, TARIFF, List.of(changed));
+
+                    var reason = "apartment " + isApartment + ", mask " + mask + ", changed " + changed;
+                    assertThat(reason, actual.features.size(), is(expected.features.size()));
+                    for (int i = 0; i < expected.features.size(); i++) {
+                        var feature = expected.features.get(i);
+                        assertThat(reason, actual.features.get(i).type, is(feature.type));
+                        assertThat(reason, actual.features.get(i).energy, is(feature.energy));
+                        assertThat(reason, actual.features.get(i).expense, is(feature.expense));
+                        assertThat(reason, actual.features.get(i).pollution, is(feature.pollution));
+
+                        // Only the features the improvement is declared to affect may change
+                        if (!EnergyCalculator.affectedBy(changed).contains(feature.type)) {
+                            assertThat(reason, energy(previous, i), is(feature.energy));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void defaultsMissingFieldsWithoutSettingThem() {
+        var house = new House();
+        house.area = 120.0;
+
+        var defaulted = house(false, 0);
+        defaulted.floors = 1;
+        defaulted.constructionYear = null;
+        var analysis = EnergyCalculator.analyze(house, TARIFF);
+
+        assertThat(house.floors, is(nullValue()));
+        assertThat(house.isApartment, is(nullValue()));
+        var expected = EnergyCalculator.analyze(defaulted, TARIFF);
+        for (int i = 0; i < expected.features.size(); i++) {
+            assertThat(energy(analysis, i), is(energy(expected, i)));
+        }
+    }
+
+    private static House house(boolean isApartment, int mask) {
+        var house = new House();
+        house.area = 120.0;
+        house.floors = 2;
+        house.constructionYear = 1975;
+        house.isApartment = isApartment;
+        house.improvements = new ArrayList<>();
+        for (var improvement : Improvement.values()) {
+            if ((mask & (1 << improvement.ordinal())) != 0) {
+                house.improvements.add(improvement);
+            }
+        }
+        return house;
+    }
+
+    private static Double energy(EnergyAnalysis analysis, int index) {
+        return analysis.features.get(index).energy;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.HashMapDatastoreImpl;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.HouseVersion;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HouseHistoryTest {
+
+    private final ObjectMapper mapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private final HashMapDatastoreImpl datastore = new HashMapDatastoreImpl(16, HouseHistory.HOUSE_ID);
+
+    private final HashMapDatastoreImpl houses = new HashMapDatastoreImpl();
+
+    private final HouseHistory history = new HouseHistory(datastore, houses, mapper);
+
+    @Test
+    void recordsOnlyChangedHouses() {
+        var id = UUID.randomUUID().toString();
+
+        store(id, house(100.0));
+        store(id, house(100.0));
+        store(id, house(120.0));
+
+        assertThat(areas(history.versions(id)), contains(100.0, 120.0));
+
+        history.delete(List.of(id));
+        assertThat(history.versions(id), is(empty()));
+        assertThat(datastore.get(id, HouseHistory.Head.class), is(nullValue()));
+    }
+
+    @Test
+    void recordsTheStoredHouseWhenWritesAreRecordedOutOfOrder() {
+        var id = UUID.randomUUID().toString();
+        houses.put(id, house(100.0));
+        store(id, house(120.0));
+
+        // The bookkeeping of the first write runs last
+        history.record(id);
+
+        assertThat(areas(history.versions(id)), contains(120.0));
+
+        houses.delete(id);
+        history.record(id);
+        assertThat(areas(history.versions(id)), contains(120.0));
+    }
+
+    @Test
+    void movesHeadOnPastVersionOfStoppedWrite() {
+        var id = UUID.randomUUID().toString();
+        store(id, house(100.0));
+
+        // A write that created version 2 but stopped before moving the head to it
+        var taken = new HouseHistory.Delta();
+        taken.houseId = id;
+        taken.version = 2;
+        taken.recordedAt = System.currentTimeMillis();
+        taken.changed = Map.of("area", 150.0);
+        datastore.put(id + ":0000000002", taken);
+
+        store(id, house(160.0));
+
+        var versions = history.versions(id);
+        assertThat(versions.stream().map(version -> version.version).collect(Collectors.toList()), contains(1, 2, 3));
+        assertThat(areas(versions), contains(100.0, 150.0, 160.0));
+        assertThat(datastore.get(id, HouseHistory.Head.class).version, is(3));
+    }
+
+    private void store(String id, House house) {
+        houses.put(id, house);
+        history.record(id);
+    }
+
+    private static House house(double area) {
+        var house = new House();
+        house.area = area;
+        house.municipalityNumber = "0301";
+        return house;
+    }
+
+    private static List<Double> areas(List<HouseVersion> versions) {
+        return versions.stream().map(version -> version.house.area).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.HashMapDatastoreImpl;
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.ImportProgress;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HouseImporterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Test
+    void boundsBatchesInFlightAndCountsFailedBatches() {
+        var store = new SlowDatastore();
+        var stored = new LongAdder();
+        var importer = new HouseImporter(store, mapper, 10, 2);
+
+        var rows = new StringBuilder();
+        for (int i = 0; i < 95; i++) {
+            rows.append("{\"area\":").append(50 + i).append("}\n");
+        }
+        var progress = importer.run(input(rows.toString()), HouseImporter.Format.NDJSON, (previous, houses) -> stored.add(houses.size()));
+
+        assertThat(progress.status, is(ImportProgress.Status.COMPLETED));
+        assertThat(progress.rows, is(95L));
+        assertThat(progress.imported, is(85L));
+        assertThat(progress.failed, is(10L));
+        assertThat(progress.errors, contains(startsWith("Line 31: Batch of 10 houses could not be stored")));
+        assertThat(stored.sum(), is(85L));
+        assertThat(store.maxInFlight.get(), is(2));
+        assertThat(importer.job(progress.id).imported, is(85L));
+        importer.close();
+    }
+
+    @Test
+    void replacesEachKeyedHouseOnce() {
+        var importer = new HouseImporter(new HashMapDatastoreImpl(), mapper, 1, 4);
+        var id = UUID.randomUUID();
+        var rows = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            rows.append("{\"id\":\"").append(id).append("\",\"area\":").append(50 + i).append("}\n");
+        }
+
+        // Houses added to and taken out of the statistics, which must leave one house however batches race
+        var counted = new AtomicInteger();
+        var progress = importer.run(input(rows.toString()), HouseImporter.Format.NDJSON,
+                (previous, houses) -> counted.addAndGet(houses.size() - previous.size()));
+
+        assertThat(progress.imported, is(40L));
+        assertThat(counted.get(), is(1));
+        importer.close();
+    }
+
+    @Test
+    void splitsQuotedCsvFields() {
+        assertThat(HouseImporter.fields("a,\"b, c\",\"say \"\"hi\"\"\",,"), contains("a", "b, c", "say \"hi\"", "", ""));
+        assertThrows(IllegalArgumentException.class, () -> HouseImporter.fields("a,\"b"));
+    }
+
+    @Test
+    void readsQuotedLineBreaksAndSkipsLongRows() {
+        var importer = new HouseImporter(new HashMapDatastoreImpl(), mapper, 10, 1);
+        var csv = "area,data\r\n" +
+                "100,\"Storgata 1,\nOslo\"\r\n" +
+                "110,\"" + "x".repeat(HouseImporter.MAX_ROW_LENGTH) + "\"\n" +
+                "120,\"Bergen\"\n";
+
+        var data = new ConcurrentLinkedQueue<String>();
+        var progress = importer.run(input(csv), HouseImporter.Format.CSV,
+                (previous, houses) -> houses.values().forEach(house -> data.add(house.data)));
+
+        assertThat(progress.status, is(ImportProgress.Status.COMPLETED));
+        assertThat(progress.rows, is(3L));
+        assertThat(progress.imported, is(2L));
+        assertThat(progress.errors, contains("Line 4: Row is longer than " + HouseImporter.MAX_ROW_LENGTH + " characters"));
+        assertThat(data, containsInAnyOrder("Storgata 1,\nOslo", "Bergen"));
+        importer.close();
+    }
+
+    private static ByteArrayInputStream input(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Takes a while to store each batch, and fails to store the batch starting with a house of 80 square meters.
+     */
+    private static class SlowDatastore extends HashMapDatastoreImpl {
+
+        final AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+
+        @Override
+        public List<String> putAll(List<?> objects) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+                if (((House) objects.get(0)).area == 80) {
+                    throw new IllegalStateException("Unavailable");
+                }
+                return super.putAll(objects);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.appengine.quarkus;
+
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+
+import static com.example.appengine.quarkus.LoadTestProfile.property;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Measures how the service behaves under load against a datastore with Firestore-like latency. Only run
+ * with {@code mvn -Pload test}, see the README for the properties that shape the load.
+ */
+@QuarkusTest
+@TestProfile(LoadTestProfile.class)
+@Tag("load")
+public class HouseResourceLoadTest {
+
+    private static final Logger LOG = Logger.getLogger(HouseResourceLoadTest.class);
+
+    @TestHTTPResource("/")
+    URI base;
+
+    @Test
+    public void mixedTraffic() {
+        var harness = new LoadHarness(base,
+                LoadHarness.mix(property("load.mix", "post=1,get=4,energy=4,delete=1")),
+                Double.parseDouble(property("load.rate", "100")),
+                Long.parseLong(property("load.seed", "42")));
+
+        harness.prefill(Integer.parseInt(property("load.houses", "100")));
+        harness.run(Duration.parse("PT" + property("load.warmup", "5S")));
+        var report = harness.run(Duration.parse("PT" + property("load.duration", "20S")));
+        LOG.infof("load report%n%s", report);
+
+        // Requests may be shed, but apart from the injected datastore errors every request is answered
+        assertThat(report.succeeded(), is(greaterThan(0L)));
+        assertThat((double) report.errors(), is(lessThanOrEqualTo(report.count() * 0.01)));
+    }
+}
@@ -18,6 +18,8 @@ package com.example.appengine.quarkus;
 
 import com.example.appengine.quarkus.model.EnergyFeatureType;
 import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+import io.quarkus.test.common.http.TestHTTPResource;
 import io.quarkus.test.junit.QuarkusTest;
 import io.restassured.RestAssured;
 import io.restassured.http.ContentType;
@@ -25,19 +27,33 @@ import org.hamcrest.Matchers;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
 import static io.restassured.RestAssured.given;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 
 @QuarkusTest
 public class HouseResourceTest {
 
+    @TestHTTPResource("/")
+    URI base;
 
     @BeforeEach
     public void setUp() {
         RestAssured.enableLoggingOfRequestAndResponseIfValidationFails();
-        System.setProperty("store.impl", "HashMap");
     }
 
 
@@ -168,4 +184,805 @@ public class HouseResourceTest {
                         not(containsString(EnergyFeatureType.FLOORS.toString()))
                 ));
     }
+
+    @Test
+    void scenariosOnlyAddMissingImprovements() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 140.0;
+        house.constructionYear = 1985;
+        house.improvements = List.of(Improvement.SOLAR_CELLS);
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/" + uuid + "/energy/scenarios")
+                .then()
+                .statusCode(200)
+                .body("size()", greaterThan(0))
+                .body("[0].improvements.size()", is(1))
+                .body("improvements.flatten()", not(hasItem(Improvement.SOLAR_CELLS.toString())))
+                .body("energySaving", everyItem(greaterThan(0f)));
+    }
+
+    @Test
+    void historyKeepsEveryVersion() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 140.0;
+        house.constructionYear = 1985;
+        house.municipalityNumber = "0301";
+
+        given().when().body(house).contentType(ContentType.JSON).post("/houses/" + uuid).then().statusCode(204);
+
+        house.improvements = List.of(Improvement.WINDOWS);
+        given().when().body(house).contentType(ContentType.JSON).post("/houses/" + uuid).then().statusCode(204);
+
+        // Storing the same house again is not a new version
+        given().when().body(house).contentType(ContentType.JSON).post("/houses/" + uuid).then().statusCode(204);
+
+        house.municipalityNumber = null;
+        given().when().body(house).contentType(ContentType.JSON).post("/houses/" + uuid).then().statusCode(204);
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/" + uuid + "/history")
+                .then()
+                .statusCode(200)
+                .body("version", contains(1, 2, 3))
+                .body("[0].house.improvements", is(nullValue()))
+                .body("[1].house.improvements", contains(Improvement.WINDOWS.toString()))
+                .body("[1].house.municipalityNumber", is("0301"))
+                .body("[2].house.municipalityNumber", is(nullValue()))
+                .body("[2].house.area", is(140.0f));
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/" + uuid + "/energy/history")
+                .then()
+                .statusCode(200)
+                .body("size()", is(3))
+                .body("[1].analysis.features.size()", greaterThan(0));
+    }
+
+    @Test
+    void conditionalGetAnswersNotModified() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 120.0;
+        house.constructionYear = 1975;
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        var etag = given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .header("ETag", notNullValue())
+                .extract().header("ETag");
+
+        var energyEtag = given()
+                .when()
+                .get("/houses/" + uuid + "/energy")
+                .then()
+                .statusCode(200)
+                .header("ETag", not(etag))
+                .extract().header("ETag");
+
+        given()
+                .when()
+                .header("If-None-Match", etag)
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(304)
+                .header("ETag", etag);
+
+        given()
+                .when()
+                .header("If-None-Match", energyEtag)
+                .get("/houses/" + uuid + "/energy")
+                .then()
+                .statusCode(304);
+
+        house.area = 150.0;
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        given()
+                .when()
+                .header("If-None-Match", etag)
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .header("ETag", not(etag))
+                .body("area", is(150.0f));
+
+        given()
+                .when()
+                .header("If-None-Match", energyEtag)
+                .get("/houses/" + uuid + "/energy")
+                .then()
+                .statusCode(200);
+    }
+
+    @Test
+    void conditionalPostRejectsStaleVersion() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 80.0;
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .header("If-Match", "*")
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(412);
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        var etag = given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .extract().header("ETag");
+
+        house.area = 90.0;
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .header("If-Match", etag)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        house.area = 100.0;
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .header("If-Match", etag)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(412);
+
+        given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("area", is(90.0f));
+    }
+
+    @Test
+    void patchAddsImprovementAndReanalyzes() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 100.0;
+        house.constructionYear = 1990;
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .body("{\"addImprovements\":[\"SHOWER\"]}")
+                .contentType(ContentType.JSON)
+                .patch("/houses/" + uuid)
+                .then()
+                .statusCode(404);
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        var before = given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/" + uuid + "/energy")
+                .then()
+                .statusCode(200)
+                .extract().jsonPath();
+        var etag = given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .extract().header("ETag");
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .body("{\"addImprovements\":[\"SHOWER\"]}")
+                .contentType(ContentType.JSON)
+                .patch("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("features.find { it.type == 'SHOWER' }.energy",
+                        lessThan(before.getFloat("features.find { it.type == 'SHOWER' }.energy")))
+                .body("features.find { it.type == 'WALLS' }.energy",
+                        is(before.getFloat("features.find { it.type == 'WALLS' }.energy")))
+                .body("features.find { it.type == 'HEATING_UNIT' }.energy",
+                        is(before.getFloat("features.find { it.type == 'HEATING_UNIT' }.energy")));
+
+        given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("improvements", contains(Improvement.SHOWER.toString()))
+                .body("area", is(100.0f))
+                .body("floors", is(nullValue()))
+                .body("isApartment", is(nullValue()));
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .body("{\"area\":120.0}")
+                .contentType(ContentType.JSON)
+                .header("If-Match", etag)
+                .patch("/houses/" + uuid)
+                .then()
+                .statusCode(412);
+
+        // Analyzed in full, which leaves fields the client did not send unset
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .body("{\"area\":110.0}")
+                .contentType(ContentType.JSON)
+                .patch("/houses/" + uuid)
+                .then()
+                .statusCode(200);
+
+        given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("area", is(110.0f))
+                .body("floors", is(nullValue()))
+                .body("isApartment", is(nullValue()));
+    }
+
+    @Test
+    void checkBatchEnergyEndpoint() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 60.0;
+        house.constructionYear = 2006;
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        given()
+                .when()
+                .body(List.of(house, uuid.toString(), UUID.randomUUID().toString()))
+                .contentType(ContentType.JSON)
+                .accept(ContentType.JSON)
+                .post("/houses/energy/batch")
+                .then()
+                .statusCode(200)
+                .body("size()", is(3))
+                .body("[0].features.size()", is(9))
+                .body("[1].features.size()", is(9))
+                .body("[2]", nullValue());
+    }
+
+    @Test
+    void checkEnergyAnalysisIsCached() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 90.0;
+        house.constructionYear = 1990;
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        long hits = given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/energy/cache")
+                .then()
+                .statusCode(200)
+                .extract().jsonPath().getLong("hits");
+
+        for (int i = 0; i < 2; i++) {
+            given()
+                    .when()
+                    .accept(ContentType.JSON)
+                    .get("/houses/" + uuid + "/energy")
+                    .then()
+                    .statusCode(200);
+        }
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/energy/cache")
+                .then()
+                .statusCode(200)
+                .body("hits", greaterThan((int) hits));
+    }
+
+    @Test
+    void bulkPostAndDelete() {
+        var first = new House();
+        first.data = UUID.randomUUID().toString();
+        var second = new House();
+        second.data = UUID.randomUUID().toString();
+
+        List<String> ids = given()
+                .when()
+                .body(List.of(first, second))
+                .contentType(ContentType.JSON)
+                .accept(ContentType.JSON)
+                .post("/houses/bulk")
+                .then()
+                .statusCode(200)
+                .body("size()", is(2))
+                .extract().jsonPath().getList(".", String.class);
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .get("/houses/" + ids.get(1))
+                .then()
+                .statusCode(200)
+                .body(containsString(second.data));
+
+        given()
+                .when()
+                .body(ids)
+                .contentType(ContentType.JSON)
+                .delete("/houses/bulk")
+                .then()
+                .statusCode(204);
+
+        for (var id : ids) {
+            given()
+                    .when()
+                    .accept(ContentType.JSON)
+                    .get("/houses/" + id)
+                    .then()
+                    .statusCode(404);
+        }
+    }
+
+    @Test
+    void importsValidRowsAndReportsInvalidOnes() {
+        var uuid = UUID.randomUUID();
+
+        var ndjson = "{\"id\":\"" + uuid + "\",\"area\":120.0,\"municipalityNumber\":\"0301\",\"improvements\":[\"SHOWER\"]}\n" +
+                "{\"area\":80.0,\"constructionYear\":1960}\n" +
+                "\n" +
+                "{\"area\":-3.0}\n" +
+                "{\"area\":\n" +
+                "{\"id\":\"not-a-uuid\",\"area\":50.0}\n";
+
+        var importId = given()
+                .when()
+                .body(ndjson.getBytes(StandardCharsets.UTF_8))
+                .contentType("application/x-ndjson")
+                .post("/houses/import")
+                .then()
+                .statusCode(200)
+                .body("status", is("COMPLETED"))
+                .body("rows", is(5))
+                .body("imported", is(2))
+                .body("invalid", is(3))
+                .body("failed", is(0))
+                .body("errors", contains(startsWith("Line 4:"), startsWith("Line 5:"), startsWith("Line 6:")))
+                .extract().path("id");
+
+        given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("area", is(120.0f))
+                .body("improvements", contains(Improvement.SHOWER.toString()));
+
+        given()
+                .when()
+                .get("/houses/imports/" + importId)
+                .then()
+                .statusCode(200)
+                .body("imported", is(2));
+
+        given()
+                .when()
+                .get("/houses/imports")
+                .then()
+                .statusCode(200)
+                .body("id", hasItem(importId));
+
+        var csv = "id,area,floors,isApartment,municipalityNumber,improvements,data\n" +
+                uuid + ",130.5,2,false,0301,\"WINDOWS; SOLAR_CELLS\",\"Storgata 1, Oslo\"\n" +
+                ",70,,true,4601,,Bergen\n" +
+                ",70,1,maybe,4601,,Bergen\n";
+
+        given()
+                .when()
+                .body(csv)
+                .contentType("text/csv")
+                .queryParam("analyze", true)
+                .post("/houses/import")
+                .then()
+                .statusCode(200)
+                .body("rows", is(3))
+                .body("imported", is(2))
+                .body("invalid", is(1))
+                .body("errors", contains(startsWith("Line 4:")));
+
+        given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("area", is(130.5f))
+                .body("floors", is(2))
+                .body("improvements", contains(Improvement.WINDOWS.toString(), Improvement.SOLAR_CELLS.toString()));
+
+        given()
+                .when()
+                .body("id,Area\n" + uuid + ",140\n")
+                .contentType("text/csv")
+                .post("/houses/import")
+                .then()
+                .statusCode(200)
+                .body("status", is("FAILED"))
+                .body("imported", is(0))
+                .body("errors", contains(startsWith("Line 1: Unknown column 'Area'")));
+
+        given()
+                .when()
+                .body(("{\"area_m2\":140}\n").getBytes(StandardCharsets.UTF_8))
+                .contentType("application/x-ndjson")
+                .post("/houses/import")
+                .then()
+                .statusCode(200)
+                .body("status", is("FAILED"))
+                .body("errors", contains(startsWith("Line 1: Unknown field 'area_m2'")));
+
+        given()
+                .when()
+                .get("/houses/imports/" + UUID.randomUUID())
+                .then()
+                .statusCode(404);
+    }
+
+    @Test
+    void importsObjectInTheBackground() throws Exception {
+        var uuid = UUID.randomUUID();
+        var directory = Paths.get("target", "imports");
+        Files.createDirectories(directory);
+        var object = uuid + ".ndjson";
+        Files.writeString(directory.resolve(object), "{\"id\":\"" + uuid + "\",\"area\":95.0}\n{\"area\":-1.0}\n");
+
+        var location = given()
+                .when()
+                .queryParam("object", object)
+                .post("/houses/imports")
+                .then()
+                .statusCode(202)
+                .body("object", is(object))
+                .extract().header("Location");
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            while (given().when().get(location).then().statusCode(200).extract().path("status").equals("RUNNING")) {
+                Thread.sleep(10);
+            }
+        });
+
+        given()
+                .when()
+                .get(location)
+                .then()
+                .statusCode(200)
+                .body("status", is("COMPLETED"))
+                .body("imported", is(1))
+                .body("invalid", is(1));
+
+        given()
+                .when()
+                .get("/houses/" + uuid)
+                .then()
+                .statusCode(200)
+                .body("area", is(95.0f));
+
+        given()
+                .when()
+                .queryParam("object", "extract.xlsx")
+                .post("/houses/imports")
+                .then()
+                .statusCode(400);
+    }
+
+    @Test
+    void multiGetReportsMissing() {
+        var uuid = UUID.randomUUID().toString();
+        var missing = UUID.randomUUID().toString();
+
+        var house = new House();
+        house.data = UUID.randomUUID().toString();
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .queryParam("ids", uuid + "," + missing)
+                .get("/houses")
+                .then()
+                .statusCode(200)
+                .body("houses.size()", is(1))
+                .body("houses.'" + uuid + "'.data", is(house.data))
+                .body("missing", contains(missing));
+    }
+
+    @Test
+    void portfolioEnergyEndpoint() {
+        var house = new House();
+        house.area = 120.0;
+        house.constructionYear = 2015;
+
+        var apartment = new House();
+        apartment.area = 60.0;
+        apartment.isApartment = true;
+
+        given()
+                .when()
+                .body(List.of(house, apartment, new House()))
+                .contentType(ContentType.JSON)
+                .accept(ContentType.JSON)
+                .post("/houses/energy/portfolio")
+                .then()
+                .statusCode(200)
+                .body("houses", is(3))
+                .body("totals.find { it.type == 'FRIDGE' }.energy", is(1410.0f))
+                .body("totals.find { it.type == 'CEILINGS' }.energy", notNullValue())
+                .body("means.find { it.type == 'HEATING_UNIT' }", notNullValue());
+
+        for (var body : List.of("[{\"area\":120.0},null]", "[{\"area\":120.0},42]", "[{\"area\":120.0}")) {
+            given()
+                    .when()
+                    .body(body)
+                    .contentType(ContentType.JSON)
+                    .post("/houses/energy/portfolio")
+                    .then()
+                    .statusCode(400);
+        }
+    }
+
+    @Test
+    void municipalityStatisticsFollowUpdates() {
+        var municipality = String.valueOf(5000 + new Random().nextInt(1000));
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 100.0;
+        house.municipalityNumber = municipality;
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/")
+                .then()
+                .statusCode(200);
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .queryParam("municipality", municipality)
+                .get("/houses/stats")
+                .then()
+                .statusCode(200)
+                .body("[0].houses", is(2))
+                .body("[0].totals.find { it.type == 'FRIDGE' }.energy", is(940.0f))
+                .body("[0].means.find { it.type == 'FRIDGE' }.energy", is(470.0f));
+
+        given()
+                .when()
+                .delete("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .queryParam("municipality", municipality)
+                .get("/houses/stats")
+                .then()
+                .statusCode(200)
+                .body("[0].houses", is(1));
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .post("/houses/stats/" + municipality + "/recount")
+                .then()
+                .statusCode(200)
+                .body("[0].houses", is(1))
+                .body("[0].totals.find { it.type == 'FRIDGE' }.energy", is(470.0f));
+    }
+
+    @Test
+    void listMunicipalityInPages() {
+        var municipality = String.valueOf(6000 + new Random().nextInt(1000));
+
+        for (int year = 2000; year < 2005; year++) {
+            var house = new House();
+            house.municipalityNumber = municipality;
+            house.constructionYear = year;
+
+            given()
+                    .when()
+                    .body(house)
+                    .contentType(ContentType.JSON)
+                    .post("/houses/" + UUID.randomUUID())
+                    .then()
+                    .statusCode(204);
+        }
+
+        String cursor = given()
+                .when()
+                .accept(ContentType.JSON)
+                .queryParam("municipality", municipality)
+                .queryParam("fromYear", 2001)
+                .queryParam("limit", 3)
+                .get("/houses")
+                .then()
+                .statusCode(200)
+                .body("houses.size()", is(3))
+                .body("cursor", notNullValue())
+                .extract().jsonPath().getString("cursor");
+
+        given()
+                .when()
+                .accept(ContentType.JSON)
+                .queryParam("municipality", municipality)
+                .queryParam("fromYear", 2001)
+                .queryParam("limit", 3)
+                .queryParam("cursor", cursor)
+                .get("/houses")
+                .then()
+                .statusCode(200)
+                .body("houses.size()", is(1))
+                .body("cursor", nullValue());
+    }
+
+    @Test
+    void streamsEnergyAnalysisUntilDeleted() throws Exception {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 80.0;
+        house.constructionYear = 1970;
+        given()
+                .when()
+                .body(house)
+                .contentType(ContentType.JSON)
+                .post("/houses/" + uuid)
+                .then()
+                .statusCode(204);
+
+        var client = HttpClient.newHttpClient();
+        var missing = client.send(HttpRequest.newBuilder(base.resolve("houses/" + UUID.randomUUID() + "/energy/stream")).build(),
+                HttpResponse.BodyHandlers.discarding());
+        assertThat(missing.statusCode(), is(404));
+
+        var response = client.send(HttpRequest.newBuilder(base.resolve("houses/" + uuid + "/energy/stream"))
+                .header("Accept", "text/event-stream")
+                .build(), HttpResponse.BodyHandlers.ofLines());
+        assertThat(response.statusCode(), is(200));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            var lines = response.body().iterator();
+            var first = nextEvent(lines);
+            assertThat(first, startsWith("energy "));
+
+            house.area = 200.0;
+            given()
+                    .when()
+                    .body(house)
+                    .contentType(ContentType.JSON)
+                    .post("/houses/" + uuid)
+                    .then()
+                    .statusCode(204);
+            var updated = nextEvent(lines);
+            assertThat(updated, startsWith("energy "));
+            assertThat(updated, not(first));
+
+            given()
+                    .when()
+                    .delete("/houses/" + uuid)
+                    .then()
+                    .statusCode(204);
+            assertThat(nextEvent(lines), is("deleted " + uuid));
+            assertThat(lines.hasNext(), is(false));
+        });
+    }
+
+    /**
+     * Reads the next server-sent event, skipping comments, as its name and data separated by a space.
+     */
+    private static String nextEvent(Iterator<String> lines) {
+        String name = null;
+        var data = new StringBuilder();
+        while (lines.hasNext()) {
+            var line = lines.next();
+            if (line.startsWith("event:")) {
+                name = line.substring("event:".length()).trim();
+            } else if (line.startsWith("data:")) {
+                data.append(line.substring("data:".length()).trim());
+            } else if (line.isEmpty() && name != null) {
+                return name + " " + data;
+            }
+        }
+        throw new AssertionError("Stream ended before the next event");
+    }
 }
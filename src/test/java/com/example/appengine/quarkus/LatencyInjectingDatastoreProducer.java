@@ -0,0 +1,50 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.datastore.Datastore;
+import com.example.appengine.quarkus.datastore.HashMapDatastoreImpl;
+import com.example.appengine.quarkus.datastore.LatencyInjectingDatastore;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.inject.Alternative;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+
+/**
+ * Replaces Firestore with an in-memory datastore that answers with Firestore-like latency and errors,
+ * decorated the same way as Firestore, so the cache and admission control behave as they would in
+ * production. Only enabled by {@link LoadTestProfile}.
+ */
+@Alternative
+@Singleton
+public class LatencyInjectingDatastoreProducer {
+
+    @ConfigProperty(name = "load.datastore.latency.median")
+    Duration median;
+
+    @ConfigProperty(name = "load.datastore.latency.p99")
+    Duration p99;
+
+    @ConfigProperty(name = "load.datastore.error-rate")
+    Double errorRate;
+
+    @ConfigProperty(name = "load.seed")
+    Long seed;
+
+    @Inject
+    DatastoreProducer producer;
+
+    @Produces
+    @Singleton
+    Datastore houses() {
+        var houses = new HashMapDatastoreImpl(1024, HouseResource.MUNICIPALITY_NUMBER);
+        return producer.remote(new LatencyInjectingDatastore(houses, median, p99, errorRate, seed),
+                DatastoreProducer.COLLECTION);
+    }
+
+    void close(@Disposes Datastore datastore) {
+        datastore.close();
+    }
+}
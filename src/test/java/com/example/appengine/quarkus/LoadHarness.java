@@ -0,0 +1,307 @@
+package com.example.appengine.quarkus;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the house endpoints with a weighted mix of requests at a target rate, and reports latency
+ * percentiles and throughput per kind of request.
+ * <p>
+ * Requests are sent on a fixed schedule whether or not earlier ones have been answered, as clients of a
+ * real service would, and latency is measured from when a request was due. A service that falls behind
+ * shows up in the percentiles instead of slowing down the load. The mix of requests and the houses posted
+ * come from a seeded random, so runs with the same seed send the same requests in the same order.
+ */
+public class LoadHarness {
+
+    public enum Operation {
+        POST, GET, ENERGY, DELETE
+    }
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final String[] MUNICIPALITIES = {"0301", "4601", "5001", "1103", "3024", "5401"};
+
+    private final URI houses;
+
+    private final Operation[] operations;
+
+    private final int[] cumulativeWeights;
+
+    private final double rate;
+
+    private final Random random;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(REQUEST_TIMEOUT)
+            .build();
+
+    /** Ids of the houses stored so far and not deleted. Guarded by itself */
+    private final List<String> ids = new ArrayList<>();
+
+    /**
+     * @param base the root of the service
+     * @param mix  the relative weight of each kind of request, as parsed by {@link #mix(String)}
+     * @param rate requests per second
+     */
+    public LoadHarness(URI base, Map<Operation, Integer> mix, double rate, long seed) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Rate must be positive, was " + rate);
+        }
+
+        this.houses = base.resolve("houses/");
+        this.operations = mix.keySet().toArray(new Operation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        var total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += mix.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Mix must have a positive weight, was " + mix);
+        }
+        this.rate = rate;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Parses a mix such as {@code post=1,get=4,energy=4,delete=1}.
+     */
+    public static Map<Operation, Integer> mix(String mix) {
+        var weights = new EnumMap<Operation, Integer>(Operation.class);
+        for (var entry : mix.split(",")) {
+            var parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Mix must be a list of operation=weight, was " + mix);
+            }
+            weights.put(Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Stores houses one at a time, so reads have something to find from the start.
+     */
+    public void prefill(int count) {
+        for (int i = 0; i < count; i++) {
+            send(Operation.POST, null, System.nanoTime(), new Report()).join();
+        }
+    }
+
+    /**
+     * Sends requests at the target rate for the given time, then waits for the answers.
+     */
+    public Report run(Duration duration) {
+        var count = (long) (rate * duration.toNanos() / 1e9);
+        var interval = 1e9 / rate;
+        var report = new Report();
+        var pending = new ArrayList<CompletableFuture<Void>>();
+
+        var start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            var due = start + (long) (i * interval);
+            for (var now = System.nanoTime(); now < due; now = System.nanoTime()) {
+                LockSupport.parkNanos(due - now);
+            }
+            var operation = next();
+            pending.add(send(operation, target(operation), due, report));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private Operation next() {
+        var pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < operations.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException("Weight " + pick + " outside the mix");
+    }
+
+    /**
+     * Picks the house a request is for. A house to delete is taken out of the pool right away, so no later
+     * request picks it.
+     */
+    private String target(Operation operation) {
+        if (operation == Operation.POST) {
+            return null;
+        }
+        synchronized (ids) {
+            if (ids.isEmpty()) {
+                return null;
+            }
+            var index = random.nextInt(ids.size());
+            return operation == Operation.DELETE ? ids.remove(index) : ids.get(index);
+        }
+    }
+
+    private CompletableFuture<Void> send(Operation operation, String id, long due, Report report) {
+        if (id == null) {
+            // Nothing stored yet to read or delete
+            operation = Operation.POST;
+        }
+
+        var request = HttpRequest.newBuilder().timeout(REQUEST_TIMEOUT);
+        switch (operation) {
+            case POST:
+                request.uri(houses).header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(house()));
+                break;
+            case GET:
+                request.uri(houses.resolve(id)).GET();
+                break;
+            case ENERGY:
+                request.uri(houses.resolve(id + "/energy")).GET();
+                break;
+            case DELETE:
+                request.uri(houses.resolve(id)).DELETE();
+                break;
+        }
+
+        var sent = operation;
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString()).handle((response, error) -> {
+            var latency = System.nanoTime() - due;
+            var status = error == null ? response.statusCode() : 0;
+            if (sent == Operation.POST && status == 200) {
+                synchronized (ids) {
+                    ids.add(response.body());
+                }
+            }
+            report.record(sent, status, latency);
+            return null;
+        });
+    }
+
+    private String house() {
+        return String.format(Locale.ROOT,
+                "{\"area\":%.1f,\"floors\":%d,\"constructionYear\":%d,\"isApartment\":%b,\"municipalityNumber\":\"%s\"}",
+                40 + random.nextInt(260) + random.nextInt(10) / 10.0, 1 + random.nextInt(3), 1900 + random.nextInt(125),
+                random.nextInt(3) == 0, MUNICIPALITIES[random.nextInt(MUNICIPALITIES.length)]);
+    }
+
+    /**
+     * Answers and latencies of one run. Requests that got no answer at all count as errors.
+     */
+    public static class Report {
+
+        private final Map<Operation, long[]> latencies = new EnumMap<>(Operation.class);
+
+        private final Map<Operation, Integer> sizes = new EnumMap<>(Operation.class);
+
+        private final Map<Operation, long[]> outcomes = new EnumMap<>(Operation.class);
+
+        private long elapsedNanos;
+
+        Report() {
+            for (var operation : Operation.values()) {
+                latencies.put(operation, new long[16]);
+                sizes.put(operation, 0);
+                outcomes.put(operation, new long[3]);
+            }
+        }
+
+        private synchronized void record(Operation operation, int status, long latencyNanos) {
+            var size = sizes.get(operation);
+            var values = latencies.get(operation);
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                latencies.put(operation, values);
+            }
+            values[size] = latencyNanos;
+            sizes.put(operation, size + 1);
+
+            var outcome = status >= 200 && status < 400 ? 0 : status == 503 ? 1 : 2;
+            outcomes.get(operation)[outcome]++;
+        }
+
+        /**
+         * Requests answered with 2xx or 3xx.
+         */
+        public synchronized long succeeded() {
+            return outcomes.values().stream().mapToLong(counts -> counts[0]).sum();
+        }
+
+        /**
+         * Requests shed with 503.
+         */
+        public synchronized long rejected() {
+            return outcomes.values().stream().mapToLong(counts -> counts[1]).sum();
+        }
+
+        /**
+         * Requests that failed in any other way.
+         */
+        public synchronized long errors() {
+            return outcomes.values().stream().mapToLong(counts -> counts[2]).sum();
+        }
+
+        public synchronized long count() {
+            return sizes.values().stream().mapToLong(Integer::longValue).sum();
+        }
+
+        /**
+         * Requests that succeeded per second, over the run.
+         */
+        public synchronized double throughput() {
+            return succeeded() / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public synchronized String toString() {
+            var table = new StringBuilder(String.format(Locale.ROOT, "%-8s %8s %8s %8s %8s %9s %9s %9s %9s%n",
+                    "request", "count", "ok", "503", "errors", "p50_ms", "p95_ms", "p99_ms", "max_ms"));
+            var all = new long[(int) count()];
+            var offset = 0;
+            for (var operation : Operation.values()) {
+                var size = sizes.get(operation);
+                if (size == 0) {
+                    continue;
+                }
+                var values = Arrays.copyOf(latencies.get(operation), size);
+                System.arraycopy(values, 0, all, offset, size);
+                offset += size;
+                var counts = outcomes.get(operation);
+                row(table, operation.name().toLowerCase(Locale.ROOT), values, counts[0], counts[1], counts[2]);
+            }
+            row(table, "all", all, succeeded(), rejected(), errors());
+            table.append(String.format(Locale.ROOT, "%d requests in %.1f s, %.1f successful requests/s",
+                    count(), elapsedNanos / 1e9, throughput()));
+            return table.toString();
+        }
+
+        private static void row(StringBuilder table, String name, long[] values, long ok, long rejected, long errors) {
+            Arrays.sort(values);
+            table.append(String.format(Locale.ROOT, "%-8s %8d %8d %8d %8d %9.1f %9.1f %9.1f %9.1f%n",
+                    name, values.length, ok, rejected, errors,
+                    percentile(values, 50), percentile(values, 95), percentile(values, 99), percentile(values, 100)));
+        }
+
+        /**
+         * The nearest rank percentile of sorted latencies, in milliseconds.
+         */
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            var rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.appengine.quarkus;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the service against {@link LatencyInjectingDatastoreProducer}. The latency and error rate of the
+ * datastore, the seed and the cache and admission settings can be changed with system properties, such as
+ * {@code -Dload.datastore.latency.p99=0.5S} or {@code -Dstore.cache.enabled=false}.
+ */
+public class LoadTestProfile implements QuarkusTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        return Map.of(
+                "load.datastore.latency.median", property("load.datastore.latency.median", "0.015S"),
+                "load.datastore.latency.p99", property("load.datastore.latency.p99", "0.12S"),
+                "load.datastore.error-rate", property("load.datastore.error-rate", "0.001"),
+                "load.seed", property("load.seed", "42"),
+                "store.metrics.log-sample-rate", "0"
+        );
+    }
+
+    @Override
+    public Set<Class<?>> getEnabledAlternatives() {
+        return Set.of(LatencyInjectingDatastoreProducer.class);
+    }
+
+    static String property(String name, String defaultValue) {
+        return System.getProperty(name, defaultValue);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.appengine.quarkus;
+
+import com.example.appengine.quarkus.model.House;
+import io.quarkus.test.junit.QuarkusTest;
+import io.restassured.RestAssured;
+import io.restassured.http.ContentType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.*;
+
+@QuarkusTest
+public class MetricsTest {
+
+    @BeforeEach
+    public void setUp() {
+        RestAssured.enableLoggingOfRequestAndResponseIfValidationFails();
+    }
+
+    @Test
+    void exposesEndpointDatastoreAndCalculatorMetrics() {
+        var uuid = UUID.randomUUID();
+
+        var house = new House();
+        house.area = 100.0;
+
+        given().when().body(house).contentType(ContentType.JSON).post("/houses/" + uuid).then().statusCode(204);
+        given().when().accept(ContentType.JSON).get("/houses/" + uuid + "/energy").then().statusCode(200);
+
+        given()
+                .when()
+                .get("/q/metrics")
+                .then()
+                .statusCode(200)
+                .body(allOf(
+                        containsString("http_server_requests_seconds_bucket"),
+                        containsString("uri=\"/houses/{id}/energy\""),
+                        containsString("datastore_operation_seconds_bucket"),
+                        containsString("implementation=\"HashMapDatastoreImpl\""),
+                        containsString("energy_analyze_seconds_count"),
+                        containsString("cache_hit_ratio{cache=\"energyAnalysis\"")
+                ));
+    }
+}
@@ -35,7 +35,6 @@ public class SwaggerTest {
     @BeforeEach
     public void setUp() {
         RestAssured.enableLoggingOfRequestAndResponseIfValidationFails();
-        System.setProperty("store.impl", "HashMap");
     }
 
 
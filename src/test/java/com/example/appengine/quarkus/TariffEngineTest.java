@@ -0,0 +1,98 @@
+package com.example.appengine.quarkus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.IntFunction;
+
+import static com.example.appengine.quarkus.TariffEngine.HOURS_IN_A_YEAR;
+import static com.example.appengine.quarkus.model.EnergyFeatureType.FRIDGE;
+import static com.example.appengine.quarkus.model.EnergyFeatureType.HEATING_UNIT;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TariffEngineTest {
+
+    private static final int HALF_YEAR = HOURS_IN_A_YEAR / 2;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void weighsHourlyPricesByProfile() throws IOException {
+        // Prices go from 1 to 3 halfway through the year, heating is only used in the second half
+        write("NO1.csv", "price,co2", hour -> hour < HALF_YEAR ? "1,0.1" : "3,0.3");
+        write("profiles.csv", "heating,appliances", hour -> hour < HALF_YEAR ? "0,1" : "2,1");
+
+        var engine = new TariffEngine(directory, 1.5, 0.2, Duration.ofHours(1));
+        var oslo = engine.tariff("0301");
+
+        assertThat(oslo.price(HEATING_UNIT), closeTo(3.0, 1e-9));
+        assertThat(oslo.pollution(HEATING_UNIT), closeTo(0.3, 1e-9));
+        assertThat(oslo.price(FRIDGE), closeTo(2.0, 1e-9));
+        assertThat(oslo.expense(FRIDGE, 100, 0, HALF_YEAR), closeTo(50.0, 1e-9));
+        assertThat(oslo.expense(HEATING_UNIT, 100, 0, HALF_YEAR), closeTo(0.0, 1e-9));
+        assertThat(oslo.pollution(FRIDGE, 100, HALF_YEAR, HOURS_IN_A_YEAR), closeTo(15.0, 1e-9));
+        assertThrows(IllegalArgumentException.class, () -> oslo.expense(FRIDGE, 100, 0, HOURS_IN_A_YEAR + 1));
+
+        // Bergen is in a zone without a series, and a house without a municipality has no zone
+        assertThat(engine.tariff("4601").price(HEATING_UNIT), is(1.5));
+        assertThat(engine.tariff(null).pollution(FRIDGE), is(0.2));
+        engine.close();
+    }
+
+    @Test
+    void reloadsChangedSeriesAndKeepsTariffsOnInvalidFiles() throws IOException {
+        write("NO5.csv", "price,co2", hour -> "1,0.1");
+        Files.writeString(directory.resolve("zones.csv"), "area,zone\n0301,NO5\n");
+
+        var engine = new TariffEngine(directory, 1.5, 0.2, Duration.ofHours(1));
+        var version = engine.version();
+        assertThat(engine.tariff("0301").price(FRIDGE), closeTo(1.0, 1e-9));
+        assertThat(engine.tariff("0302").price(FRIDGE), is(1.5));
+        assertThat(engine.reload(), is(false));
+
+        write("NO5.csv", "price,co2", hour -> "2,0.1");
+        touch("NO5.csv", 1);
+        assertThat(engine.reload(), is(true));
+        assertThat(engine.tariff("0301").price(FRIDGE), closeTo(2.0, 1e-9));
+        assertThat(engine.version(), not(version));
+
+        Files.writeString(directory.resolve("NO5.csv"), "price,co2\n1,0.1\n");
+        touch("NO5.csv", 2);
+        assertThrows(IllegalArgumentException.class, engine::reload);
+        assertThat(engine.tariff("0301").price(FRIDGE), closeTo(2.0, 1e-9));
+        assertThat(engine.reload(), is(false));
+
+        write("NO5.csv", "price,co2", hour -> "3,0.1");
+        touch("NO5.csv", 3);
+        assertThat(engine.reload(), is(true));
+        assertThat(engine.tariff("0301").price(FRIDGE), closeTo(3.0, 1e-9));
+        engine.close();
+    }
+
+    /**
+     * Writes a header followed by a line for every hour of the year.
+     */
+    private void write(String name, String header, IntFunction<String> hourly) throws IOException {
+        var content = new StringBuilder(header).append('\n');
+        for (int hour = 0; hour < HOURS_IN_A_YEAR; hour++) {
+            content.append(hourly.apply(hour)).append('\n');
+        }
+        Files.writeString(directory.resolve(name), content);
+    }
+
+    /**
+     * Moves the modification time into the future, as a rewrite within the same millisecond would not be noticed.
+     */
+    private void touch(String name, int minutes) throws IOException {
+        Files.setLastModifiedTime(directory.resolve(name), FileTime.from(Instant.now().plus(Duration.ofMinutes(minutes))));
+    }
+}
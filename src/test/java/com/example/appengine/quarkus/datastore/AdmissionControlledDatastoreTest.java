@@ -0,0 +1,145 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.example.appengine.quarkus.model.House;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AdmissionControlledDatastoreTest {
+
+    @Test
+    void shedsReadsWhenQueueIsFullWithoutHoldingUpWrites() {
+        var backing = new SlowDatastore();
+        var reads = new AdaptiveLimiter("read", 1, 1, 1, Duration.ofMinutes(1), Duration.ofSeconds(2));
+        var writes = new AdaptiveLimiter("write", 1, 1, 1, Duration.ofMinutes(1), Duration.ofSeconds(2));
+        var bulk = new AdaptiveLimiter("bulk", 1, 1, 1, Duration.ofMinutes(1), Duration.ofSeconds(2));
+        var store = new AdmissionControlledDatastore(backing, reads, writes, bulk);
+
+        var first = store.getAsync("first", House.class).toCompletableFuture();
+        var second = store.getAsync("second", House.class).toCompletableFuture();
+        var third = store.getAsync("third", House.class).toCompletableFuture();
+
+        assertThat(backing.pending.size(), is(1));
+        assertThat(reads.queued(), is(1));
+        var error = assertThrows(CompletionException.class, third::join);
+        assertThat(error.getCause(), is(instanceOf(DatastoreOverloadedException.class)));
+        assertThat(((DatastoreOverloadedException) error.getCause()).getRetryAfter(), is(Duration.ofSeconds(2)));
+        assertThrows(DatastoreOverloadedException.class, () -> store.get("fourth", House.class));
+
+        store.put("house", new House());
+        assertThat(backing.get("house", House.class), is(notNullValue()));
+
+        backing.pending.get(0).complete(null);
+        assertThat(first.isDone(), is(true));
+        assertThat(second.isDone(), is(false));
+        assertThat(backing.pending.size(), is(2));
+        assertThat(reads.inFlight(), is(1));
+        assertThat(reads.queued(), is(0));
+        assertThat(reads.rejected(), is(2L));
+
+        backing.pending.get(1).complete(null);
+        assertThat(second.isDone(), is(true));
+        assertThat(reads.inFlight(), is(0));
+    }
+
+    @Test
+    void shedsWaitersAfterMaxWait() {
+        var backing = new SlowDatastore();
+        var reads = new AdaptiveLimiter("read", 1, 1, 1, Duration.ofMillis(50), Duration.ofSeconds(1));
+        var writes = new AdaptiveLimiter("write", 1, 1, 1, Duration.ofMillis(50), Duration.ofSeconds(1));
+        var bulk = new AdaptiveLimiter("bulk", 1, 1, 1, Duration.ofMillis(50), Duration.ofSeconds(1));
+        var store = new AdmissionControlledDatastore(backing, reads, writes, bulk);
+
+        store.getAsync("first", House.class);
+        var second = store.getAsync("second", House.class).toCompletableFuture();
+
+        var error = assertThrows(CompletionException.class, second::join);
+        assertThat(error.getCause(), is(instanceOf(DatastoreOverloadedException.class)));
+        assertThat(reads.queued(), is(0));
+
+        // The permit freed up is not given to the waiter that gave up
+        backing.pending.get(0).complete(null);
+        assertThat(backing.pending.size(), is(1));
+        assertThat(reads.inFlight(), is(0));
+    }
+
+    @Test
+    void batchesHaveTheirOwnLimit() {
+        var backing = new SlowDatastore();
+        var reads = new AdaptiveLimiter("read", 1, 1, 0, Duration.ofMinutes(1), Duration.ofSeconds(1));
+        var writes = new AdaptiveLimiter("write", 1, 1, 0, Duration.ofMinutes(1), Duration.ofSeconds(1));
+        var bulk = new AdaptiveLimiter("bulk", 1, 1, 0, Duration.ofMinutes(1), Duration.ofSeconds(1));
+        var store = new AdmissionControlledDatastore(backing, reads, writes, bulk);
+
+        // A batch in flight
+        bulk.acquire().join();
+
+        assertThrows(DatastoreOverloadedException.class, () -> store.putAll(Map.of("house", new House())));
+        assertThrows(DatastoreOverloadedException.class, () -> store.getAll(List.of("house"), House.class));
+        store.put("house", new House());
+        assertThat(store.get("house", House.class), is(notNullValue()));
+        assertThat(reads.inFlight(), is(0));
+        assertThat(writes.inFlight(), is(0));
+
+        bulk.release(0);
+        assertThat(store.getAll(List.of("house"), House.class).keySet(), contains("house"));
+        assertThat(bulk.inFlight(), is(0));
+    }
+
+    @Test
+    void limitFollowsLatency() {
+        var limiter = new AdaptiveLimiter("read", 2, 100, 0, Duration.ZERO, Duration.ofSeconds(1));
+        var initial = limiter.limit();
+
+        run(limiter, 50, TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(limiter.limit(), is(100));
+
+        run(limiter, 10, TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(limiter.limit(), is(lessThan(initial)));
+
+        run(limiter, 200, TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(limiter.limit(), is(100));
+    }
+
+    /**
+     * Runs rounds of as many operations at once as the limit allows, each taking the given time.
+     */
+    private void run(AdaptiveLimiter limiter, int rounds, long latencyNanos) {
+        for (int round = 0; round < rounds; round++) {
+            var permits = limiter.limit();
+            for (int permit = 0; permit < permits; permit++) {
+                limiter.acquire().join();
+            }
+            for (int permit = 0; permit < permits; permit++) {
+                limiter.release(latencyNanos);
+            }
+        }
+    }
+
+    /**
+     * Stores objects in memory, but leaves asynchronous reads pending until the test completes them.
+     */
+    private static class SlowDatastore extends HashMapDatastoreImpl {
+
+        final List<CompletableFuture<Object>> pending = new ArrayList<>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+            var future = new CompletableFuture<Object>();
+            pending.add(future);
+            return (CompletionStage<T>) future;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.example.appengine.quarkus.model.House;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CachingDatastoreTest {
+
+    @Test
+    void readsThroughAndCopiesOnRead() {
+        var backing = new HashMapDatastoreImpl();
+        var store = new CachingDatastore(backing, 10, Duration.ofMinutes(1));
+        var id = UUID.randomUUID().toString();
+
+        var house = new House();
+        house.area = 100.0;
+        backing.put(id, house);
+
+        var first = store.get(id, House.class);
+        first.area = 1.0;
+
+        assertThat(store.get(id, House.class).area, is(100.0));
+    }
+
+    @Test
+    void writeBehindIsVisibleBeforeFlush() {
+        var backing = new HashMapDatastoreImpl();
+        var store = new CachingDatastore(backing, 10, Duration.ofMinutes(1), true, 100, Duration.ofHours(1));
+        var house = new House();
+        house.area = 100.0;
+
+        var id = store.put(house);
+
+        assertThat(store.get(id, House.class).area, is(100.0));
+        assertThat(backing.get(id, House.class), is(nullValue()));
+
+        store.flush();
+        assertThat(backing.get(id, House.class).area, is(100.0));
+
+        store.delete(id);
+        assertThat(store.get(id, House.class), is(nullValue()));
+        assertThat(backing.get(id, House.class), is(notNullValue()));
+
+        store.close();
+        assertThat(backing.get(id, House.class), is(nullValue()));
+    }
+
+    @Test
+    void writeBehindFlushesWhenQueueIsFull() {
+        var backing = new HashMapDatastoreImpl();
+        var store = new CachingDatastore(backing, 10, Duration.ofMinutes(1), true, 2, Duration.ofHours(1));
+
+        var first = store.put(new House());
+        var second = store.put(new House());
+
+        assertThat(backing.get(first, House.class), is(notNullValue()));
+        assertThat(backing.get(second, House.class), is(notNullValue()));
+        store.close();
+    }
+
+    @Test
+    void cachesVersionsAndFlushesQueuedWritesFirst() {
+        var backing = new HashMapDatastoreImpl();
+        var store = new CachingDatastore(backing, 10, Duration.ofMinutes(1), true, 100, Duration.ofHours(1));
+        var house = new House();
+        house.area = 100.0;
+
+        var id = store.put(house);
+        var version = store.version(id);
+        assertThat(version, is(backing.version(id)));
+
+        var misses = store.misses();
+        assertThat(store.getVersioned(id, House.class).getVersion(), is(version));
+        assertThat(store.getVersioned(id, House.class).getVersion(), is(version));
+        assertThat(store.misses(), is(misses + 1));
+
+        house.area = 110.0;
+        store.put(id, house, version);
+        assertThat(backing.get(id, House.class).area, is(110.0));
+        assertThrows(VersionConflictException.class, () -> store.put(id, house, version));
+        assertThat(store.version(id), is(backing.version(id)));
+        store.close();
+    }
+
+    @Test
+    void slowReadDoesNotReplaceNewerWrite() {
+        var read = new CompletableFuture<House>();
+        var backing = new HashMapDatastoreImpl() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+                return (CompletionStage<T>) read;
+            }
+        };
+        var store = new CachingDatastore(backing, 10, Duration.ofMinutes(1));
+        var id = UUID.randomUUID().toString();
+
+        var slow = store.getAsync(id, House.class);
+        var house = new House();
+        house.area = 110.0;
+        store.put(id, house);
+
+        var stale = new House();
+        stale.area = 100.0;
+        read.complete(stale);
+
+        assertThat(slow.toCompletableFuture().join().area, is(100.0));
+        assertThat(store.get(id, House.class).area, is(110.0));
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.example.appengine.quarkus.model.House;
+import com.example.appengine.quarkus.model.Improvement;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HouseValueCodecTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final HouseValueCodec codec = new HouseValueCodec(mapper);
+
+    @Test
+    void roundTripsEveryField() {
+        var house = new House();
+        house.area = 123.5;
+        house.floors = 2;
+        house.constructionYear = 1968;
+        house.energyGrade = "C";
+        house.municipalityNumber = "0301";
+        house.isApartment = false;
+        house.improvements = List.of(Improvement.HEAT_EXCHANGE_UNIT, Improvement.WINDOWS);
+        house.data = "æøå";
+
+        var decoded = codec.decode(codec.encode(house), House.class);
+
+        assertThat(mapper.valueToTree(decoded), is(mapper.<JsonNode>valueToTree(house)));
+        assertThat(codec.encode(house).length, lessThan(mapper.valueToTree(house).toString().length() / 4));
+    }
+
+    @Test
+    void storesImprovementsAsSet() {
+        var house = new House();
+        house.improvements = List.of(Improvement.WINDOWS, Improvement.SHOWER, Improvement.WINDOWS);
+
+        assertThat(codec.decode(codec.encode(house), House.class).improvements, contains(Improvement.WINDOWS, Improvement.SHOWER));
+    }
+
+    @Test
+    void keepsUnsetFieldsUnset() {
+        var house = new House();
+        house.isApartment = true;
+        house.improvements = new ArrayList<>();
+
+        var decoded = codec.decode(codec.encode(house), House.class);
+
+        assertThat(decoded.area, is(nullValue()));
+        assertThat(decoded.municipalityNumber, is(nullValue()));
+        assertThat(decoded.isApartment, is(true));
+        assertThat(decoded.improvements, is(empty()));
+    }
+
+    @Test
+    void decodesIntoNewObjects() {
+        var house = new House();
+        house.improvements = new ArrayList<>(List.of(Improvement.SHOWER));
+        var value = codec.encode(house);
+
+        codec.decode(value, House.class).improvements.add(Improvement.WINDOWS);
+
+        assertThat(codec.decode(value, House.class).improvements, contains(Improvement.SHOWER));
+        assertThat(codec.decode(value, JsonNode.class).get("improvements").size(), is(1));
+    }
+
+    @Test
+    void storesOtherObjectsAsJson() {
+        var value = codec.encode(Map.of("versions", List.of(1, 2)));
+
+        assertThat(codec.decode(value, JsonNode.class).get("versions").size(), is(2));
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.appengine.quarkus.datastore;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Stand-in for a remote datastore, such as Firestore, in front of an in-memory one. Every operation takes
+ * one round trip, with a latency drawn from a log-normal distribution given by its median and 99th
+ * percentile, and fails with the given probability. Synchronous operations hold the calling thread for
+ * the round trip, asynchronous ones complete on another thread once it is over. Changes are watched
+ * without latency.
+ * <p>
+ * Latencies and failures come from a seeded random, so a run with the same seed and the same order of
+ * operations is repeatable.
+ */
+public class LatencyInjectingDatastore implements Datastore {
+
+    /** The 99th percentile of the standard normal distribution */
+    private static final double Z_99 = 2.3263;
+
+    private final Datastore delegate;
+
+    private final double medianNanos;
+
+    private final double sigma;
+
+    private final double errorRate;
+
+    private final Random random;
+
+    public LatencyInjectingDatastore(Datastore delegate, Duration median, Duration p99, double errorRate, long seed) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate is missing");
+        }
+
+        if (median == null || median.isNegative() || median.isZero() || p99 == null || p99.compareTo(median) < 0) {
+            throw new IllegalArgumentException("Latency must be positive with p99 at least the median, was " + median + " and " + p99);
+        }
+
+        if (!(errorRate >= 0 && errorRate <= 1)) {
+            throw new IllegalArgumentException("Error rate must be between 0 and 1, was " + errorRate);
+        }
+
+        this.delegate = delegate;
+        this.medianNanos = median.toNanos();
+        this.sigma = Math.log((double) p99.toNanos() / median.toNanos()) / Z_99;
+        this.errorRate = errorRate;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public <T> T get(String id, Class<T> objectClass) {
+        return roundTrip(() -> delegate.get(id, objectClass));
+    }
+
+    @Override
+    public void put(String id, Object object) {
+        roundTrip(() -> {
+            delegate.put(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public String put(Object object) {
+        return roundTrip(() -> delegate.put(object));
+    }
+
+    @Override
+    public void delete(String id) {
+        roundTrip(() -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(Collection<String> ids, Class<T> objectClass) {
+        return roundTrip(() -> delegate.getAll(ids, objectClass));
+    }
+
+    @Override
+    public void putAll(Map<String, ?> objects) {
+        roundTrip(() -> {
+            delegate.putAll(objects);
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> putAll(List<?> objects) {
+        return roundTrip(() -> delegate.putAll(objects));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        roundTrip(() -> {
+            delegate.deleteAll(ids);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Page<T> query(Query query, Class<T> objectClass) {
+        return roundTrip(() -> delegate.query(query, objectClass));
+    }
+
+    @Override
+    public String version(String id) {
+        return roundTrip(() -> delegate.version(id));
+    }
+
+    @Override
+    public <T> Versioned<T> getVersioned(String id, Class<T> objectClass) {
+        return roundTrip(() -> delegate.getVersioned(id, objectClass));
+    }
+
+    @Override
+    public void put(String id, Object object, String expectedVersion) {
+        roundTrip(() -> {
+            delegate.put(id, object, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String id, String expectedVersion) {
+        roundTrip(() -> {
+            delegate.delete(id, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> CompletionStage<T> getAsync(String id, Class<T> objectClass) {
+        return roundTripAsync(() -> delegate.get(id, objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object) {
+        return roundTripAsync(() -> {
+            delegate.put(id, object);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletionStage<String> putAsync(Object object) {
+        return roundTripAsync(() -> delegate.put(object));
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id) {
+        return roundTripAsync(() -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletionStage<String> versionAsync(String id) {
+        return roundTripAsync(() -> delegate.version(id));
+    }
+
+    @Override
+    public <T> CompletionStage<Versioned<T>> getVersionedAsync(String id, Class<T> objectClass) {
+        return roundTripAsync(() -> delegate.getVersioned(id, objectClass));
+    }
+
+    @Override
+    public CompletionStage<Void> putAsync(String id, Object object, String expectedVersion) {
+        return roundTripAsync(() -> {
+            delegate.put(id, object, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(String id, String expectedVersion) {
+        return roundTripAsync(() -> {
+            delegate.delete(id, expectedVersion);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> Subscription watch(String id, Class<T> objectClass, Consumer<T> onChange, Consumer<Throwable> onError) {
+        return delegate.watch(id, objectClass, onChange, onError);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private <T> T roundTrip(Supplier<T> operation) {
+        var latency = latencyNanos();
+        var fails = fails();
+        try {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        if (fails) {
+            throw new IllegalStateException("Injected failure");
+        }
+        return operation.get();
+    }
+
+    private <T> CompletionStage<T> roundTripAsync(Supplier<T> operation) {
+        var fails = fails();
+        return CompletableFuture.supplyAsync(() -> {
+            if (fails) {
+                throw new IllegalStateException("Injected failure");
+            }
+            return operation.get();
+        }, CompletableFuture.delayedExecutor(latencyNanos(), TimeUnit.NANOSECONDS));
+    }
+
+    private long latencyNanos() {
+        return (long) (medianNanos * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    private boolean fails() {
+        return random.nextDouble() < errorRate;
+    }
+}
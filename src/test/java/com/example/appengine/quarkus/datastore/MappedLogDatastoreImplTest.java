@@ -0,0 +1,156 @@
+package com.example.appengine.quarkus.datastore;
+
+import com.example.appengine.quarkus.model.House;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MappedLogDatastoreImplTest {
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoversAfterReopen() throws IOException {
+        var store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5, "municipalityNumber");
+        var kept = store.put(house("0301", 100.0));
+        var updated = store.put(house("0301", 100.0));
+        var deleted = store.put(house("0301", 100.0));
+        store.put(updated, house("4601", 120.0));
+        store.delete(deleted);
+        store.close();
+
+        store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5, "municipalityNumber");
+        assertThat(store.get(kept, House.class).area, is(100.0));
+        assertThat(store.get(updated, House.class).area, is(120.0));
+        assertThat(store.get(deleted, House.class), is(nullValue()));
+        assertThat(store.query(new Query("municipalityNumber", "0301"), House.class).getObjects().keySet(), contains(kept));
+        store.close();
+    }
+
+    @Test
+    void conditionalPutChecksVersion() throws IOException {
+        var store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5);
+        var id = store.put(house("0301", 100.0));
+        var version = store.version(id);
+
+        store.put(id, house("0301", 110.0), version);
+        var updated = store.getVersioned(id, House.class);
+        assertThat(updated.getObject().area, is(110.0));
+        assertThat(updated.getVersion(), not(version));
+
+        var conflict = assertThrows(VersionConflictException.class, () -> store.put(id, house("0301", 120.0), version));
+        assertThat(conflict.getMessage(), containsString(id));
+        assertThrows(VersionConflictException.class, () -> store.put("missing", house("0301", 120.0), version));
+        assertThrows(VersionConflictException.class, () -> store.put(id, house("0301", 120.0), null));
+        assertThrows(VersionConflictException.class, () -> store.delete(id, version));
+
+        store.put("created", house("0301", 130.0), null);
+        var created = store.version("created");
+        store.delete("created", created);
+        assertThat(store.get("created", House.class), is(nullValue()));
+        store.close();
+
+        var reopened = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5);
+        assertThat(reopened.version(id), is(updated.getVersion()));
+        assertThat(reopened.get(id, House.class).area, is(110.0));
+        reopened.close();
+    }
+
+    @Test
+    void watchersSeeEveryStoredChange() throws IOException {
+        var store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5);
+        var id = store.put(house("0301", 100.0));
+        var seen = new ArrayList<Double>();
+
+        var subscription = store.watch(id, House.class, house -> seen.add(house == null ? null : house.area),
+                error -> seen.add(Double.NaN));
+        store.put(id, house("0301", 110.0));
+        store.putAll(Map.of(id, house("0301", 120.0)));
+        store.delete(id);
+        subscription.close();
+        store.put(id, house("0301", 130.0));
+
+        assertThat(seen, contains(100.0, 110.0, 120.0, null));
+        store.close();
+    }
+
+    @Test
+    void compactionKeepsLatestValues() throws IOException {
+        var store = new MappedLogDatastoreImpl(directory, 4096, NEVER, 0.5);
+        var ids = store.putAll(List.of(house("0301", 1.0), house("0301", 1.0), house("0301", 1.0)));
+        for (int i = 2; i <= 200; i++) {
+            store.put(ids.get(0), house("0301", i));
+        }
+        store.delete(ids.get(1));
+
+        var before = segments();
+        store.compact();
+        assertThat(segments().size(), lessThan(before.size()));
+        assertThat(store.get(ids.get(0), House.class).area, is(200.0));
+        store.close();
+
+        store = new MappedLogDatastoreImpl(directory, 4096, NEVER, 0.5);
+        assertThat(store.get(ids.get(0), House.class).area, is(200.0));
+        assertThat(store.get(ids.get(1), House.class), is(nullValue()));
+        assertThat(store.get(ids.get(2), House.class).area, is(1.0));
+        store.close();
+    }
+
+    @Test
+    void ignoresTornRecordAtTheEnd() throws IOException {
+        var store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5);
+        var first = store.put(house("0301", 100.0));
+        var torn = store.put(house("0301", 110.0));
+        store.close();
+
+        // Flip a byte in the last value, as if the crash happened before it was written
+        try (var channel = FileChannel.open(segments().get(0), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(buffer, 0);
+            var second = Integer.BYTES * 2 + buffer.flip().getInt();
+            channel.write(ByteBuffer.wrap(new byte[]{'x'}), second + 60);
+        }
+
+        store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5);
+        assertThat(store.get(first, House.class).area, is(100.0));
+        assertThat(store.get(torn, House.class), is(nullValue()));
+
+        var next = store.put(house("0301", 120.0));
+        store.close();
+
+        store = new MappedLogDatastoreImpl(directory, 1 << 20, NEVER, 0.5);
+        assertThat(store.get(next, House.class).area, is(120.0));
+        store.close();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static House house(String municipality, double area) {
+        var house = new House();
+        house.municipalityNumber = municipality;
+        house.area = area;
+        return house;
+    }
+}